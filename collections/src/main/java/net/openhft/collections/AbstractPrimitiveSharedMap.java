@@ -0,0 +1,253 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.Maths;
+import net.openhft.lang.io.MappedStore;
+import net.openhft.lang.io.MultiStoreBytes;
+import net.openhft.lang.io.NativeBytes;
+import net.openhft.lang.io.serialization.BytesMarshallerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import static java.lang.Thread.currentThread;
+
+/**
+ * The file, segments and locking shared by the maps with primitive keys.  Each segment is an open
+ * addressing table of fixed size slots which start with the key.  A key of 0 marks a free slot, so the
+ * key 0 has a slot of its own after the table.
+ */
+abstract class AbstractPrimitiveSharedMap {
+    static final int LOCK_OFFSET = 0; // 64-bit
+    static final int SIZE_OFFSET = LOCK_OFFSET + 8; // 32-bit
+    // non-zero if the key 0 is present.
+    static final int ZERO_KEY_OFFSET = SIZE_OFFSET + 4; // 32-bit
+
+    final SharedHashMapBuilder builder;
+    private final long lockTimeOutNS;
+    private final SharedMapErrorListener errorListener;
+    final int slotSize;
+    private final int capacity;
+    private final int segmentBits;
+    private final int segmentMask;
+    private final Segment[] segments;
+    private MappedStore ms; // non-final for close()
+
+    AbstractPrimitiveSharedMap(SharedHashMapBuilder builder, File file, int slotSize) throws IOException {
+        this.builder = builder;
+        this.lockTimeOutNS = builder.lockTimeOutMS() * 1000000;
+        this.errorListener = builder.errorListener();
+        this.slotSize = slotSize;
+        // at least one slot is always free to end a search.
+        this.capacity = Maths.nextPower2(builder.actualEntriesPerSegment(), 16);
+        int segments = builder.actualSegments();
+        this.segmentBits = Maths.intLog2(segments);
+        this.segmentMask = segments - 1;
+
+        long segmentSize = segmentSize();
+        this.ms = new MappedStore(file, FileChannel.MapMode.READ_WRITE,
+                SharedHashMapBuilder.HEADER_SIZE + segments * segmentSize);
+        this.segments = new Segment[segments];
+        long offset = SharedHashMapBuilder.HEADER_SIZE;
+        for (int i = 0; i < segments; i++) {
+            this.segments[i] = new Segment(ms.createSlice(offset, segmentSize));
+            offset += segmentSize;
+        }
+    }
+
+    private long segmentSize() {
+        // the slots and the one for the key 0, aligned to 64 bytes.
+        return (SharedHashMapBuilder.SEGMENT_HEADER + (capacity + 1L) * slotSize + 63) & ~63;
+    }
+
+    static long hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29) ^ (h >>> 47);
+    }
+
+    final Segment segmentFor(long hash) {
+        return segments[(int) (hash & segmentMask)];
+    }
+
+    public SharedHashMapBuilder builder() {
+        return builder.clone();
+    }
+
+    public File file() {
+        return ms.file();
+    }
+
+    BytesMarshallerFactory bytesMarshallerFactory() {
+        return ms.bytesMarshallerFactory();
+    }
+
+    public long longSize() {
+        long size = 0;
+        for (Segment segment : segments)
+            size += segment.size();
+        return size;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                segment.clear();
+            } finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    public void close() {
+        if (ms == null)
+            return;
+        ms.free();
+        ms = null;
+    }
+
+    /**
+     * @return the key stored in the slot.
+     */
+    abstract long readKey(NativeBytes bytes, long offset);
+
+    abstract void writeKey(NativeBytes bytes, long offset, long key);
+
+    final class Segment {
+        final NativeBytes bytes;
+        // for a view of a slot while the lock is held.
+        final MultiStoreBytes tmpBytes = new MultiStoreBytes();
+
+        Segment(NativeBytes bytes) {
+            this.bytes = bytes;
+        }
+
+        void lock() throws IllegalStateException {
+            while (true) {
+                final boolean success = bytes.tryLockNanosLong(LOCK_OFFSET, lockTimeOutNS);
+                if (success) return;
+                if (currentThread().isInterrupted())
+                    throw new IllegalStateException(new InterruptedException("Unable to obtain lock, interrupted"));
+                errorListener.onLockTimeout(bytes.threadIdForLockLong(LOCK_OFFSET));
+                bytes.resetLockLong(LOCK_OFFSET);
+            }
+        }
+
+        void unlock() {
+            try {
+                bytes.unlockLong(LOCK_OFFSET);
+            } catch (IllegalMonitorStateException e) {
+                errorListener.errorOnUnlock(e);
+            }
+        }
+
+        int size() {
+            // any negative value is in error state.
+            return Math.max(0, bytes.readVolatileInt(SIZE_OFFSET));
+        }
+
+        private long slotOffset(int slot) {
+            return SharedHashMapBuilder.SEGMENT_HEADER + (long) slot * slotSize;
+        }
+
+        private int home(long hash) {
+            return (int) (hash >>> segmentBits) & (capacity - 1);
+        }
+
+        /**
+         * @return the offset of the slot holding the key, or -1 if absent.
+         */
+        long find(long key, long hash) {
+            if (key == 0)
+                return bytes.readInt(ZERO_KEY_OFFSET) != 0 ? slotOffset(capacity) : -1;
+            for (int slot = home(hash); ; slot = (slot + 1) & (capacity - 1)) {
+                long offset = slotOffset(slot);
+                long key2 = readKey(bytes, offset);
+                if (key2 == key)
+                    return offset;
+                if (key2 == 0)
+                    return -1;
+            }
+        }
+
+        /**
+         * Adds a key which find() didn't find, leaving the rest of its slot zero.
+         *
+         * @return the offset of its slot.
+         */
+        long add(long key, long hash) {
+            if (size() >= capacity - 1)
+                throw new IllegalStateException("Segment is full, no free entries found");
+            bytes.addInt(SIZE_OFFSET, 1);
+            if (key == 0) {
+                bytes.writeInt(ZERO_KEY_OFFSET, 1);
+                return slotOffset(capacity);
+            }
+            for (int slot = home(hash); ; slot = (slot + 1) & (capacity - 1)) {
+                long offset = slotOffset(slot);
+                if (readKey(bytes, offset) == 0) {
+                    writeKey(bytes, offset, key);
+                    return offset;
+                }
+            }
+        }
+
+        /**
+         * Removes the key in the slot at this offset.  The slots after it which would no longer be found
+         * are moved back, so a search can still stop at the first free slot.
+         */
+        void remove(long offset) {
+            bytes.addInt(SIZE_OFFSET, -1);
+            if (offset == slotOffset(capacity)) {
+                bytes.writeInt(ZERO_KEY_OFFSET, 0);
+                clearSlot(offset);
+                return;
+            }
+            int free = (int) ((offset - SharedHashMapBuilder.SEGMENT_HEADER) / slotSize);
+            for (int slot = (free + 1) & (capacity - 1); ; slot = (slot + 1) & (capacity - 1)) {
+                long key = readKey(bytes, slotOffset(slot));
+                if (key == 0)
+                    break;
+                int home = home(hash(key));
+                // move the key back unless its home is cyclically after the free slot, up to this slot.
+                boolean stays = free <= slot
+                        ? free < home && home <= slot
+                        : free < home || home <= slot;
+                if (!stays) {
+                    copySlot(slotOffset(slot), slotOffset(free));
+                    free = slot;
+                }
+            }
+            clearSlot(slotOffset(free));
+        }
+
+        private void copySlot(long from, long to) {
+            for (int i = 0; i < slotSize; i += 8)
+                bytes.writeLong(to + i, bytes.readLong(from + i));
+        }
+
+        private void clearSlot(long offset) {
+            bytes.zeroOut(offset, offset + slotSize);
+        }
+
+        void clear() {
+            bytes.zeroOut(SIZE_OFFSET, slotOffset(capacity + 1));
+        }
+    }
+}
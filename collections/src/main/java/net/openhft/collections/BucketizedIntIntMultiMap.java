@@ -0,0 +1,272 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.Maths;
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectStore;
+
+/**
+ * An alternative to {@link VanillaIntIntMultiMap}, with the same entries grouped into 64-byte
+ * buckets of 8 slots, see {@link BucketizedShortShortMultiMap}.
+ */
+class BucketizedIntIntMultiMap implements IntIntMultiMap {
+    private static final int ENTRY_SIZE = 8;
+    private static final int ENTRY_SIZE_SHIFT = 3;
+    // 8 slots of 8 bytes in a cache line.
+    private static final int BUCKET_SHIFT = 3;
+    private static final int BUCKET_MASK = (1 << BUCKET_SHIFT) - 1;
+
+    private static final int UNSET_KEY = 0;
+    private static final int HASH_INSTEAD_OF_UNSET_KEY = -1;
+    private static final int UNSET_VALUE = Integer.MIN_VALUE;
+
+    private static final long UNSET_ENTRY = Integer.MIN_VALUE & 0xFFFFFFFFL;
+
+    private final int capacity;
+    private final int buckets;
+    private final int bucketsMask;
+    private final Bytes bytes;
+
+    public BucketizedIntIntMultiMap(int minCapacity) {
+        if (minCapacity < 0)
+            throw new IllegalArgumentException();
+        capacity = Maths.nextPower2(minCapacity, 16);
+        buckets = capacity >> BUCKET_SHIFT;
+        bucketsMask = buckets - 1;
+        bytes = new DirectStore(null, capacity * ENTRY_SIZE, false).createSlice();
+        clear();
+    }
+
+    public BucketizedIntIntMultiMap(Bytes bytes) {
+        capacity = (int) (bytes.capacity() / ENTRY_SIZE);
+        assert capacity == Maths.nextPower2(capacity, 16);
+        buckets = capacity >> BUCKET_SHIFT;
+        bucketsMask = buckets - 1;
+        this.bytes = bytes;
+    }
+
+    private static long entry(int key, int value) {
+        return (((long) key) << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    private long readEntry(int index) {
+        return bytes.readLong(((long) index) << ENTRY_SIZE_SHIFT);
+    }
+
+    private void writeEntry(int index, long entry) {
+        bytes.writeLong(((long) index) << ENTRY_SIZE_SHIFT, entry);
+    }
+
+    private int homeIndex(int key) {
+        return (((key >>> BUCKET_SHIFT) & bucketsMask) << BUCKET_SHIFT) | (key & BUCKET_MASK);
+    }
+
+    /**
+     * The slot searched after index by a key, which starts every bucket at the slot start.
+     */
+    private int nextIndex(int index, int start) {
+        int next = (index + 1) & BUCKET_MASK;
+        if (next != start)
+            return (index & ~BUCKET_MASK) | next;
+        // wrapped around a full bucket.
+        return ((((index >>> BUCKET_SHIFT) + 1) & bucketsMask) << BUCKET_SHIFT) | start;
+    }
+
+    /**
+     * @return how many slots a search for key reads before index.
+     */
+    private int probeLength(int key, int index) {
+        int buckets = ((index >>> BUCKET_SHIFT) - (key >>> BUCKET_SHIFT)) & bucketsMask;
+        return (buckets << BUCKET_SHIFT) + ((index - key) & BUCKET_MASK);
+    }
+
+    @Override
+    public void put(int key, int value) {
+        if (key == UNSET_KEY)
+            key = HASH_INSTEAD_OF_UNSET_KEY;
+        int index = homeIndex(key);
+        for (int i = 0; i < capacity; i++) {
+            long entry = readEntry(index);
+            int hash2 = (int) (entry >> 32);
+            if (hash2 == UNSET_KEY) {
+                writeEntry(index, entry(key, value));
+                return;
+            }
+            if (hash2 == key && (int) entry == value)
+                return;
+            index = nextIndex(index, key & BUCKET_MASK);
+        }
+        throw new IllegalStateException(getClass().getSimpleName() + " is full");
+    }
+
+    @Override
+    public boolean remove(int key, int value) {
+        if (key == UNSET_KEY)
+            key = HASH_INSTEAD_OF_UNSET_KEY;
+        int index = homeIndex(key);
+        for (int i = 0; i < capacity; i++) {
+            long entry = readEntry(index);
+            int hash2 = (int) (entry >> 32);
+            if (hash2 == UNSET_KEY)
+                return false;
+            if (hash2 == key && (int) entry == value) {
+                removeIndex(index);
+                return true;
+            }
+            index = nextIndex(index, key & BUCKET_MASK);
+        }
+        return false;
+    }
+
+    /**
+     * Frees the slot at index, filling it with any entry whose search passes it first, and so on
+     * for the slot that entry leaves.  Only entries in the same bucket, or in full buckets after it
+     * and the first bucket after those, can have passed it.
+     */
+    private void removeIndex(int index) {
+        for (; ; ) {
+            int hole = index;
+            int holeBucket = hole >>> BUCKET_SHIFT;
+            search:
+            for (int b = 0; b < buckets; b++) {
+                int bucketStart = ((holeBucket + b) & bucketsMask) << BUCKET_SHIFT;
+                boolean full = true;
+                for (int i = bucketStart; i < bucketStart + (1 << BUCKET_SHIFT); i++) {
+                    int hash2 = (int) (readEntry(i) >> 32);
+                    if (hash2 == UNSET_KEY) {
+                        full = false;
+                    } else if (i != hole && probeLength(hash2, hole) < probeLength(hash2, i)) {
+                        index = i;
+                        break search;
+                    }
+                }
+                if (!full && b > 0)
+                    break;
+            }
+            if (index == hole) {
+                writeEntry(hole, UNSET_ENTRY);
+                return;
+            }
+            writeEntry(hole, readEntry(index));
+        }
+    }
+
+    /////////////////////
+    // Stateful methods
+
+    private int searchHash = -1;
+    private int searchIndex = -1;
+    private int prevIndex = -1;
+
+    @Override
+    public int startSearch(int key) {
+        if (key == UNSET_KEY)
+            key = HASH_INSTEAD_OF_UNSET_KEY;
+
+        searchIndex = homeIndex(key);
+        return searchHash = key;
+    }
+
+    @Override
+    public int nextPos() {
+        for (int i = 0; i < capacity; i++) {
+            long entry = readEntry(searchIndex);
+            int hash2 = (int) (entry >> 32);
+            // leaves searchIndex where putAfterFailedSearch() inserts.
+            if (hash2 == UNSET_KEY)
+                return UNSET_VALUE;
+            prevIndex = searchIndex;
+            searchIndex = nextIndex(searchIndex, searchHash & BUCKET_MASK);
+            if (hash2 == searchHash)
+                return (int) entry;
+        }
+        throw new IllegalStateException(getClass().getSimpleName() + " is full");
+    }
+
+    @Override
+    public void removePrevPos() {
+        removeIndex(prevIndex);
+    }
+
+    @Override
+    public void replacePrevPos(int value) {
+        writeEntry(prevIndex, entry(searchHash, value));
+    }
+
+    @Override
+    public void putAfterFailedSearch(int value) {
+        writeEntry(searchIndex, entry(searchHash, value));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{ ");
+        for (int i = 0; i < capacity; i++) {
+            long entry = readEntry(i);
+            int key = (int) (entry >> 32);
+            int value = (int) entry;
+            if (key != UNSET_KEY)
+                sb.append(key).append('=').append(value).append(", ");
+        }
+        if (sb.length() > 2) {
+            sb.setLength(sb.length() - 2);
+            return sb.append(" }").toString();
+        }
+        return "{ }";
+    }
+
+    @Override
+    public void forEach(EntryConsumer action) {
+        for (int i = 0; i < capacity; i++) {
+            long entry = readEntry(i);
+            int key = (int) (entry >> 32);
+            int value = (int) entry;
+            if (key != UNSET_KEY)
+                action.accept(key, value);
+        }
+    }
+
+    @Override
+    public void forEachProbeLength(EntryConsumer action) {
+        for (int i = 0; i < capacity; i++) {
+            int key = (int) (readEntry(i) >> 32);
+            if (key != UNSET_KEY)
+                action.accept(key, probeLength(key, i) + 1);
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public long slot(int index) {
+        long entry = readEntry(index);
+        int key = (int) (entry >> 32);
+        return key == UNSET_KEY ? 0 : entry;
+    }
+
+    @Override
+    public void clear() {
+        for (int pos = 0; pos < bytes.capacity(); pos += ENTRY_SIZE) {
+            bytes.writeLong(pos, UNSET_ENTRY);
+        }
+    }
+}
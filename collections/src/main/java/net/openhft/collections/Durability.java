@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * When the changes to a {@link SharedHashMap} are written from memory to its file, using msync.
+ */
+public enum Durability {
+    /**
+     * When the OS writes the pages back, unless SharedHashMap.sync() is called.
+     */
+    NONE,
+    /**
+     * Every syncPeriodMS by a background thread, when SharedHashMap.sync() is called and when the map is closed.
+     */
+    PERIODIC,
+    /**
+     * When SharedHashMap.sync() is called and when the map is closed.
+     */
+    ON_DEMAND
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * What a full segment does to make room for a new entry, once it has no overflow tier to add.
+ */
+public enum EvictionPolicy {
+    /**
+     * Throw an IllegalStateException.
+     */
+    NONE,
+    /**
+     * Remove the first entry a hand going around the segment finds not accessed since it last passed.
+     */
+    CLOCK,
+    /**
+     * Remove the least recently accessed of a few entries chosen at random.
+     */
+    SAMPLED_LRU;
+
+    static EvictionPolicy forId(int id) {
+        EvictionPolicy[] values = values();
+        return id < values.length ? values[id] : null;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * How each segment's hash lookup, from key hash to entry, is laid out.  This is recorded in the
+ * file when it is created.
+ */
+public enum HashLookupType {
+    /**
+     * Linear probing, the layout of files written before this was recorded.
+     */
+    LINEAR_PROBING,
+    /**
+     * Linear probing which keeps entries in order of their home slot, so a miss stops as soon as it
+     * passes where the key would be, and the longest probe grows much more slowly with the load.
+     */
+    ROBIN_HOOD,
+    /**
+     * Linear probing where every key starts at the first slot of a 64-byte bucket, so a lookup
+     * usually reads one cache line.
+     */
+    BUCKETIZED;
+
+    static HashLookupType forId(int id) {
+        HashLookupType[] values = values();
+        return id < values.length ? values[id] : null;
+    }
+}
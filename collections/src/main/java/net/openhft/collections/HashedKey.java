@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+
+/**
+ * A key serialized and hashed once so it can be looked up repeatedly without either, e.g. a key which arrived
+ * serialized from the network.  The key is the bytes from their position to their limit, serialized as a
+ * SharedHashMap serializes its keys.  The bytes must not change while the key is used; call set() again if
+ * they do.  A map hashing keys another way than the key was hashed hashes it again.
+ */
+public final class HashedKey {
+    private final KeyHasher keyHasher;
+    private Bytes bytes;
+    private long hash;
+
+    /**
+     * A key hashed with the default hasher of the builder.
+     */
+    public HashedKey() {
+        this(new SharedHashMapBuilder().keyHasher());
+    }
+
+    public HashedKey(Bytes bytes) {
+        this();
+        set(bytes);
+    }
+
+    /**
+     * @param keyHasher of the maps it is used with, e.g. {@code map.builder().keyHasher()}
+     */
+    public HashedKey(KeyHasher keyHasher) {
+        this.keyHasher = keyHasher;
+    }
+
+    /**
+     * @param bytes the serialized key, from its position to its limit, which are left unchanged.
+     * @return this key, to reuse it.
+     */
+    public HashedKey set(Bytes bytes) {
+        this.bytes = bytes;
+        this.hash = keyHasher.hash(bytes);
+        return this;
+    }
+
+    public Bytes bytes() {
+        return bytes;
+    }
+
+    public KeyHasher keyHasher() {
+        return keyHasher;
+    }
+
+    public long hash() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "HashedKey{" +
+                "length=" + (bytes == null ? 0 : bytes.remaining()) +
+                ", hash=" + Long.toHexString(hash) +
+                '}';
+    }
+}
@@ -58,9 +58,32 @@ interface IntIntMultiMap {
 
     void removePrevPos();
 
+    /**
+     * Replaces the value of the entry last returned by nextPos(), keeping its key.
+     *
+     * @param value to replace it with
+     */
+    void replacePrevPos(int value);
+
     void putAfterFailedSearch(int value);
 
     void clear();
 
     void forEach(EntryConsumer action);
+
+    /**
+     * Passes the key of each entry with the number of slots a search reads to find it, including its own.
+     */
+    void forEachProbeLength(EntryConsumer action);
+
+    /**
+     * @return the number of slots, which can be read by index with slot().
+     */
+    int capacity();
+
+    /**
+     * @return the key in the high 32 bits and the value in the low 32 bits of the entry in a slot,
+     * or 0 if the slot is free.
+     */
+    long slot(int index);
 }
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+
+/**
+ * Hashes serialized keys to find their segment and their position in it.  Every process using a map
+ * must hash the same way, so the builder records in the file which of the {@link KeyHashers} is used,
+ * or that another implementation is, which every process then has to give to the builder.
+ */
+public interface KeyHasher {
+    /**
+     * @param bytes the serialized key between its position and limit, which are left unchanged.
+     * @return a 64-bit hash which is well mixed in all its bits.
+     */
+    long hash(Bytes bytes);
+}
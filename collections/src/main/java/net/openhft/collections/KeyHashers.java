@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+
+public enum KeyHashers implements KeyHasher {
+    /**
+     * The default, and the hash of files created before the hash was recorded, a multiply-accumulate over
+     * 8-byte words.  It is the quickest for keys shorter than a few hundred bytes.
+     */
+    VANILLA {
+        @Override
+        public long hash(Bytes bytes) {
+            long h = 0;
+            long i = bytes.position();
+            long limit = bytes.limit(); // clustering.
+            for (; i < limit - 7; i += 8)
+                h = 1011001110001111L * h + bytes.readLong(i);
+            for (; i < limit - 1; i += 2)
+                h = 101111 * h + bytes.readShort(i);
+            if (i < limit)
+                h = 2111 * h + bytes.readByte(i);
+            h *= 11018881818881011L;
+            h ^= (h >>> 41) ^ (h >>> 21);
+            return h;
+        }
+    },
+    /**
+     * xxHash64 with a seed of 0, reading words in the native byte order.  Four independent lanes hash
+     * keys of 32 bytes or more, and every bit of the result depends on every bit of the key.
+     */
+    XX_HASH_64 {
+        @Override
+        public long hash(Bytes bytes) {
+            long i = bytes.position();
+            long limit = bytes.limit();
+            long length = limit - i;
+            long h;
+            if (length >= 32) {
+                long v1 = P1 + P2;
+                long v2 = P2;
+                long v3 = 0;
+                long v4 = -P1;
+                do {
+                    v1 = round(v1, bytes.readLong(i));
+                    v2 = round(v2, bytes.readLong(i + 8));
+                    v3 = round(v3, bytes.readLong(i + 16));
+                    v4 = round(v4, bytes.readLong(i + 24));
+                    i += 32;
+                } while (i <= limit - 32);
+                h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                        + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+                h = mergeRound(h, v1);
+                h = mergeRound(h, v2);
+                h = mergeRound(h, v3);
+                h = mergeRound(h, v4);
+            } else {
+                h = P5;
+            }
+            h += length;
+            for (; i <= limit - 8; i += 8) {
+                h ^= round(0, bytes.readLong(i));
+                h = Long.rotateLeft(h, 27) * P1 + P4;
+            }
+            if (i <= limit - 4) {
+                h ^= (bytes.readInt(i) & 0xFFFFFFFFL) * P1;
+                h = Long.rotateLeft(h, 23) * P2 + P3;
+                i += 4;
+            }
+            for (; i < limit; i++) {
+                h ^= (bytes.readByte(i) & 0xFF) * P5;
+                h = Long.rotateLeft(h, 11) * P1;
+            }
+            h ^= h >>> 33;
+            h *= P2;
+            h ^= h >>> 29;
+            h *= P3;
+            h ^= h >>> 32;
+            return h;
+        }
+    };
+
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+
+    static long round(long acc, long input) {
+        acc += input * P2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * P1;
+    }
+
+    static long mergeRound(long acc, long value) {
+        acc ^= round(0, value);
+        return acc * P1 + P4;
+    }
+
+    /**
+     * The id recorded in the file of a hasher which isn't one of these.
+     */
+    static final int CUSTOM_ID = 0xFF;
+
+    /**
+     * @return the id recorded in the file, 0 being the VANILLA hash of files from before it was recorded.
+     */
+    static int idOf(KeyHasher hasher) {
+        return hasher instanceof KeyHashers ? ((KeyHashers) hasher).ordinal() : CUSTOM_ID;
+    }
+
+    /**
+     * @return the hasher of an id, or null if it is CUSTOM_ID.
+     */
+    static KeyHashers forId(int id) {
+        if (id == CUSTOM_ID)
+            return null;
+        KeyHashers[] values = values();
+        if (id >= values.length)
+            throw new IllegalArgumentException("Unknown key hasher " + id);
+        return values[id];
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.Jvm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The changes of the transaction a process is committing to a map, written before any of them are made so they
+ * can be made again if the process dies part way through, see SharedHashMapBuilder.redoLog().
+ * <p/>
+ * Each process has its own log next to the map file, named after the map with ".redo." and the process id.  It
+ * is the number of changes, or 0 while there is no transaction to redo, then the changes as they are held by a
+ * transaction: the segment, the length of the key, the length of the value or -1 for a removal as 32-bit ints,
+ * then the serialized key and value, in the native byte order.
+ */
+final class RedoLog implements Closeable {
+    static final int COUNT_OFFSET = 0;
+    static final int CHANGES_OFFSET = 4;
+    static final int CHANGE_HEADER = 12;
+    private static final String SUFFIX = ".redo.";
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final boolean force;
+    private final ByteBuffer count = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder());
+
+    /**
+     * @param force whether to write the log to disk with fsync before the changes are made.
+     */
+    RedoLog(File mapFile, boolean force) throws IOException {
+        this.file = logFile(mapFile, Jvm.getProcessId());
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.force = force;
+        writeCount(0);
+    }
+
+    static File logFile(File mapFile, int pid) {
+        return new File(mapFile.getAbsoluteFile().getParentFile(), mapFile.getName() + SUFFIX + pid);
+    }
+
+    /**
+     * @return the process ids of the logs of the map.
+     */
+    static List<Integer> pids(final File mapFile) {
+        List<Integer> pids = new ArrayList<Integer>();
+        final String prefix = mapFile.getName() + SUFFIX;
+        String[] names = mapFile.getAbsoluteFile().getParentFile().list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix);
+            }
+        });
+        if (names != null)
+            for (String name : names) {
+                try {
+                    pids.add(Integer.parseInt(name.substring(prefix.length())));
+                } catch (NumberFormatException ignored) {
+                    // not a log.
+                }
+            }
+        return pids;
+    }
+
+    /**
+     * @return the changes of the transaction in the log of the process, or null if it has none to redo.
+     */
+    static ByteBuffer read(File mapFile, int pid) throws IOException {
+        File file = logFile(mapFile, pid);
+        if (!file.exists())
+            return null;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer changes = ByteBuffer.allocateDirect((int) channel.size()).order(ByteOrder.nativeOrder());
+            while (changes.remaining() > 0 && channel.read(changes) >= 0) {
+            }
+            changes.flip();
+            if (changes.remaining() < CHANGES_OFFSET || changes.getInt(COUNT_OFFSET) <= 0)
+                return null;
+            changes.position(CHANGES_OFFSET);
+            return changes;
+        } finally {
+            in.close();
+        }
+    }
+
+    static void delete(File mapFile, int pid) {
+        logFile(mapFile, pid).delete();
+    }
+
+    /**
+     * Writes the changes between the position and limit, then the number of them which makes them the ones to redo.
+     */
+    void write(ByteBuffer changes, int changeCount) throws IOException {
+        ByteBuffer buffer = changes.duplicate();
+        long position = CHANGES_OFFSET;
+        while (buffer.remaining() > 0)
+            position += channel.write(buffer, position);
+        if (force)
+            channel.force(false);
+        writeCount(changeCount);
+    }
+
+    /**
+     * Marks the log as having no changes to redo, once they have all been made or undone.
+     */
+    void clear() throws IOException {
+        writeCount(0);
+    }
+
+    private void writeCount(int changeCount) throws IOException {
+        count.clear();
+        count.putInt(changeCount);
+        count.flip();
+        channel.write(count, COUNT_OFFSET);
+        if (force)
+            channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+        file.delete();
+    }
+}
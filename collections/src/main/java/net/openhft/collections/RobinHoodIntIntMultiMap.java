@@ -0,0 +1,256 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.Maths;
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectStore;
+
+/**
+ * A Robin Hood variant of {@link VanillaIntIntMultiMap} with the same entry layout,
+ * see {@link RobinHoodShortShortMultiMap}.
+ */
+class RobinHoodIntIntMultiMap implements IntIntMultiMap {
+    private static final int ENTRY_SIZE = 8;
+    private static final int ENTRY_SIZE_SHIFT = 3;
+
+    private static final int UNSET_KEY = 0;
+    private static final int HASH_INSTEAD_OF_UNSET_KEY = -1;
+    private static final int UNSET_VALUE = Integer.MIN_VALUE;
+    private static final long UNSET_ENTRY = Integer.MIN_VALUE & 0xFFFFFFFFL;
+
+    private final int capacity;
+    private final int capacityMask;
+    private final Bytes bytes;
+
+    public RobinHoodIntIntMultiMap(int minCapacity) {
+        if (minCapacity < 0)
+            throw new IllegalArgumentException();
+        capacity = Maths.nextPower2(minCapacity, 16);
+        capacityMask = capacity - 1;
+        bytes = new DirectStore(null, capacity * ENTRY_SIZE, false).createSlice();
+        clear();
+    }
+
+    public RobinHoodIntIntMultiMap(Bytes bytes) {
+        capacity = (int) (bytes.capacity() / ENTRY_SIZE);
+        assert capacity == Maths.nextPower2(capacity, 16);
+        capacityMask = capacity - 1;
+        this.bytes = bytes;
+    }
+
+    private static long entry(int key, int value) {
+        return (((long) key) << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    private long readEntry(int index) {
+        return bytes.readLong(((long) index) << ENTRY_SIZE_SHIFT);
+    }
+
+    private void writeEntry(int index, long entry) {
+        bytes.writeLong(((long) index) << ENTRY_SIZE_SHIFT, entry);
+    }
+
+    /**
+     * How far the entry at index is from its home slot.
+     */
+    private int displacement(int index, int hash2) {
+        return (index - hash2) & capacityMask;
+    }
+
+    @Override
+    public void put(int key, int value) {
+        if (key == UNSET_KEY)
+            key = HASH_INSTEAD_OF_UNSET_KEY;
+        int index = key & capacityMask;
+        for (int dist = 0; dist <= capacityMask; dist++) {
+            long entry = readEntry(index);
+            int hash2 = (int) (entry >> 32);
+            if (hash2 == UNSET_KEY || displacement(index, hash2) < dist) {
+                insertAt(index, entry(key, value));
+                return;
+            }
+            if (hash2 == key && (int) entry == value)
+                return;
+            index = (index + 1) & capacityMask;
+        }
+        throw new IllegalStateException(getClass().getSimpleName() + " is full");
+    }
+
+    /**
+     * Shifts the entries from index up to the next free slot along by one, keeping them in order.
+     */
+    private void insertAt(int index, long entry) {
+        int free = index;
+        for (int i = 0; ; i++) {
+            if (i > capacityMask)
+                throw new IllegalStateException(getClass().getSimpleName() + " is full");
+            if ((int) (readEntry(free) >> 32) == UNSET_KEY)
+                break;
+            free = (free + 1) & capacityMask;
+        }
+        while (free != index) {
+            int prev = (free - 1) & capacityMask;
+            writeEntry(free, readEntry(prev));
+            free = prev;
+        }
+        writeEntry(index, entry);
+    }
+
+    @Override
+    public boolean remove(int key, int value) {
+        if (key == UNSET_KEY)
+            key = HASH_INSTEAD_OF_UNSET_KEY;
+        int index = key & capacityMask;
+        for (int dist = 0; dist <= capacityMask; dist++) {
+            long entry = readEntry(index);
+            int hash2 = (int) (entry >> 32);
+            if (hash2 == UNSET_KEY || displacement(index, hash2) < dist)
+                return false;
+            if (hash2 == key && (int) entry == value) {
+                removeIndex(index);
+                return true;
+            }
+            index = (index + 1) & capacityMask;
+        }
+        return false;
+    }
+
+    /**
+     * Shifts back the entries after index until one is free or already in its home slot.
+     */
+    private void removeIndex(int index) {
+        for (int i = 0; i < capacityMask; i++) {
+            int next = (index + 1) & capacityMask;
+            long entry = readEntry(next);
+            int hash2 = (int) (entry >> 32);
+            if (hash2 == UNSET_KEY || displacement(next, hash2) == 0)
+                break;
+            writeEntry(index, entry);
+            index = next;
+        }
+        writeEntry(index, UNSET_ENTRY);
+    }
+
+    /////////////////////
+    // Stateful methods
+
+    private int searchHash = -1;
+    private int searchIndex = -1;
+    private int searchDist = -1;
+
+    @Override
+    public int startSearch(int key) {
+        if (key == UNSET_KEY)
+            key = HASH_INSTEAD_OF_UNSET_KEY;
+
+        searchIndex = key & capacityMask;
+        searchDist = 0;
+        return searchHash = key;
+    }
+
+    @Override
+    public int nextPos() {
+        for (int i = 0; i < capacity; i++) {
+            long entry = readEntry(searchIndex);
+            int hash2 = (int) (entry >> 32);
+            // leaves searchIndex where putAfterFailedSearch() inserts.
+            if (hash2 == UNSET_KEY || displacement(searchIndex, hash2) < searchDist)
+                return UNSET_VALUE;
+            searchIndex = (searchIndex + 1) & capacityMask;
+            searchDist++;
+            if (hash2 == searchHash)
+                return (int) entry;
+        }
+        throw new IllegalStateException(getClass().getSimpleName() + " is full");
+    }
+
+    @Override
+    public void removePrevPos() {
+        // the entries after it shift back, so the search continues from the same slot.
+        searchIndex = (searchIndex - 1) & capacityMask;
+        searchDist--;
+        removeIndex(searchIndex);
+    }
+
+    @Override
+    public void replacePrevPos(int value) {
+        writeEntry((searchIndex - 1) & capacityMask, entry(searchHash, value));
+    }
+
+    @Override
+    public void putAfterFailedSearch(int value) {
+        insertAt(searchIndex, entry(searchHash, value));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{ ");
+        for (int i = 0; i < capacity; i++) {
+            long entry = readEntry(i);
+            int key = (int) (entry >> 32);
+            int value = (int) entry;
+            if (key != UNSET_KEY)
+                sb.append(key).append('=').append(value).append(", ");
+        }
+        if (sb.length() > 2) {
+            sb.setLength(sb.length() - 2);
+            return sb.append(" }").toString();
+        }
+        return "{ }";
+    }
+
+    @Override
+    public void forEach(EntryConsumer action) {
+        for (int i = 0; i < capacity; i++) {
+            long entry = readEntry(i);
+            int key = (int) (entry >> 32);
+            int value = (int) entry;
+            if (key != UNSET_KEY)
+                action.accept(key, value);
+        }
+    }
+
+    @Override
+    public void forEachProbeLength(EntryConsumer action) {
+        for (int i = 0; i < capacity; i++) {
+            int key = (int) (readEntry(i) >> 32);
+            if (key != UNSET_KEY)
+                action.accept(key, displacement(i, key) + 1);
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public long slot(int index) {
+        long entry = readEntry(index);
+        int key = (int) (entry >> 32);
+        return key == UNSET_KEY ? 0 : entry;
+    }
+
+    @Override
+    public void clear() {
+        for (int pos = 0; pos < bytes.capacity(); pos += ENTRY_SIZE) {
+            bytes.writeLong(pos, UNSET_ENTRY);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.Maths;
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectStore;
+
+/**
+ * A Robin Hood variant of {@link VanillaShortShortMultiMap} with the same entry layout.
+ * <p></p>
+ * Entries are kept in order of their home slot, so an entry is never further from its home
+ * than any entry it passed.  A search stops at the first entry closer to its home than the
+ * search is, which ends misses early and keeps the longest probe short at high load.
+ */
+class RobinHoodShortShortMultiMap implements IntIntMultiMap {
+    private static final int ENTRY_SIZE = 4;
+    private static final int ENTRY_SIZE_SHIFT = 2;
+
+    private static final int UNSET_KEY = 0;
+    private static final int HASH_INSTEAD_OF_UNSET_KEY = 0xFFFF;
+    private static final int UNSET_VALUE = Integer.MIN_VALUE;
+
+    private static final int UNSET_ENTRY = 0xFFFF;
+
+    private final int capacity;
+    private final int capacityMask;
+    private final Bytes bytes;
+
+    public RobinHoodShortShortMultiMap(int minCapacity) {
+        if (minCapacity < 0 || minCapacity > (1 << 16))
+            throw new IllegalArgumentException();
+        capacity = Maths.nextPower2(minCapacity, 16);
+        capacityMask = capacity - 1;
+        bytes = new DirectStore(null, capacity * ENTRY_SIZE, false).createSlice();
+        clear();
+    }
+
+    public RobinHoodShortShortMultiMap(Bytes bytes) {
+        capacity = (int) (bytes.capacity() / ENTRY_SIZE);
+        assert capacity == Maths.nextPower2(capacity, 16);
+        capacityMask = capacity - 1;
+        this.bytes = bytes;
+    }
+
+    private int readEntry(int index) {
+        return bytes.readInt(index << ENTRY_SIZE_SHIFT);
+    }
+
+    private void writeEntry(int index, int entry) {
+        bytes.writeInt(index << ENTRY_SIZE_SHIFT, entry);
+    }
+
+    /**
+     * How far the entry at index is from its home slot.
+     */
+    private int displacement(int index, int hash2) {
+        return (index - hash2) & capacityMask;
+    }
+
+    @Override
+    public void put(int key, int value) {
+        if (key == UNSET_KEY)
+            key = HASH_INSTEAD_OF_UNSET_KEY;
+        else if ((key & ~0xFFFF) != 0)
+            throw new IllegalArgumentException("Key out of range, was " + key);
+        if ((value & ~0xFFFF) != 0)
+            throw new IllegalArgumentException("Value out of range, was " + value);
+        int index = key & capacityMask;
+        for (int dist = 0; dist <= capacityMask; dist++) {
+            int entry = readEntry(index);
+            int hash2 = entry >>> 16;
+            if (hash2 == UNSET_KEY || displacement(index, hash2) < dist) {
+                insertAt(index, (key << 16) | value);
+                return;
+            }
+            if (hash2 == key && (entry & 0xFFFF) == value)
+                return;
+            index = (index + 1) & capacityMask;
+        }
+        throw new IllegalStateException(getClass().getSimpleName() + " is full");
+    }
+
+    /**
+     * Shifts the entries from index up to the next free slot along by one, keeping them in order.
+     */
+    private void insertAt(int index, int entry) {
+        int free = index;
+        for (int i = 0; ; i++) {
+            if (i > capacityMask)
+                throw new IllegalStateException(getClass().getSimpleName() + " is full");
+            if (readEntry(free) >>> 16 == UNSET_KEY)
+                break;
+            free = (free + 1) & capacityMask;
+        }
+        while (free != index) {
+            int prev = (free - 1) & capacityMask;
+            writeEntry(free, readEntry(prev));
+            free = prev;
+        }
+        writeEntry(index, entry);
+    }
+
+    @Override
+    public boolean remove(int key, int value) {
+        if (key == UNSET_KEY)
+            key = HASH_INSTEAD_OF_UNSET_KEY;
+        int index = key & capacityMask;
+        for (int dist = 0; dist <= capacityMask; dist++) {
+            int entry = readEntry(index);
+            int hash2 = entry >>> 16;
+            if (hash2 == UNSET_KEY || displacement(index, hash2) < dist)
+                return false;
+            if (hash2 == key && (entry & 0xFFFF) == value) {
+                removeIndex(index);
+                return true;
+            }
+            index = (index + 1) & capacityMask;
+        }
+        return false;
+    }
+
+    /**
+     * Shifts back the entries after index until one is free or already in its home slot.
+     */
+    private void removeIndex(int index) {
+        for (int i = 0; i < capacityMask; i++) {
+            int next = (index + 1) & capacityMask;
+            int entry = readEntry(next);
+            int hash2 = entry >>> 16;
+            if (hash2 == UNSET_KEY || displacement(next, hash2) == 0)
+                break;
+            writeEntry(index, entry);
+            index = next;
+        }
+        writeEntry(index, UNSET_ENTRY);
+    }
+
+    /////////////////////
+    // Stateful methods
+
+    private int searchHash = -1;
+    private int searchIndex = -1;
+    private int searchDist = -1;
+
+    @Override
+    public int startSearch(int key) {
+        if (key == UNSET_KEY)
+            key = HASH_INSTEAD_OF_UNSET_KEY;
+
+        searchIndex = key & capacityMask;
+        searchDist = 0;
+        return searchHash = key;
+    }
+
+    @Override
+    public int nextPos() {
+        for (int i = 0; i < capacity; i++) {
+            int entry = readEntry(searchIndex);
+            int hash2 = entry >>> 16;
+            // leaves searchIndex where putAfterFailedSearch() inserts.
+            if (hash2 == UNSET_KEY || displacement(searchIndex, hash2) < searchDist)
+                return UNSET_VALUE;
+            searchIndex = (searchIndex + 1) & capacityMask;
+            searchDist++;
+            if (hash2 == searchHash)
+                return entry & 0xFFFF;
+        }
+        throw new IllegalStateException(getClass().getSimpleName() + " is full");
+    }
+
+    @Override
+    public void removePrevPos() {
+        // the entries after it shift back, so the search continues from the same slot.
+        searchIndex = (searchIndex - 1) & capacityMask;
+        searchDist--;
+        removeIndex(searchIndex);
+    }
+
+    @Override
+    public void replacePrevPos(int value) {
+        writeEntry((searchIndex - 1) & capacityMask, (searchHash << 16) | value);
+    }
+
+    @Override
+    public void putAfterFailedSearch(int value) {
+        insertAt(searchIndex, (searchHash << 16) | value);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{ ");
+        for (int i = 0; i < capacity; i++) {
+            int entry = readEntry(i);
+            int key = entry >>> 16;
+            int value = entry & 0xFFFF;
+            if (key != UNSET_KEY)
+                sb.append(key).append('=').append(value).append(", ");
+        }
+        if (sb.length() > 2) {
+            sb.setLength(sb.length() - 2);
+            return sb.append(" }").toString();
+        }
+        return "{ }";
+    }
+
+    @Override
+    public void forEach(EntryConsumer action) {
+        for (int i = 0; i < capacity; i++) {
+            int entry = readEntry(i);
+            int key = entry >>> 16;
+            int value = entry & 0xFFFF;
+            if (key != UNSET_KEY)
+                action.accept(key, value);
+        }
+    }
+
+    @Override
+    public void forEachProbeLength(EntryConsumer action) {
+        for (int i = 0; i < capacity; i++) {
+            int key = readEntry(i) >>> 16;
+            if (key != UNSET_KEY)
+                action.accept(key, displacement(i, key) + 1);
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public long slot(int index) {
+        int entry = readEntry(index);
+        int key = entry >>> 16;
+        return key == UNSET_KEY ? 0 : ((long) key << 32) | (entry & 0xFFFF);
+    }
+
+    @Override
+    public void clear() {
+        for (int pos = 0; pos < bytes.capacity(); pos += ENTRY_SIZE) {
+            bytes.writeInt(pos, UNSET_ENTRY);
+        }
+    }
+}
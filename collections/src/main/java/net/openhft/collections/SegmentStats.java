@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * A snapshot of how full and how well distributed one segment of a {@link SharedHashMap} is,
+ * including its overflow tiers.
+ */
+public final class SegmentStats {
+    private final int segment;
+    private final int tiers;
+    private final int entries;
+    private final int hashLookupCapacity;
+    private final long blocks;
+    private final long usedBlocks;
+    private final long probeLengths;
+    private final int maxProbeLength;
+    private final int hashCollisions;
+    private final int freeRuns;
+    private final int largestFreeRun;
+
+    SegmentStats(int segment, int tiers, int entries, int hashLookupCapacity, long blocks, long usedBlocks,
+                 long probeLengths, int maxProbeLength, int hashCollisions, int freeRuns, int largestFreeRun) {
+        this.segment = segment;
+        this.tiers = tiers;
+        this.entries = entries;
+        this.hashLookupCapacity = hashLookupCapacity;
+        this.blocks = blocks;
+        this.usedBlocks = usedBlocks;
+        this.probeLengths = probeLengths;
+        this.maxProbeLength = maxProbeLength;
+        this.hashCollisions = hashCollisions;
+        this.freeRuns = freeRuns;
+        this.largestFreeRun = largestFreeRun;
+    }
+
+    public int segment() {
+        return segment;
+    }
+
+    /**
+     * @return the segment and the overflow tiers it uses.
+     */
+    public int tiers() {
+        return tiers;
+    }
+
+    public int entries() {
+        return entries;
+    }
+
+    /**
+     * @return the slots of the hash lookups of all the tiers, each of which needs a free slot.
+     */
+    public int hashLookupCapacity() {
+        return hashLookupCapacity;
+    }
+
+    public double hashLookupLoad() {
+        return (double) entries / hashLookupCapacity;
+    }
+
+    /**
+     * @return the entrySize blocks of all the tiers.
+     */
+    public long blocks() {
+        return blocks;
+    }
+
+    public long usedBlocks() {
+        return usedBlocks;
+    }
+
+    public double fillRatio() {
+        return (double) usedBlocks / blocks;
+    }
+
+    /**
+     * @return the average number of hash lookup slots read to find an entry.
+     */
+    public double averageProbeLength() {
+        return entries == 0 ? 0 : (double) probeLengths / entries;
+    }
+
+    public int maxProbeLength() {
+        return maxProbeLength;
+    }
+
+    /**
+     * @return the entries with the same hash in the hash lookup as another entry of the tier, which
+     * have to be told apart by comparing keys.
+     */
+    public int hashCollisions() {
+        return hashCollisions;
+    }
+
+    /**
+     * @return the runs of free blocks, many short runs meaning large entries may not fit.
+     */
+    public int freeRuns() {
+        return freeRuns;
+    }
+
+    /**
+     * @return the most blocks the largest new entry can use without another tier.
+     */
+    public int largestFreeRun() {
+        return largestFreeRun;
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentStats{" +
+                "segment=" + segment +
+                ", tiers=" + tiers +
+                ", entries=" + entries +
+                ", hashLookupLoad=" + String.format("%.3f", hashLookupLoad()) +
+                ", fillRatio=" + String.format("%.3f", fillRatio()) +
+                ", averageProbeLength=" + String.format("%.2f", averageProbeLength()) +
+                ", maxProbeLength=" + maxProbeLength +
+                ", hashCollisions=" + hashCollisions +
+                ", freeRuns=" + freeRuns +
+                ", largestFreeRun=" + largestFreeRun +
+                '}';
+    }
+}
@@ -16,17 +16,117 @@
 
 package net.openhft.collections;
 
+import net.openhft.lang.io.Bytes;
+
 import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 
 public interface SharedHashMap<K, V> extends ConcurrentMap<K, V>, Closeable {
+    static interface EntryConsumer<K, V> {
+        void accept(K key, V value);
+    }
+
+    static interface EntryReducer<K, V, R> {
+        /**
+         * @return the result with an entry of a segment included.
+         */
+        R reduce(R result, K key, V value);
+
+        /**
+         * @return the results of two groups of segments combined.
+         */
+        R combine(R result1, R result2);
+    }
+
+    static interface BytesEntryConsumer {
+        /**
+         * @param key   the serialized key between its position and limit.
+         * @param value the serialized value between its position and limit.
+         */
+        void accept(Bytes key, Bytes value);
+    }
+
+    static interface ChangeConsumer {
+        /**
+         * @param key        the serialized key between its position and limit.
+         * @param value      the serialized value between its position and limit, or null if the key was removed.
+         * @param timestamp  when the change was made in milliseconds since the epoch.
+         * @param identifier of the map the change was made to.
+         */
+        void accept(Bytes key, Bytes value, long timestamp, byte identifier);
+    }
+
+    static interface ChangeBatch extends ChangeConsumer {
+        /**
+         * Copies a change into the batch, applying the batch first if it is full.
+         */
+        @Override
+        void accept(Bytes key, Bytes value, long timestamp, byte identifier);
+
+        /**
+         * Applies the changes in the batch, taking the lock of each segment once.
+         *
+         * @return the number of changes applied.
+         */
+        int flush();
+    }
+
+    /**
+     * Puts and removals of several keys which are made together by commit().
+     */
+    static interface Transaction<K, V> {
+        Transaction<K, V> put(K key, V value);
+
+        Transaction<K, V> remove(K key);
+
+        /**
+         * Makes the changes in the order they were added, holding the lock of every segment they are in, which
+         * are taken in segment order so transactions can't deadlock.  Other threads and processes see either none
+         * or all of the changes.  If a change fails, those already made are undone before the exception is thrown.
+         *
+         * @throws IllegalStateException if the transaction was already committed.
+         */
+        void commit();
+    }
+
+    static interface Function<T, R> {
+        R apply(T t);
+    }
+
+    static interface BiFunction<T, U, R> {
+        R apply(T t, U u);
+    }
+
+    static interface SplittableIterator<E> extends Iterator<E> {
+        /**
+         * @return an iterator over some of the segments not iterated yet, which this iterator will skip,
+         * or null if they can't be split.
+         */
+        SplittableIterator<E> trySplit();
+    }
+
     /**
      * @see java.util.Map size()
-     * @return size as a long.
+     * @return size as a long, counting the entries of every segment.
      */
     long longSize();
 
+    /**
+     * The size of the map as counted in its header, without reading every segment.  Each segment adds every change
+     * in its size to it while locked, so it is only out while changes are being made, or if a process died while
+     * changing a segment which hasn't been recovered yet.  Use longSize() to count the entries of every segment.
+     *
+     * @return the approximate size of the map.
+     */
+    long approximateSize();
+
     /**
      * Get a value for a key if available.  If the value is Byteable, it will be assigned to reference the value, instead of copying the data for zero copy access to the collection.
      *
@@ -45,6 +145,286 @@ public interface SharedHashMap<K, V> extends ConcurrentMap<K, V>, Closeable {
      */
     V acquireUsing(K key, V value);
 
+    /**
+     * Get a value for a key which is already serialized, as the map serializes keys, e.g. with writeUTFΔ for a
+     * String or writeMarshallable for a generated key type.
+     *
+     * @param key   the serialized key, from its position to its limit, which are left unchanged.
+     * @param value to reuse if possible. If null, a new object will be created.
+     * @return value found or null if not.
+     */
+    V getUsing(Bytes key, V value);
+
+    /**
+     * Get a value for a key which has been serialized and hashed already.
+     *
+     * @param key   to lookup.
+     * @param value to reuse if possible. If null, a new object will be created.
+     * @return value found or null if not.
+     */
+    V getUsing(HashedKey key, V value);
+
+    /**
+     * Associate a serialized value with a serialized key, without deserializing either unless an event listener
+     * needs them.
+     *
+     * @param key   the serialized key, from its position to its limit, which are left unchanged.
+     * @param value the serialized value, from its position to its limit, which are left unchanged.
+     * @return the previous value, or null if there was none or putReturnsNull is set.
+     */
+    V put(Bytes key, Bytes value);
+
+    /**
+     * Associate a value with a key which expires after its own time to live rather than the map's timeToLiveMS.
+     * An expired entry is not visible, and is removed by the next write to find it, when its segment is out of
+     * room, or by removeExpired().
+     *
+     * @param timeToLiveMS how long the entry is visible for, or Long.MAX_VALUE for an entry which doesn't expire.
+     * @return the previous value, or null if there was none or putReturnsNull is set.
+     * @throws IllegalStateException if the map was created without a timeToLiveMS, so has no room to record it.
+     */
+    V put(K key, V value, long timeToLiveMS);
+
+    /**
+     * Remove the expired entries, locking one segment at a time.  This can be called periodically, e.g. with a
+     * ScheduledExecutorService, so expired entries which are not written to again don't use space.
+     *
+     * @return the number of entries removed.
+     */
+    int removeExpired();
+
+    /**
+     * Associate a serialized value with a key which has been serialized and hashed already.
+     *
+     * @param key   to associate the value with.
+     * @param value the serialized value, from its position to its limit, which are left unchanged.
+     * @return the previous value, or null if there was none or putReturnsNull is set.
+     */
+    V put(HashedKey key, Bytes value);
+
+    /**
+     * Remove the entry for a serialized key.
+     *
+     * @param key the serialized key, from its position to its limit, which are left unchanged.
+     * @return the value removed, or null if there was none or removeReturnsNull is set.
+     */
+    V remove(Bytes key);
+
+    /**
+     * If the key is absent, associate it with the result of the function unless that is null.  The function is
+     * called holding the segment's lock so it should be quick and must not access this map.  These methods are
+     * named apart from the compute methods of Java 8's Map, which don't hold the lock, so a lambda passed to
+     * either is not ambiguous.
+     *
+     * @param key             to lookup.
+     * @param mappingFunction to create a value for the key.
+     * @return the value found or created, or null if the function returned null.
+     */
+    V computeIfAbsentLocked(K key, Function<? super K, ? extends V> mappingFunction);
+
+    /**
+     * If the key is present, replace its value with the result of the function, or remove it if that is null.
+     * The function is called holding the segment's lock so it should be quick and must not access this map.
+     *
+     * @param key               to lookup.
+     * @param remappingFunction given the key and its value.
+     * @return the new value, or null if the key is absent now.
+     */
+    V computeIfPresentLocked(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction);
+
+    /**
+     * Associate the key with the result of the function, or remove it if that is null.  The function is called
+     * holding the segment's lock so it should be quick and must not access this map.
+     *
+     * @param key               to lookup.
+     * @param remappingFunction given the key and its value, or null if it is absent.
+     * @return the new value, or null if the key is absent now.
+     */
+    V computeLocked(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction);
+
+    /**
+     * Associate an absent key with the value, otherwise replace its value with the result of the function,
+     * or remove it if that is null.  The function is called holding the segment's lock so it should be quick
+     * and must not access this map.
+     *
+     * @param key               to lookup.
+     * @param value             to put if the key is absent and to pass to the function if not.
+     * @param remappingFunction given the old value and {@code value}.
+     * @return the new value, or null if the key is absent now.
+     */
+    V mergeLocked(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction);
+
+    /**
+     * Get the values for many keys, locking each segment once for all its keys rather than once per key.
+     *
+     * @param keys to lookup.
+     * @return the keys found and their values.
+     */
+    Map<K, V> getAll(Collection<? extends K> keys);
+
+    /**
+     * Get the values for many keys, looking up the keys of different segments in parallel.
+     *
+     * @param keys     to lookup.
+     * @param executor to run the lookups of each segment, or null to run them in the calling thread.
+     * @return the keys found and their values.
+     */
+    Map<K, V> getAll(Collection<? extends K> keys, ExecutorService executor);
+
+    /**
+     * Put many entries, updating the entries of different segments in parallel.
+     *
+     * @param map      of the entries to put.
+     * @param executor to run the updates of each segment, or null to run them in the calling thread.
+     */
+    void putAll(Map<? extends K, ? extends V> map, ExecutorService executor);
+
+    /**
+     * Remove many keys, locking each segment once for all its keys rather than once per key.
+     *
+     * @param keys to remove.
+     * @return the number of entries removed.
+     */
+    int removeAll(Collection<? extends K> keys);
+
+    /**
+     * Remove many keys, removing the keys of different segments in parallel.
+     *
+     * @param keys     to remove.
+     * @param executor to run the removals of each segment, or null to run them in the calling thread.
+     * @return the number of entries removed.
+     */
+    int removeAll(Collection<? extends K> keys, ExecutorService executor);
+
+    /**
+     * Pass every entry to the consumer, a segment at a time.  The entries of a segment are read holding its lock
+     * and passed to the consumer after it is released, so the consumer can update the map.
+     *
+     * @param consumer of the entries, which is called concurrently for different segments with an executor.
+     * @param executor to run the scan of each segment, or null to scan them in the calling thread.
+     */
+    void forEach(EntryConsumer<? super K, ? super V> consumer, ExecutorService executor);
+
+    /**
+     * Reduce the entries of each segment to a result and combine the results of the segments.
+     *
+     * @param identity the result of no entries, which is shared by the segments so should be immutable.
+     * @param reducer  which is called concurrently for different segments with an executor.
+     * @param executor to reduce each segment, or null to reduce them in the calling thread.
+     * @return the combined result of the segments.
+     */
+    <R> R reduce(R identity, EntryReducer<? super K, ? super V, R> reducer, ExecutorService executor);
+
+    /**
+     * Pass the serialized key and value of every entry to the consumer without deserializing or copying them.
+     * The same two Bytes are reused for every entry of a segment, and the consumer is called holding the
+     * segment's lock, so it must not keep them or access the map.
+     *
+     * @param consumer of the entries, which is called concurrently for different segments with an executor.
+     * @param executor to run the scan of each segment, or null to scan them in the calling thread.
+     */
+    void forEachBytes(BytesEntryConsumer consumer, ExecutorService executor);
+
+    /**
+     * As forEachBytes(BytesEntryConsumer, ExecutorService) for one segment, so a scan can hold each lock briefly.
+     *
+     * @param segment from 0 to builder().actualSegments().
+     */
+    void forEachBytes(int segment, BytesEntryConsumer consumer);
+
+    /**
+     * Pass the serialized key and value of every entry put, or the key with a null value of every entry removed,
+     * since the replica last drained the changes, one segment at a time.  Each entry is passed once with its
+     * current value however many times it changed, though a key removed more than once can be passed as removed
+     * more than once.  The consumer is called holding the segment's lock as for
+     * forEachBytes().
+     *
+     * @param replica  from 0 to the number of replicas the map was created with.
+     * @param consumer of the changes.
+     * @return the number of changes passed.
+     */
+    int drainChanges(int replica, BytesEntryConsumer consumer);
+
+    /**
+     * As drainChanges(int, BytesEntryConsumer) for one segment, so a replica can drain them in batches.
+     *
+     * @param segment from 0 to builder().actualSegments().
+     */
+    int drainChanges(int replica, int segment, BytesEntryConsumer consumer);
+
+    /**
+     * As drainChanges(int, int, BytesEntryConsumer), also passing when and where each change was made so it can
+     * be applied to another map with applyChange().
+     */
+    int drainChanges(int replica, int segment, ChangeConsumer consumer);
+
+    /**
+     * Marks every entry, and every removal not yet drained by all the replicas, as changed for the replica so
+     * they are all drained again, for when the changes drained for a replica may not have reached it.
+     *
+     * @return the number of entries and removals marked.
+     */
+    int markAllChanged(int replica);
+
+    /**
+     * Apply a change drained from another map, unless this map has a later change to the key.  Changes made at
+     * the same millisecond are ordered by the identifier of the map they were made to, so maps which apply each
+     * other's changes end up the same.  The change is passed on to this map's replicas, except the one it came from.
+     *
+     * @param fromReplica the replica which drains changes back to the map the change came from, or -1 for none.
+     * @param value       the serialized value, or null to remove the key.
+     * @return whether the change was applied.
+     */
+    boolean applyChange(int fromReplica, Bytes key, Bytes value, long timestamp, byte identifier);
+
+    /**
+     * @param fromReplica as for applyChange().
+     * @return a batch of changes to apply as applyChange() does, for use by one thread.
+     */
+    ChangeBatch changeBatch(int fromReplica);
+
+    /**
+     * @return a transaction to add changes to, then commit.
+     * @throws IllegalStateException if the map wasn't created transactional, see SharedHashMapBuilder.
+     */
+    Transaction<K, V> transaction();
+
+    /**
+     * @return an iterator over the entries which can be split by segment to iterate in several threads.
+     */
+    SplittableIterator<Map.Entry<K, V>> entryIterator();
+
+    /**
+     * Measure how full and how well distributed each segment is, holding each segment's lock in turn.
+     *
+     * @return the stats of each segment in order.
+     */
+    List<SegmentStats> segmentStats();
+
+    /**
+     * Check every segment holding its lock in turn, and make it consistent if a process died part way through
+     * changing it.  The hash lookup is rebuilt from the entries it refers to which are intact, dropping the rest,
+     * then the free list and size are recomputed from them.  This is done automatically for a segment whose lock
+     * is found held by a process which is no longer running.
+     *
+     * @return the number of entries dropped.
+     */
+    int repair();
+
+    /**
+     * Write the segments changed since the last sync from memory to the file with msync, returning once they are
+     * written.  Changes made by other processes are synced as well, but not changes to a value acquired with acquireUsing() made after it returned,
+     * until the segment changes again.
+     *
+     * @return the bytes synced.
+     */
+    long sync() throws IOException;
+
+    /**
+     * @return how much has been synced by this process and how long it took.
+     */
+    SyncStats syncStats();
+
     /**
      * Obtain the builder settings for this SharedHashMap
      *
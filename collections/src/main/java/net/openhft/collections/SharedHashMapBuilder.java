@@ -27,7 +27,19 @@ public class SharedHashMapBuilder implements Cloneable {
 
     static final int HEADER_SIZE = 128;
     static final int SEGMENT_HEADER = 64;
+    // the default time to live of entries, 64-bit.
+    static final int TIME_TO_LIVE_OFFSET = 40;
+    // 1 once the size of every segment is counted in the size stripes, 32-bit.
+    static final int SIZE_COUNTED_OFFSET = 48;
+    // the number of overflow tiers added to the file so far, 32-bit.
+    static final int TIERS_OFFSET = 64;
+    // the approximate size of the map, split into stripes the segments add their changes in size to, 64-bit each.
+    static final int SIZE_STRIPES_OFFSET = 96;
+    static final int SIZE_STRIPES = 4;
     private static final byte[] MAGIC = "SharedHM".getBytes();
+    private static final byte[] LONG_LONG_MAGIC = "SharedLL".getBytes();
+    private static final byte[] INT_INT_MAGIC = "SharedII".getBytes();
+    private static final byte[] LONG_OBJ_MAGIC = "SharedLO".getBytes();
 
     // used when configuring the number of segments.
     private int minSegments = -1;
@@ -48,6 +60,21 @@ public class SharedHashMapBuilder implements Cloneable {
     private boolean generatedKeyType = false;
     private boolean generatedValueType = false;
     private boolean largeSegments = false;
+    private boolean optimisticReads = false;
+    private boolean readWriteLocks = false;
+    private int maxEntryOversizeFactor = 64;
+    private int overflowTiers = 0;
+    private KeyHasher keyHasher = KeyHashers.VANILLA;
+    private HashLookupType hashLookupType = HashLookupType.LINEAR_PROBING;
+    private boolean wideHashLookup = false;
+    private long timeToLiveMS = 0;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.NONE;
+    private byte identifier = 0;
+    private Durability durability = Durability.NONE;
+    private long syncPeriodMS = 1000;
+    private int warmUpThreads = 0;
+    private boolean redoLog = false;
+    private long tombstoneRetentionMS = 60 * 1000;
 
     @Override
     public SharedHashMapBuilder clone() {
@@ -83,6 +110,10 @@ public class SharedHashMapBuilder implements Cloneable {
     }
 
 
+    /**
+     * The size of a block of a segment, which should fit a typical entry.  Entries with larger keys or values
+     * use as many consecutive blocks as they need, up to maxEntryOversizeFactor blocks.
+     */
     public SharedHashMapBuilder entrySize(int entrySize) {
         this.entrySize = entrySize;
         return this;
@@ -92,6 +123,120 @@ public class SharedHashMapBuilder implements Cloneable {
         return entrySize;
     }
 
+    /**
+     * The maximum number of entrySize blocks one entry can use.  Each thread using the map has buffers of
+     * entrySize * maxEntryOversizeFactor bytes for serializing keys and values.
+     *
+     * @param maxEntryOversizeFactor the maximum number of blocks per entry, at least 1.
+     */
+    public SharedHashMapBuilder maxEntryOversizeFactor(int maxEntryOversizeFactor) {
+        if (maxEntryOversizeFactor < 1)
+            throw new IllegalArgumentException("maxEntryOversizeFactor must be at least 1 was " + maxEntryOversizeFactor);
+        this.maxEntryOversizeFactor = maxEntryOversizeFactor;
+        return this;
+    }
+
+    public int maxEntryOversizeFactor() {
+        return maxEntryOversizeFactor;
+    }
+
+    /**
+     * Lets the map grow while it is in use.  When a segment is full, a free segment sized tier at the end
+     * of the file is chained to it.  Tiers are shared by all the segments and are mapped by every process
+     * from the start, in a sparse file which only uses disk space for the tiers in use.
+     *
+     * @param overflowTiers the maximum number of tiers the file can grow by, 0 for a fixed size.
+     */
+    public SharedHashMapBuilder overflowTiers(int overflowTiers) {
+        if (overflowTiers < 0)
+            throw new IllegalArgumentException("overflowTiers must not be negative was " + overflowTiers);
+        this.overflowTiers = overflowTiers;
+        return this;
+    }
+
+    public int overflowTiers() {
+        return overflowTiers;
+    }
+
+    /**
+     * How keys are hashed, which is recorded in the file when it is created, VANILLA by default.  A map of an
+     * existing file uses the hasher recorded, so this only has to be set to open a file created with a custom
+     * hasher.  XX_HASH_64 is faster for long keys and spreads keys which differ in only a few bits better.
+     */
+    public SharedHashMapBuilder keyHasher(KeyHasher keyHasher) {
+        if (keyHasher == null)
+            throw new NullPointerException();
+        this.keyHasher = keyHasher;
+        return this;
+    }
+
+    public KeyHasher keyHasher() {
+        return keyHasher;
+    }
+
+    /**
+     * How each segment's hash lookup is laid out, which is recorded in the file when it is created.
+     */
+    public SharedHashMapBuilder hashLookupType(HashLookupType hashLookupType) {
+        if (hashLookupType == null)
+            throw new NullPointerException();
+        this.hashLookupType = hashLookupType;
+        return this;
+    }
+
+    public HashLookupType hashLookupType() {
+        return hashLookupType;
+    }
+
+    /**
+     * Segments of up to 64K entries keep 16 bits of each key's hash in the hash lookup, so keys which
+     * only share those bits are told apart by comparing the key in the entry.  This keeps 32 bits, in
+     * a hash lookup twice the size, so few such keys are read.  Larger segments always keep 32 bits.
+     * This is recorded in the file when it is created.
+     */
+    public SharedHashMapBuilder wideHashLookup(boolean wideHashLookup) {
+        this.wideHashLookup = wideHashLookup;
+        return this;
+    }
+
+    public boolean wideHashLookup() {
+        return wideHashLookup;
+    }
+
+    /**
+     * How long entries are visible for after they are put, or 0 for entries which never expire.  Each entry
+     * records when it expires after any metaDataBytes, so this is recorded in the file when it is created.
+     * Long.MAX_VALUE makes room for entries put with their own time to live while others never expire.
+     * Expired entries are counted by size() until they are removed.
+     */
+    public SharedHashMapBuilder timeToLiveMS(long timeToLiveMS) {
+        if (timeToLiveMS < 0)
+            throw new IllegalArgumentException("timeToLiveMS must not be negative was " + timeToLiveMS);
+        this.timeToLiveMS = timeToLiveMS;
+        return this;
+    }
+
+    public long timeToLiveMS() {
+        return timeToLiveMS;
+    }
+
+    /**
+     * What a segment does when a new entry doesn't fit and it has no overflow tier left to add.  Other than NONE,
+     * each entry records when it was last accessed after its deadline, so this is recorded in the file when it is
+     * created.  Lookups mark the entry they find, so optimisticReads has no effect.  With replicas, an evicted
+     * entry is freed at once and not passed to the replicas as a removal, as it only makes room in this map.
+     */
+    public SharedHashMapBuilder evictionPolicy(EvictionPolicy evictionPolicy) {
+        if (evictionPolicy == null)
+            throw new NullPointerException("evictionPolicy");
+        this.evictionPolicy = evictionPolicy;
+        return this;
+    }
+
+    public EvictionPolicy evictionPolicy() {
+        return evictionPolicy;
+    }
+
     public SharedHashMapBuilder entries(long entries) {
         this.entries = entries;
         return this;
@@ -101,7 +246,17 @@ public class SharedHashMapBuilder implements Cloneable {
         return entries;
     }
 
+    /**
+     * The number of replicas which drain the changes to the map with SharedHashMap.drainChanges(), up to 64,
+     * e.g. to stream them to other JVMs with a SharedHashMapTcpReplicator per replica.  Each entry records when
+     * it was last changed, each segment tracks which entries have changed for each replica, and removed entries
+     * are kept with when they were removed until every replica has drained the removal and tombstoneRetentionMS
+     * has passed, so expired or evicted entries only free their space then.  This is recorded in the file when it
+     * is created.
+     */
     public SharedHashMapBuilder replicas(int replicas) {
+        if (replicas < 0 || replicas > 64)
+            throw new IllegalArgumentException("replicas must be between 0 and 64 was " + replicas);
         this.replicas = replicas;
         return this;
     }
@@ -110,6 +265,20 @@ public class SharedHashMapBuilder implements Cloneable {
         return replicas;
     }
 
+    /**
+     * Identifies the changes made to this map when they are applied to the maps it replicates to, so changes
+     * made at the same time to two maps are resolved the same way by both.  Each map replicating to others needs its
+     * own identifier, which is recorded in the file when it is created.
+     */
+    public SharedHashMapBuilder identifier(byte identifier) {
+        this.identifier = identifier;
+        return this;
+    }
+
+    public byte identifier() {
+        return identifier;
+    }
+
     public SharedHashMapBuilder actualEntriesPerSegment(int actualEntriesPerSegment) {
         this.actualEntriesPerSegment = actualEntriesPerSegment;
         return this;
@@ -146,7 +315,8 @@ public class SharedHashMapBuilder implements Cloneable {
     }
 
     /**
-     * Not supported yet.
+     * Whether SharedHashMap.transaction() can be used to change several keys together.  This is recorded in the
+     * file, so every process opening it can recover the transactions of a process which died, see redoLog().
      */
     public SharedHashMapBuilder transactional(boolean transactional) {
         this.transactional = transactional;
@@ -158,15 +328,49 @@ public class SharedHashMapBuilder implements Cloneable {
     }
 
     public <K, V> SharedHashMap<K, V> create(File file, Class<K> kClass, Class<V> vClass) throws IOException {
+        SharedHashMapBuilder builder = openFile(file, MAGIC);
+        return new VanillaSharedHashMap<K, V>(builder, file, kClass, vClass);
+    }
+
+    /**
+     * Creates a map of long keys to long values, stored inline in fixed size slots.
+     * Only the entries, segments, lock and listener settings apply.
+     */
+    public SharedLongLongMap createLongLongMap(File file) throws IOException {
+        SharedHashMapBuilder builder = openFile(file, LONG_LONG_MAGIC);
+        return new VanillaSharedLongLongMap(builder, file);
+    }
+
+    /**
+     * Creates a map of int keys to int values, stored inline in fixed size slots.
+     * Only the entries, segments, lock and listener settings apply.
+     */
+    public SharedIntIntMap createIntIntMap(File file) throws IOException {
+        SharedHashMapBuilder builder = openFile(file, INT_INT_MAGIC);
+        return new VanillaSharedIntIntMap(builder, file);
+    }
+
+    /**
+     * Creates a map of long keys to values serialized in slots of entrySize bytes.
+     */
+    public <V> SharedLongObjMap<V> createLongObjMap(File file, Class<V> vClass) throws IOException {
+        SharedHashMapBuilder builder = openFile(file, LONG_OBJ_MAGIC);
+        return new VanillaSharedLongObjMap<V>(builder, file, vClass);
+    }
+
+    /**
+     * @return a copy of this builder with the settings recorded in the file, which is created if needed.
+     */
+    private SharedHashMapBuilder openFile(File file, byte[] magic) throws IOException {
         SharedHashMapBuilder builder = clone();
 
         for (int i = 0; i < 10; i++) {
             if (file.exists() && file.length() > 0) {
-                readFile(file, builder);
+                readFile(file, builder, magic);
                 break;
             }
             if (file.createNewFile() || file.length() == 0) {
-                newFile(file);
+                newFile(file, magic);
                 break;
             }
             try {
@@ -177,10 +381,10 @@ public class SharedHashMapBuilder implements Cloneable {
         }
         if (builder == null || !file.exists())
             throw new FileNotFoundException("Unable to create " + file);
-        return new VanillaSharedHashMap<K, V>(builder, file, kClass, vClass);
+        return builder;
     }
 
-    private static void readFile(File file, SharedHashMapBuilder builder) throws IOException {
+    private static void readFile(File file, SharedHashMapBuilder builder, byte[] magic) throws IOException {
         ByteBuffer bb = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.nativeOrder());
         FileInputStream fis = new FileInputStream(file);
         fis.getChannel().read(bb);
@@ -189,7 +393,7 @@ public class SharedHashMapBuilder implements Cloneable {
         if (bb.remaining() < 22) throw new IOException("File too small, corrupted? " + file);
         byte[] bytes = new byte[8];
         bb.get(bytes);
-        if (!Arrays.equals(bytes, MAGIC))
+        if (!Arrays.equals(bytes, magic))
             throw new IOException("Unknown magic number, was " + new String(bytes, "ISO-8859-1"));
         builder.actualSegments(bb.getInt());
         builder.actualEntriesPerSegment(bb.getInt());
@@ -197,19 +401,58 @@ public class SharedHashMapBuilder implements Cloneable {
         builder.replicas(bb.getInt());
         builder.transactional(bb.get() == 'Y');
         builder.metaDataBytes(bb.get() & 0xFF);
+        builder.readWriteLocks(bb.get() == 'Y');
+        int maxEntryOversizeFactor = bb.getInt();
+        if (maxEntryOversizeFactor > 0) // zero in files written before it was recorded.
+            builder.maxEntryOversizeFactor(maxEntryOversizeFactor);
+        builder.overflowTiers(bb.getInt());
+        // zero, VANILLA, in files written before it was recorded.
+        int keyHasherId = bb.get() & 0xFF;
+        KeyHashers keyHasher = KeyHashers.forId(keyHasherId);
+        if (keyHasher != null)
+            builder.keyHasher(keyHasher);
+        else if (builder.keyHasher() instanceof KeyHashers)
+            throw new IOException("The keys of " + file + " are hashed by a custom KeyHasher, which the builder needs");
+        // zero, LINEAR_PROBING, in files written before it was recorded.
+        HashLookupType hashLookupType = HashLookupType.forId(bb.get() & 0xFF);
+        if (hashLookupType == null)
+            throw new IOException("Unknown hash lookup type in " + file);
+        builder.hashLookupType(hashLookupType);
+        builder.wideHashLookup(bb.get() == 'Y');
+        // zero, NONE, in files written before it was recorded.
+        EvictionPolicy evictionPolicy = EvictionPolicy.forId(bb.get() & 0xFF);
+        if (evictionPolicy == null)
+            throw new IOException("Unknown eviction policy in " + file);
+        builder.evictionPolicy(evictionPolicy);
+        builder.identifier(bb.get());
+        bb.position(TIME_TO_LIVE_OFFSET);
+        builder.timeToLiveMS(bb.getLong());
         if (builder.actualSegments() <= 0 || builder.actualEntriesPerSegment() <= 0 || builder.entrySize() <= 0)
             throw new IOException("Corrupt header for " + file);
     }
 
-    private void newFile(File file) throws IOException {
+    private void newFile(File file, byte[] magic) throws IOException {
         ByteBuffer bb = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.nativeOrder());
-        bb.put(MAGIC);
+        bb.put(magic);
         bb.putInt(actualSegments());
         bb.putInt(actualEntriesPerSegment());
         bb.putInt(entrySize());
         bb.putInt(replicas());
         bb.put((byte) (transactional ? 'Y' : 'N'));
         bb.put((byte) metaDataBytes);
+        bb.put((byte) (readWriteLocks ? 'Y' : 'N'));
+        bb.putInt(maxEntryOversizeFactor);
+        bb.putInt(overflowTiers);
+        bb.put((byte) KeyHashers.idOf(keyHasher));
+        bb.put((byte) hashLookupType.ordinal());
+        bb.put((byte) (wideHashLookup ? 'Y' : 'N'));
+        bb.put((byte) evictionPolicy.ordinal());
+        bb.put(identifier);
+        bb.position(TIME_TO_LIVE_OFFSET);
+        bb.putLong(timeToLiveMS);
+        // a new file is empty so there is nothing to count.
+        bb.position(SIZE_COUNTED_OFFSET);
+        bb.putInt(1);
         bb.flip();
         FileOutputStream fos = new FileOutputStream(file);
         fos.getChannel().write(bb);
@@ -225,6 +468,83 @@ public class SharedHashMapBuilder implements Cloneable {
         return lockTimeOutMS;
     }
 
+    /**
+     * When changes are synced to the file, see Durability.  This applies to the process creating the map only,
+     * so it isn't recorded in the file.
+     */
+    public SharedHashMapBuilder durability(Durability durability) {
+        if (durability == null)
+            throw new NullPointerException("durability");
+        this.durability = durability;
+        return this;
+    }
+
+    public Durability durability() {
+        return durability;
+    }
+
+    /**
+     * How often the changed segments are synced with Durability.PERIODIC.
+     */
+    public SharedHashMapBuilder syncPeriodMS(long syncPeriodMS) {
+        if (syncPeriodMS <= 0)
+            throw new IllegalArgumentException("syncPeriodMS must be positive was " + syncPeriodMS);
+        this.syncPeriodMS = syncPeriodMS;
+        return this;
+    }
+
+    public long syncPeriodMS() {
+        return syncPeriodMS;
+    }
+
+    /**
+     * The number of threads which load every segment into memory when the map is opened, or 0 (the default) to
+     * only set up a segment when it is first accessed, so opening a large map doesn't wait for all of it to be
+     * paged in.  This applies to the process opening the map only, so it isn't recorded in the file.
+     */
+    public SharedHashMapBuilder warmUpThreads(int warmUpThreads) {
+        if (warmUpThreads < 0)
+            throw new IllegalArgumentException("warmUpThreads must not be negative was " + warmUpThreads);
+        this.warmUpThreads = warmUpThreads;
+        return this;
+    }
+
+    public int warmUpThreads() {
+        return warmUpThreads;
+    }
+
+    /**
+     * Whether a transactional map writes the changes of a transaction to a log before making them, so if the
+     * process dies part way through, they are made by the process which recovers the locks it held.  Without it,
+     * such a transaction can be left partly made.  The log is synced to disk unless the durability is NONE.  This
+     * applies to the process opening the map only, so it isn't recorded in the file.
+     */
+    public SharedHashMapBuilder redoLog(boolean redoLog) {
+        this.redoLog = redoLog;
+        return this;
+    }
+
+    public boolean redoLog() {
+        return redoLog;
+    }
+
+    /**
+     * How long a removal is kept after every replica has drained it, so a put of the key from before the removal
+     * which a peer sends again, e.g. when a SharedHashMapTcpReplicator reconnects, doesn't bring the key back.
+     * Removals older than this are freed as the segment's changes are drained.  This applies to the process opening
+     * the map only, so it isn't recorded in the file.
+     */
+    public SharedHashMapBuilder tombstoneRetentionMS(long tombstoneRetentionMS) {
+        if (tombstoneRetentionMS < 0)
+            throw new IllegalArgumentException("tombstoneRetentionMS must not be negative was " + tombstoneRetentionMS);
+        this.tombstoneRetentionMS = tombstoneRetentionMS;
+        return this;
+    }
+
+    public long tombstoneRetentionMS() {
+        return tombstoneRetentionMS;
+    }
+
     public SharedHashMapBuilder errorListener(SharedMapErrorListener errorListener) {
         this.errorListener = errorListener;
         return this;
@@ -309,6 +629,40 @@ public class SharedHashMapBuilder implements Cloneable {
     }
 
 
+    /**
+     * Lookups with get(), getUsing(), containsKey() and acquireUsing() of an existing key read the segment without
+     * taking its lock, and retry if a writer modified the segment meanwhile.  Writers always maintain the segment
+     * version, so this can be set per process.  It has no effect if an eventListener is set as the listener is called
+     * while the lock is held.
+     *
+     * @param optimisticReads true if lookups should try reading without the segment lock first.
+     */
+    public SharedHashMapBuilder optimisticReads(boolean optimisticReads) {
+        this.optimisticReads = optimisticReads;
+        return this;
+    }
+
+    public boolean optimisticReads() {
+        return optimisticReads;
+    }
+
+    /**
+     * Segment locks are shared by readers and exclusive for writers, so containsKey(), get() and getUsing() can run
+     * concurrently in many processes.  The thread holding the lock exclusively can take it again, shared or
+     * exclusively, e.g. from an eventListener, but a thread holding it shared can't.  Lookups still take it
+     * exclusively if an eventListener is set.  This is recorded in the file, so all processes use the same kind of lock.
+     *
+     * @param readWriteLocks true if segment locks should have a shared mode for lookups.
+     */
+    public SharedHashMapBuilder readWriteLocks(boolean readWriteLocks) {
+        this.readWriteLocks = readWriteLocks;
+        return this;
+    }
+
+    public boolean readWriteLocks() {
+        return readWriteLocks;
+    }
+
     public SharedHashMapBuilder metaDataBytes(int metaDataBytes) {
         if ((metaDataBytes & 0xFF) != metaDataBytes)
             throw new IllegalArgumentException("MetaDataBytes must be [0..255] was " + metaDataBytes);
@@ -336,16 +690,31 @@ public class SharedHashMapBuilder implements Cloneable {
                 (actualSegments > 0 ? ", actualSegments=" + actualSegments() : ", minSegments=" + minSegments()) +
                 ", actualEntriesPerSegment=" + actualEntriesPerSegment() +
                 ", entrySize=" + entrySize() +
+                ", maxEntryOversizeFactor=" + maxEntryOversizeFactor() +
+                ", overflowTiers=" + overflowTiers() +
+                ", keyHasher=" + keyHasher() +
+                ", hashLookupType=" + hashLookupType() +
+                ", wideHashLookup=" + wideHashLookup() +
+                ", timeToLiveMS=" + timeToLiveMS() +
+                ", evictionPolicy=" + evictionPolicy() +
                 ", entries=" + entries() +
                 ", replicas=" + replicas() +
+                ", identifier=" + identifier() +
                 ", transactional=" + transactional() +
                 ", lockTimeOutMS=" + lockTimeOutMS() +
+                ", durability=" + durability() +
+                ", syncPeriodMS=" + syncPeriodMS() +
+                ", warmUpThreads=" + warmUpThreads() +
+                ", redoLog=" + redoLog() +
+                ", tombstoneRetentionMS=" + tombstoneRetentionMS() +
                 ", errorListener=" + errorListener() +
                 ", putReturnsNull=" + putReturnsNull() +
                 ", removeReturnsNull=" + removeReturnsNull() +
                 ", generatedKeyType=" + generatedKeyType() +
                 ", generatedValueType=" + generatedValueType() +
                 ", largeSegments=" + largeSegments() +
+                ", optimisticReads=" + optimisticReads() +
+                ", readWriteLocks=" + readWriteLocks() +
                 ", metaDataBytes=" + metaDataBytes() +
                 ", eventListener=" + eventListener() +
                 '}';
@@ -362,15 +731,30 @@ public class SharedHashMapBuilder implements Cloneable {
         if (actualSegments() != that.actualSegments()) return false;
         if (entries() != that.entries()) return false;
         if (entrySize() != that.entrySize()) return false;
+        if (maxEntryOversizeFactor() != that.maxEntryOversizeFactor()) return false;
+        if (overflowTiers() != that.overflowTiers()) return false;
+        if (!keyHasher().equals(that.keyHasher())) return false;
+        if (hashLookupType() != that.hashLookupType()) return false;
+        if (wideHashLookup() != that.wideHashLookup()) return false;
+        if (timeToLiveMS() != that.timeToLiveMS()) return false;
+        if (evictionPolicy() != that.evictionPolicy()) return false;
         if (generatedKeyType() != that.generatedKeyType()) return false;
         if (generatedValueType() != that.generatedValueType()) return false;
         if (lockTimeOutMS() != that.lockTimeOutMS()) return false;
+        if (durability() != that.durability()) return false;
+        if (syncPeriodMS() != that.syncPeriodMS()) return false;
+        if (warmUpThreads() != that.warmUpThreads()) return false;
+        if (redoLog() != that.redoLog()) return false;
+        if (tombstoneRetentionMS() != that.tombstoneRetentionMS()) return false;
         if (minSegments() != that.minSegments()) return false;
         if (putReturnsNull() != that.putReturnsNull()) return false;
         if (removeReturnsNull() != that.removeReturnsNull()) return false;
         if (replicas() != that.replicas()) return false;
+        if (identifier() != that.identifier()) return false;
         if (transactional() != that.transactional()) return false;
         if (metaDataBytes() != that.metaDataBytes()) return false;
+        if (optimisticReads() != that.optimisticReads()) return false;
+        if (readWriteLocks() != that.readWriteLocks()) return false;
         return errorListener().equals(that.errorListener());
 
     }
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectBytes;
+import net.openhft.lang.io.DirectStore;
+import net.openhft.lang.io.MultiStoreBytes;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies the changes to one {@link SharedHashMap} to another, e.g. a hot standby in a file on another disk, by
+ * draining the changes of one of the source's replicas.  Only the entries put or removed since the last pass are
+ * copied, and the target can have a different number of segments or be mapped by other processes.
+ * <p/>
+ * The changes of each segment are copied holding the source segment's lock, then applied to the target after it is
+ * released, so replicators can copy two maps to each other without deadlocking.  The target's put and remove are
+ * used, so it should be created with putReturnsNull and removeReturnsNull to avoid deserializing old values.
+ */
+public class SharedHashMapReplicator implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(SharedHashMapReplicator.class.getName());
+    private static final int INITIAL_BUFFER = 64 * 1024;
+
+    private final SharedHashMap<?, ?> source;
+    private final int replica;
+    private final SharedHashMap<?, ?> target;
+    private final long lagTargetMS;
+    private final int segments;
+
+    // the changes of a segment, as the key's length and bytes then the value's length plus one and bytes,
+    // or 0 for a removal.
+    private DirectStore store;
+    private DirectBytes buffer;
+    private final MultiStoreBytes keyBytes = new MultiStoreBytes();
+    private final MultiStoreBytes valueBytes = new MultiStoreBytes();
+
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong removals = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong passNanos = new AtomicLong();
+    private volatile long lastPassNanos = 0;
+    private volatile long maxPassNanos = 0;
+    // when the last pass to complete started, as every change before then has been copied.
+    private volatile long copiedUpToMS = 0;
+
+    private volatile boolean running = false;
+    private Thread thread = null;
+
+    /**
+     * @param source      with replicas, one of which is drained by this replicator only.
+     * @param replica     of the source to drain.
+     * @param target      to copy the changes to.
+     * @param lagTargetMS how long a change can take to be copied by the thread start() runs.
+     */
+    public SharedHashMapReplicator(SharedHashMap<?, ?> source, int replica, SharedHashMap<?, ?> target,
+                                   long lagTargetMS) {
+        int replicas = source.builder().replicas();
+        if (replica < 0 || replica >= replicas)
+            throw new IllegalArgumentException("replica must be between 0 and " + replicas + " was " + replica);
+        if (lagTargetMS <= 0)
+            throw new IllegalArgumentException("lagTargetMS must be positive was " + lagTargetMS);
+        this.source = source;
+        this.replica = replica;
+        this.target = target;
+        this.lagTargetMS = lagTargetMS;
+        this.segments = source.builder().actualSegments();
+        store = new DirectStore(null, INITIAL_BUFFER, false);
+        buffer = store.createSlice();
+    }
+
+    /**
+     * Copies the changes made since the last pass, one segment at a time.  A change which fails to apply, e.g. as
+     * the target is full, is logged and counted by failures() rather than retried.
+     *
+     * @return the number of changes copied.
+     */
+    public synchronized int replicate() {
+        long startMS = System.currentTimeMillis();
+        long start = System.nanoTime();
+        int count = 0;
+        SharedHashMap.BytesEntryConsumer copier = new SharedHashMap.BytesEntryConsumer() {
+            @Override
+            public void accept(Bytes key, Bytes value) {
+                copy(key, value);
+            }
+        };
+        for (int i = 0; i < segments; i++) {
+            buffer.clear();
+            if (source.drainChanges(replica, i, copier) == 0)
+                continue;
+            count += apply();
+        }
+        long nanos = System.nanoTime() - start;
+        lastPassNanos = nanos;
+        if (nanos > maxPassNanos)
+            maxPassNanos = nanos;
+        passNanos.addAndGet(nanos);
+        passes.incrementAndGet();
+        copiedUpToMS = startMS;
+        return count;
+    }
+
+    private void copy(Bytes key, Bytes value) {
+        long keyLength = key.remaining();
+        long valueLength = value == null ? -1 : value.remaining();
+        ensureRoom(20 + keyLength + Math.max(0, valueLength));
+        buffer.writeStopBit(keyLength);
+        buffer.write(key, key.position(), keyLength);
+        buffer.writeStopBit(valueLength + 1);
+        if (value != null)
+            buffer.write(value, value.position(), valueLength);
+    }
+
+    private void ensureRoom(long needed) {
+        if (buffer.remaining() >= needed)
+            return;
+        DirectStore bigger = new DirectStore(null, Math.max(store.size() * 2, buffer.position() + needed), false);
+        DirectBytes biggerBuffer = bigger.createSlice();
+        biggerBuffer.write(buffer, 0, buffer.position());
+        store.free();
+        store = bigger;
+        buffer = biggerBuffer;
+    }
+
+    /**
+     * Applies the changes copied from a segment to the target.
+     */
+    private int apply() {
+        long end = buffer.position();
+        bytes.addAndGet(end);
+        buffer.position(0);
+        int count = 0;
+        while (buffer.position() < end) {
+            long keyLength = buffer.readStopBit();
+            keyBytes.storePositionAndSize(store, buffer.position(), keyLength);
+            buffer.skip(keyLength);
+            long valueLength = buffer.readStopBit() - 1;
+            try {
+                if (valueLength < 0) {
+                    target.remove(keyBytes);
+                    removals.incrementAndGet();
+                } else {
+                    valueBytes.storePositionAndSize(store, buffer.position(), valueLength);
+                    buffer.skip(valueLength);
+                    target.put(keyBytes, valueBytes);
+                }
+                count++;
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                LOGGER.log(Level.SEVERE, "Failed to copy a change from " + source.file() + " to " + target.file(), e);
+            }
+        }
+        changes.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * Starts a daemon thread which copies the changes twice per lagTargetMS, so a change is copied within about
+     * lagTargetMS unless a pass takes longer.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            throw new IllegalStateException("Already started");
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long intervalNS = TimeUnit.MILLISECONDS.toNanos(lagTargetMS) / 2;
+                while (running) {
+                    long start = System.nanoTime();
+                    try {
+                        replicate();
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.SEVERE, "Failed to replicate " + source.file(), e);
+                    }
+                    long sleepNS = intervalNS - (System.nanoTime() - start);
+                    if (sleepNS > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(sleepNS);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+            }
+        }, "replicator-" + source.file().getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread start() started, waiting for its pass to finish, and frees the buffer.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = this.thread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (store != null) {
+                store.free();
+                store = null;
+                buffer = null;
+            }
+        }
+    }
+
+    public long lagTargetMS() {
+        return lagTargetMS;
+    }
+
+    /**
+     * @return how long ago the last pass to complete started, as changes before then have been copied.
+     */
+    public long lagMS() {
+        long copiedUpToMS = this.copiedUpToMS;
+        return copiedUpToMS == 0 ? Long.MAX_VALUE : System.currentTimeMillis() - copiedUpToMS;
+    }
+
+    /**
+     * @return the number of changes copied, including removals.
+     */
+    public long changes() {
+        return changes.get();
+    }
+
+    public long removals() {
+        return removals.get();
+    }
+
+    /**
+     * @return the bytes of keys and values copied.
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    public long failures() {
+        return failures.get();
+    }
+
+    public long passes() {
+        return passes.get();
+    }
+
+    public long lastPassNanos() {
+        return lastPassNanos;
+    }
+
+    public long maxPassNanos() {
+        return maxPassNanos;
+    }
+
+    /**
+     * @return the changes copied per second of the passes which copied them.
+     */
+    public double changesPerSecond() {
+        long nanos = passNanos.get();
+        return nanos == 0 ? 0 : changes.get() * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "SharedHashMapReplicator{" +
+                "source=" + source.file() +
+                ", replica=" + replica +
+                ", target=" + target.file() +
+                ", lagTargetMS=" + lagTargetMS +
+                ", lagMS=" + lagMS() +
+                ", changes=" + changes() +
+                ", removals=" + removals() +
+                ", bytes=" + bytes() +
+                ", failures=" + failures() +
+                ", passes=" + passes() +
+                ", maxPassNanos=" + maxPassNanos() +
+                ", changesPerSecond=" + changesPerSecond() +
+                '}';
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.ByteBufferBytes;
+import net.openhft.lang.io.Bytes;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Writes the live entries of a {@link SharedHashMap} to a compact sequential file, and restores a map from one.
+ * A map file is sized for its maximum number of entries, whereas a snapshot only holds the serialized keys and
+ * values, without the free blocks, hash lookups or expired and removed entries.
+ * <p/>
+ * A snapshot is a header of the magic "SharedSS", the number of segments, the id of the KeyHasher and the number
+ * of entries, then a section per segment of its number of entries and their length in bytes, then each key's stop
+ * bit length and bytes followed by the value's.  It is written in the native byte order, as the map file is.
+ * <p/>
+ * The entries' time to live and meta data are not kept, so restored entries get the map's default time to live.
+ */
+public class SharedHashMapSnapshot {
+    private static final byte[] MAGIC = "SharedSS".getBytes();
+    static final int HEADER = 24;
+    static final int SECTION_HEADER = 8;
+    private static final int INITIAL_SECTION = 64 * 1024;
+
+    private SharedHashMapSnapshot() {
+    }
+
+    /**
+     * Writes the entries of each segment in turn, holding its lock only while they are copied to a buffer.  The
+     * snapshot is consistent per segment, not across the map, if it is changed while the snapshot is written.
+     *
+     * @return the number of entries written.
+     */
+    public static long write(SharedHashMap<?, ?> map, File snapshot) throws IOException {
+        int segments = map.builder().actualSegments();
+        FileOutputStream out = new FileOutputStream(snapshot);
+        try {
+            FileChannel channel = out.getChannel();
+            channel.position(HEADER);
+            Section section = new Section();
+            long entries = 0;
+            for (int i = 0; i < segments; i++) {
+                section.clear();
+                map.forEachBytes(i, section);
+                entries += section.count;
+                section.writeTo(channel);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.nativeOrder());
+            header.put(MAGIC);
+            header.putInt(segments);
+            header.putInt(KeyHashers.idOf(map.builder().keyHasher()));
+            header.putLong(entries);
+            header.flip();
+            writeFully(channel, header, 0);
+            channel.force(false);
+            return entries;
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Creates a map from a snapshot.  If the map has the same number of segments and KeyHasher as the map the
+     * snapshot was taken of, each segment is restored by a task which reads its section and puts all its entries
+     * holding the segment's lock once, so the segments can be restored in parallel.  Otherwise the entries are put
+     * one at a time.
+     *
+     * @param builder  of the map to restore, which should have room for the entries.
+     * @param file     of the map, which must not exist yet.
+     * @param executor to restore the segments in parallel, or null to restore them in the calling thread.
+     */
+    public static <K, V> SharedHashMap<K, V> restore(File snapshot, SharedHashMapBuilder builder, File file,
+                                                     Class<K> kClass, Class<V> vClass, ExecutorService executor)
+            throws IOException {
+        if (file.exists())
+            throw new IOException(file + " already exists, a snapshot is restored to a new map");
+        FileInputStream in = new FileInputStream(snapshot);
+        SharedHashMap<K, V> map = null;
+        try {
+            final FileChannel channel = in.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.nativeOrder());
+            readFully(channel, header, 0);
+            header.flip();
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException(snapshot + " is not a snapshot of a SharedHashMap");
+            int segments = header.getInt();
+            int keyHasherId = header.getInt();
+            long entries = header.getLong();
+            final long[] offsets = sections(channel, segments);
+
+            map = builder.create(file, kClass, vClass);
+            long restored = 0;
+            if (segments == map.builder().actualSegments() && keyHasherId != KeyHashers.CUSTOM_ID
+                    && map.builder().keyHasher() == KeyHashers.forId(keyHasherId)) {
+                final VanillaSharedHashMap<K, V> vmap = (VanillaSharedHashMap<K, V>) map;
+                List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+                for (int i = 0; i < segments; i++) {
+                    final int segment = i;
+                    tasks.add(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws IOException {
+                            ByteBuffer section = readSection(channel, offsets[segment]);
+                            return vmap.putAll(segment, section);
+                        }
+                    });
+                }
+                try {
+                    for (int count : VanillaSharedHashMap.invokeAll(tasks, executor))
+                        restored += count;
+                } catch (IllegalStateException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    throw e;
+                }
+            } else {
+                for (int i = 0; i < segments; i++)
+                    restored += putAll(map, readSection(channel, offsets[i]));
+            }
+            if (restored != entries)
+                throw new IOException("Restored " + restored + " of the " + entries + " entries in " + snapshot);
+            return map;
+        } catch (IOException e) {
+            if (map != null)
+                map.close();
+            throw e;
+        } catch (RuntimeException e) {
+            if (map != null)
+                map.close();
+            throw e;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return where each section starts, read from their headers.
+     */
+    private static long[] sections(FileChannel channel, int segments) throws IOException {
+        long[] offsets = new long[segments];
+        ByteBuffer header = ByteBuffer.allocate(SECTION_HEADER).order(ByteOrder.nativeOrder());
+        long offset = HEADER;
+        for (int i = 0; i < segments; i++) {
+            offsets[i] = offset;
+            header.clear();
+            readFully(channel, header, offset);
+            offset += SECTION_HEADER + header.getInt(4);
+        }
+        return offsets;
+    }
+
+    /**
+     * @return the entries of the section starting at the offset, from position to limit.
+     */
+    private static ByteBuffer readSection(FileChannel channel, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SECTION_HEADER).order(ByteOrder.nativeOrder());
+        readFully(channel, header, offset);
+        ByteBuffer section = ByteBuffer.allocateDirect(header.getInt(4)).order(ByteOrder.nativeOrder());
+        readFully(channel, section, offset + SECTION_HEADER);
+        section.flip();
+        return section;
+    }
+
+    private static int putAll(SharedHashMap<?, ?> map, ByteBuffer section) {
+        ByteBufferBytes keyBytes = new ByteBufferBytes(section);
+        ByteBufferBytes valueBytes = new ByteBufferBytes(section);
+        long position = 0;
+        int count = 0;
+        while (position < section.limit()) {
+            keyBytes.limit(section.limit());
+            keyBytes.position(position);
+            long keyLength = keyBytes.readStopBit();
+            long keyPosition = keyBytes.position();
+            valueBytes.limit(section.limit());
+            valueBytes.position(keyPosition + keyLength);
+            long valueLength = valueBytes.readStopBit();
+            position = valueBytes.position() + valueLength;
+            valueBytes.limit(position);
+            keyBytes.limit(keyPosition + keyLength);
+            map.put(keyBytes, valueBytes);
+            count++;
+        }
+        return count;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset + buffer.position());
+            if (read < 0)
+                throw new EOFException("The snapshot ends at " + (offset + buffer.position()));
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer, offset + buffer.position());
+    }
+
+    /**
+     * The entries of a segment, copied holding its lock.
+     */
+    static final class Section implements SharedHashMap.BytesEntryConsumer {
+        private ByteBuffer buffer;
+        private ByteBufferBytes bytes;
+        int count;
+
+        Section() {
+            setBuffer(ByteBuffer.allocateDirect(INITIAL_SECTION));
+        }
+
+        private void setBuffer(ByteBuffer buffer) {
+            this.buffer = buffer;
+            bytes = new ByteBufferBytes(buffer);
+        }
+
+        void clear() {
+            // the buffer's limit bounds the writes as well.
+            buffer.clear();
+            bytes.position(SECTION_HEADER);
+            count = 0;
+        }
+
+        @Override
+        public void accept(Bytes key, Bytes value) {
+            long keyLength = key.remaining();
+            long valueLength = value.remaining();
+            ensureRoom(10 + keyLength + valueLength);
+            bytes.writeStopBit(keyLength);
+            bytes.write(key, key.position(), keyLength);
+            bytes.writeStopBit(valueLength);
+            bytes.write(value, value.position(), valueLength);
+            count++;
+        }
+
+        private void ensureRoom(long needed) {
+            if (bytes.remaining() >= needed)
+                return;
+            int position = (int) bytes.position();
+            ByteBuffer bigger = ByteBuffer.allocateDirect((int) Math.max(buffer.capacity() * 2L, position + needed));
+            buffer.clear();
+            buffer.limit(position);
+            bigger.put(buffer);
+            setBuffer(bigger);
+            bytes.position(position);
+        }
+
+        void writeTo(FileChannel channel) throws IOException {
+            int length = (int) bytes.position();
+            bytes.writeInt(0, count);
+            bytes.writeInt(4, length - SECTION_HEADER);
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
+}
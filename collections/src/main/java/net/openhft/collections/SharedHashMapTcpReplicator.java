@@ -0,0 +1,524 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.ByteBufferBytes;
+import net.openhft.lang.io.Bytes;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams the changes to a {@link SharedHashMap} to a map in another JVM over TCP, and applies the changes the
+ * other JVM streams back, so the two maps converge.  Each end drains one of its map's replicas, and a map can be
+ * linked to as many peers as it has replicas.  One end listens and the other connects.
+ * <p/>
+ * Changes are drained a segment at a time and many are sent in each write, as frames of the length of the
+ * changes, their count, then for each change the key's length and bytes, the value's length plus one and bytes
+ * or 0 for a removal, the timestamp and the identifier of the map it was made to.  A frame received is applied
+ * with a {@link SharedHashMap.ChangeBatch}, which takes the lock of each segment once.  When both maps change
+ * a key, the change with the later timestamp wins, then the one made to the map with the higher identifier, so
+ * the maps should be given different identifiers.
+ * <p/>
+ * Changes drained for the peer are lost if the connection drops before the peer applies them.  So each time a
+ * connection is made, every entry and removal the map holds is marked changed for the peer and sent again, and
+ * the maps converge once both ends have sent theirs.
+ */
+public class SharedHashMapTcpReplicator implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(SharedHashMapTcpReplicator.class.getName());
+    // the changes sent per write, unless one segment has more.
+    static final int BATCH_BYTES = 64 * 1024;
+    private static final int FRAME_HEADER = 8;
+    // the most a change adds to a frame besides its key and value.
+    private static final int CHANGE_OVERHEAD = 5 + 5 + 8 + 1;
+
+    private final SharedHashMap<?, ?> map;
+    private final int replica;
+    private final InetSocketAddress address;
+    private final long lagTargetMS;
+    private final int segments;
+    private final SharedHashMap.ChangeBatch batch;
+    private final Selector selector;
+    // set for the listening end only.
+    private final ServerSocketChannel server;
+    private SocketChannel channel = null;
+    private boolean connected = false;
+
+    // the frame being sent, which is drained into up to its limit and written from its position.
+    private ByteBuffer out;
+    private ByteBufferBytes outBytes;
+    private int nextSegment = 0;
+    private long nextDrainMS = 0;
+    // the frames being received.
+    private ByteBuffer in;
+    private ByteBufferBytes frameBytes;
+    private ByteBufferBytes valueBytes;
+
+    private final AtomicLong changesSent = new AtomicLong();
+    private final AtomicLong changesReceived = new AtomicLong();
+    private final AtomicLong changesApplied = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+
+    private volatile boolean running = false;
+    private Thread thread = null;
+
+    /**
+     * Listens for a connection from the peer.
+     *
+     * @param map         with replicas, one of which is drained by this replicator only.
+     * @param replica     of the map to drain and send to the peer.
+     * @param address     to listen on, whose port can be 0 for any free port, see localAddress().
+     * @param lagTargetMS how long a change can take to be sent when the connection keeps up.
+     */
+    public static SharedHashMapTcpReplicator listen(SharedHashMap<?, ?> map, int replica, InetSocketAddress address,
+                                                    long lagTargetMS) throws IOException {
+        return new SharedHashMapTcpReplicator(map, replica, address, true, lagTargetMS);
+    }
+
+    /**
+     * Connects to a peer which listens, reconnecting if the connection is lost.
+     *
+     * @param address of the peer.
+     * @see #listen(SharedHashMap, int, java.net.InetSocketAddress, long)
+     */
+    public static SharedHashMapTcpReplicator connect(SharedHashMap<?, ?> map, int replica, InetSocketAddress address,
+                                                     long lagTargetMS) throws IOException {
+        return new SharedHashMapTcpReplicator(map, replica, address, false, lagTargetMS);
+    }
+
+    private SharedHashMapTcpReplicator(SharedHashMap<?, ?> map, int replica, InetSocketAddress address,
+                                       boolean listen, long lagTargetMS) throws IOException {
+        int replicas = map.builder().replicas();
+        if (replica < 0 || replica >= replicas)
+            throw new IllegalArgumentException("replica must be between 0 and " + replicas + " was " + replica);
+        if (lagTargetMS <= 0)
+            throw new IllegalArgumentException("lagTargetMS must be positive was " + lagTargetMS);
+        this.map = map;
+        this.replica = replica;
+        this.lagTargetMS = lagTargetMS;
+        this.segments = map.builder().actualSegments();
+        // changes received are not sent back to where they came from.
+        this.batch = map.changeBatch(replica);
+        setOut(ByteBuffer.allocateDirect(BATCH_BYTES));
+        out.limit(0);
+        setIn(ByteBuffer.allocateDirect(BATCH_BYTES));
+        selector = Selector.open();
+        if (listen) {
+            server = ServerSocketChannel.open();
+            try {
+                server.socket().setReuseAddress(true);
+                server.socket().bind(address);
+                server.configureBlocking(false);
+                server.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                server.close();
+                selector.close();
+                throw e;
+            }
+            this.address = (InetSocketAddress) server.socket().getLocalSocketAddress();
+        } else {
+            server = null;
+            this.address = address;
+        }
+    }
+
+    private void setOut(ByteBuffer out) {
+        this.out = out;
+        outBytes = new ByteBufferBytes(out);
+    }
+
+    private void setIn(ByteBuffer in) {
+        this.in = in;
+        frameBytes = new ByteBufferBytes(in);
+        valueBytes = new ByteBufferBytes(in);
+    }
+
+    /**
+     * @return the address listened on, or the address of the peer connected to.
+     */
+    public InetSocketAddress address() {
+        return address;
+    }
+
+    /**
+     * Starts a daemon thread which sends and receives the changes.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            throw new IllegalStateException("Already started");
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        process();
+                    } catch (IOException e) {
+                        if (running) {
+                            LOGGER.log(Level.WARNING, "Lost the connection to replicate " + map.file() + " with "
+                                    + address, e);
+                            disconnect();
+                        }
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.SEVERE, "Failed to replicate " + map.file() + " with " + address, e);
+                        disconnect();
+                    }
+                }
+                disconnect();
+            }
+        }, "tcp-replicator-" + map.file().getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Connects if not connected, waits for the channels to be ready for up to half of lagTargetMS, accepts,
+     * reads and writes whatever they are ready for, then drains more changes if the last were sent.
+     */
+    void process() throws IOException {
+        if (channel == null && server == null)
+            openChannel();
+        selector.select(Math.max(1, lagTargetMS / 2));
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid())
+                continue;
+            if (key.isAcceptable())
+                accept();
+            else if (key.isConnectable())
+                finishConnect();
+            else {
+                if (key.isReadable())
+                    read();
+                if (key.isValid() && key.isWritable())
+                    write();
+            }
+        }
+        if (connected && !out.hasRemaining() && System.currentTimeMillis() >= nextDrainMS) {
+            if (drain() > 0)
+                write();
+        }
+    }
+
+    private void openChannel() throws IOException {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        if (channel.connect(address))
+            connected();
+        else
+            channel.register(selector, SelectionKey.OP_CONNECT);
+    }
+
+    private void accept() throws IOException {
+        SocketChannel accepted = server.accept();
+        if (accepted == null)
+            return;
+        if (channel != null) {
+            LOGGER.warning("Already replicating " + map.file() + " replica " + replica + ", refusing "
+                    + accepted.socket().getRemoteSocketAddress());
+            accepted.close();
+            return;
+        }
+        channel = accepted;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        connected();
+    }
+
+    private void finishConnect() throws IOException {
+        try {
+            if (channel.finishConnect())
+                connected();
+        } catch (IOException e) {
+            // the peer may not be listening yet, so try again after a while.
+            closeChannel();
+            sleep();
+        }
+    }
+
+    private void connected() throws IOException {
+        connected = true;
+        connections.incrementAndGet();
+        // the changes drained before may not have been applied by the peer.
+        map.markAllChanged(replica);
+        out.limit(0);
+        nextDrainMS = 0;
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Drains the changes of the next segments into a frame, until it has BATCH_BYTES of them or every segment
+     * has been drained.
+     *
+     * @return the number of changes drained.
+     */
+    private int drain() {
+        out.clear();
+        outBytes.position(FRAME_HEADER);
+        final int[] count = {0};
+        SharedHashMap.ChangeConsumer writer = new SharedHashMap.ChangeConsumer() {
+            @Override
+            public void accept(Bytes key, Bytes value, long timestamp, byte identifier) {
+                long keyLength = key.remaining();
+                long valueLength = value == null ? -1 : value.remaining();
+                ensureRoom(CHANGE_OVERHEAD + keyLength + Math.max(0, valueLength));
+                outBytes.writeStopBit(keyLength);
+                outBytes.write(key, key.position(), keyLength);
+                outBytes.writeStopBit(valueLength + 1);
+                if (value != null)
+                    outBytes.write(value, value.position(), valueLength);
+                outBytes.writeLong(timestamp);
+                outBytes.writeByte(identifier);
+                count[0]++;
+            }
+        };
+        boolean full = false;
+        for (int i = 0; i < segments && !(full = outBytes.position() >= BATCH_BYTES); i++) {
+            map.drainChanges(replica, nextSegment, writer);
+            nextSegment = (nextSegment + 1) % segments;
+        }
+        // drain again straight away if a segment was left to drain.
+        nextDrainMS = full ? 0 : System.currentTimeMillis() + lagTargetMS / 2;
+        if (count[0] == 0) {
+            out.limit(0);
+            return 0;
+        }
+        int length = (int) outBytes.position();
+        out.limit(length);
+        out.putInt(0, length - FRAME_HEADER);
+        out.putInt(4, count[0]);
+        out.position(0);
+        changesSent.addAndGet(count[0]);
+        return count[0];
+    }
+
+    private void ensureRoom(long needed) {
+        if (outBytes.remaining() >= needed)
+            return;
+        int position = (int) outBytes.position();
+        ByteBuffer bigger = ByteBuffer.allocateDirect((int) Math.max(out.capacity() * 2L, position + needed));
+        out.limit(position);
+        out.position(0);
+        bigger.put(out);
+        setOut(bigger);
+        outBytes.position(position);
+    }
+
+    private void write() throws IOException {
+        if (!out.hasRemaining())
+            return;
+        bytesSent.addAndGet(channel.write(out));
+        writes.incrementAndGet();
+        // wait for the channel to be writable only while a frame is partly written.
+        channel.register(selector, out.hasRemaining()
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private void read() throws IOException {
+        int read = channel.read(in);
+        if (read < 0)
+            throw new EOFException("Closed by " + address);
+        bytesReceived.addAndGet(read);
+        int position = 0;
+        while (in.position() - position >= FRAME_HEADER) {
+            int length = in.getInt(position);
+            int end = position + FRAME_HEADER + length;
+            if (end > in.position()) {
+                if (FRAME_HEADER + length > in.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocateDirect(FRAME_HEADER + length);
+                    in.limit(in.position());
+                    in.position(position);
+                    bigger.put(in);
+                    setIn(bigger);
+                    position = 0;
+                }
+                break;
+            }
+            apply(position + FRAME_HEADER, in.getInt(position + 4));
+            position = end;
+        }
+        if (position > 0) {
+            in.limit(in.position());
+            in.position(position);
+            in.compact();
+        }
+    }
+
+    /**
+     * Applies the changes in a frame received.
+     */
+    private void apply(int offset, int count) {
+        ByteBufferBytes frame = frameBytes;
+        long position = offset;
+        for (int i = 0; i < count; i++) {
+            frame.limit(frame.capacity());
+            frame.position(position);
+            long keyLength = frame.readStopBit();
+            long keyPosition = frame.position();
+            frame.position(keyPosition + keyLength);
+            long valueLength = frame.readStopBit() - 1;
+            long valuePosition = frame.position();
+            long end = valuePosition + Math.max(0, valueLength);
+            long timestamp = frame.readLong(end);
+            byte identifier = frame.readByte(end + 8);
+            position = end + 9;
+            Bytes value = null;
+            if (valueLength >= 0) {
+                valueBytes.limit(end);
+                valueBytes.position(valuePosition);
+                value = valueBytes;
+            }
+            frame.limit(keyPosition + keyLength);
+            frame.position(keyPosition);
+            batch.accept(frame, value, timestamp, identifier);
+        }
+        changesReceived.addAndGet(count);
+        changesApplied.addAndGet(batch.flush());
+    }
+
+    private void sleep() {
+        try {
+            Thread.sleep(Math.max(1, lagTargetMS / 2));
+        } catch (InterruptedException e) {
+            running = false;
+        }
+    }
+
+    private void disconnect() {
+        closeChannel();
+        in.clear();
+        out.limit(0);
+        if (server == null && running)
+            sleep();
+    }
+
+    private void closeChannel() {
+        connected = false;
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Stops the thread start() started and closes the connection.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = this.thread;
+        }
+        selector.wakeup();
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            closeChannel();
+        }
+        try {
+            if (server != null)
+                server.close();
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to close the replicator of " + map.file(), e);
+        }
+    }
+
+    public long lagTargetMS() {
+        return lagTargetMS;
+    }
+
+    public long changesSent() {
+        return changesSent.get();
+    }
+
+    public long changesReceived() {
+        return changesReceived.get();
+    }
+
+    /**
+     * @return the changes received which were later than the map's own.
+     */
+    public long changesApplied() {
+        return changesApplied.get();
+    }
+
+    public long bytesSent() {
+        return bytesSent.get();
+    }
+
+    public long bytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return the number of writes to the connection, each of which can send many changes.
+     */
+    public long writes() {
+        return writes.get();
+    }
+
+    public long connections() {
+        return connections.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SharedHashMapTcpReplicator{" +
+                "map=" + map.file() +
+                ", replica=" + replica +
+                ", address=" + address +
+                ", connected=" + connected +
+                ", changesSent=" + changesSent() +
+                ", changesReceived=" + changesReceived() +
+                ", changesApplied=" + changesApplied() +
+                ", bytesSent=" + bytesSent() +
+                ", bytesReceived=" + bytesReceived() +
+                ", writes=" + writes() +
+                ", connections=" + connections() +
+                '}';
+    }
+}
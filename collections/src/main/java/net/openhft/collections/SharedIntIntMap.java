@@ -0,0 +1,75 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import java.io.Closeable;
+import java.io.File;
+
+/**
+ * A shared map of int keys to int values which are stored inline, so no operation allocates or boxes.
+ */
+public interface SharedIntIntMap extends Closeable {
+    /**
+     * @param key     to lookup.
+     * @param missing returned if the key is absent.
+     * @return the value for the key, or missing.
+     */
+    int get(int key, int missing);
+
+    /**
+     * @param key     to set the value of.
+     * @param value   to set.
+     * @param missing returned if the key was absent.
+     * @return the previous value for the key, or missing.
+     */
+    int put(int key, int value, int missing);
+
+    /**
+     * @param key     to remove.
+     * @param missing returned if the key was absent.
+     * @return the value removed, or missing.
+     */
+    int remove(int key, int missing);
+
+    boolean containsKey(int key);
+
+    /**
+     * Atomically adds to the value of a key, an absent key counting as 0.
+     *
+     * @param key   to add to.
+     * @param delta to add.
+     * @return the value after adding.
+     */
+    int addAndGet(int key, int delta);
+
+    long longSize();
+
+    void clear();
+
+    /**
+     * @return a builder which would configure a map the same as this one.
+     */
+    SharedHashMapBuilder builder();
+
+    /**
+     * @return The file for this map
+     */
+    File file();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import java.io.Closeable;
+import java.io.File;
+
+/**
+ * A shared map of long keys to values serialized in fixed size slots.  The key is stored inline
+ * so it is never boxed, values are copied in and out of the map.
+ */
+public interface SharedLongObjMap<V> extends Closeable {
+    /**
+     * @param key to lookup.
+     * @return a copy of the value found, or null if not.
+     */
+    V get(long key);
+
+    /**
+     * @param key   to lookup.
+     * @param value to read into if possible. If null, a new object will be created.
+     * @return value found or null if not.
+     */
+    V getUsing(long key, V value);
+
+    /**
+     * @param key   to set the value of.
+     * @param value to copy into the map.
+     * @return the previous value or null if absent, or always null if putReturnsNull is set.
+     */
+    V put(long key, V value);
+
+    /**
+     * @param key to remove.
+     * @return the value removed or null if absent, or always null if removeReturnsNull is set.
+     */
+    V remove(long key);
+
+    boolean containsKey(long key);
+
+    long longSize();
+
+    void clear();
+
+    /**
+     * @return a builder which would configure a map the same as this one.
+     */
+    SharedHashMapBuilder builder();
+
+    /**
+     * @return The file for this map
+     */
+    File file();
+
+    @Override
+    void close();
+}
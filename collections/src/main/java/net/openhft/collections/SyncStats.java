@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * A snapshot of how much of a {@link SharedHashMap} has been synced to its file by this process, and how long
+ * it took.
+ */
+public final class SyncStats {
+    private final long syncs;
+    private final long segmentsSynced;
+    private final long bytesSynced;
+    private final long totalNanos;
+    private final long lastNanos;
+    private final long maxNanos;
+
+    SyncStats(long syncs, long segmentsSynced, long bytesSynced, long totalNanos, long lastNanos, long maxNanos) {
+        this.syncs = syncs;
+        this.segmentsSynced = segmentsSynced;
+        this.bytesSynced = bytesSynced;
+        this.totalNanos = totalNanos;
+        this.lastNanos = lastNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /**
+     * @return the calls to sync(), including the background thread's.
+     */
+    public long syncs() {
+        return syncs;
+    }
+
+    /**
+     * @return the segments synced, counting each segment once per sync it was changed before.
+     */
+    public long segmentsSynced() {
+        return segmentsSynced;
+    }
+
+    /**
+     * @return the bytes of the segments synced, whether their pages were dirty or not.
+     */
+    public long bytesSynced() {
+        return bytesSynced;
+    }
+
+    public long totalNanos() {
+        return totalNanos;
+    }
+
+    public long lastNanos() {
+        return lastNanos;
+    }
+
+    public long maxNanos() {
+        return maxNanos;
+    }
+
+    public double averageNanos() {
+        return syncs == 0 ? 0 : (double) totalNanos / syncs;
+    }
+
+    @Override
+    public String toString() {
+        return "SyncStats{" +
+                "syncs=" + syncs +
+                ", segmentsSynced=" + segmentsSynced +
+                ", bytesSynced=" + bytesSynced +
+                ", averageNanos=" + averageNanos() +
+                ", lastNanos=" + lastNanos +
+                ", maxNanos=" + maxNanos +
+                '}';
+    }
+}
@@ -188,6 +188,12 @@ class VanillaIntIntMultiMap implements IntIntMultiMap {
         removePos((searchPos - ENTRY_SIZE) & capacityMask2);
     }
 
+    @Override
+    public void replacePrevPos(int value) {
+        long entry = (((long) searchHash) << 32) | (value & 0xFFFFFFFFL);
+        bytes.writeLong((searchPos - ENTRY_SIZE) & capacityMask2, entry);
+    }
+
     @Override
     public void putAfterFailedSearch(int value) {
         long entry = (((long) searchHash) << 32) | (value & 0xFFFFFFFFL);
@@ -224,6 +230,27 @@ class VanillaIntIntMultiMap implements IntIntMultiMap {
         }
     }
 
+    @Override
+    public void forEachProbeLength(EntryConsumer action) {
+        for (int i = 0; i < capacity; i++) {
+            int key = (int) (bytes.readLong(indexToPos(i)) >> 32);
+            if (key != UNSET_KEY)
+                action.accept(key, ((i - key) & capacityMask) + 1);
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public long slot(int index) {
+        long entry = bytes.readLong(indexToPos(index));
+        int key = (int) (entry >> 32);
+        return key == UNSET_KEY ? 0 : entry;
+    }
+
     @Override
     public void clear() {
         for (int pos = 0; pos < bytes.capacity(); pos += ENTRY_SIZE) {
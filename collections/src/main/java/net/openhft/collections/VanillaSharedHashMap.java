@@ -16,6 +16,7 @@
 
 package net.openhft.collections;
 
+import net.openhft.lang.Jvm;
 import net.openhft.lang.Maths;
 import net.openhft.lang.collection.DirectBitSet;
 import net.openhft.lang.collection.SingleThreadedDirectBitSet;
@@ -27,8 +28,15 @@ import net.openhft.lang.model.constraints.NotNull;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,19 +44,70 @@ import static java.lang.Thread.currentThread;
 
 public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements SharedHashMap<K, V> {
     private static final Logger LOGGER = Logger.getLogger(VanillaSharedHashMap.class.getName());
+    /**
+     * Number of times a lookup is tried without the segment lock before taking it.
+     */
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 16;
+    /**
+     * The number of keys, and minimum bytes of keys and values, in a batch of a bulk operation before it is
+     * flushed, whatever the number of segments.
+     */
+    private static final int BATCH_ENTRIES = 1024;
+    private static final int BATCH_BYTES = 1 << 20;
+    private static final int TRANSACTION_BYTES = 4 * 1024;
     private final ThreadLocal<DirectBytes> localBytes = new ThreadLocal<DirectBytes>();
+    private final ThreadLocal<Batch> localBatch = new ThreadLocal<Batch>();
+    private final ThreadLocal<DirectBytes> localValueBytes = new ThreadLocal<DirectBytes>();
+    private final ThreadLocal<ReadContext> localReadContext = new ThreadLocal<ReadContext>();
     private final Class<K> kClass;
     private final Class<V> vClass;
     private final long lockTimeOutNS;
     private final int metaDataBytes;
-    private Segment[] segments; // non-final for close()
+    // the user's meta data, followed by when the entry expires if the map has a time to live,
+    // when it was accessed if it has an eviction policy and its version if it has replicas.
+    private final int entryMetaDataBytes;
+    private final long timeToLiveMS;
+    private final EvictionPolicy evictionPolicy;
+    private final Durability durability;
+    private final long syncPeriodMS;
+    private final int warmUpThreads;
+    private final boolean transactional;
+    private final boolean useRedoLog;
+    // opened by the first transaction committed with a redo log.
+    private RedoLog redoLog = null;
+    // opened by the first sync() to map the segments to force.
+    private RandomAccessFile syncFile = null;
+    private MappedByteBuffer[] headerSyncBuffers = null;
+    private Thread syncThread = null;
+    private volatile boolean closing = false;
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong segmentsSynced = new AtomicLong();
+    private final AtomicLong bytesSynced = new AtomicLong();
+    private final AtomicLong syncNanos = new AtomicLong();
+    private volatile long lastSyncNanos = 0;
+    private volatile long maxSyncNanos = 0;
+    // the offsets of the access mark and version in an entry.
+    private final int accessOffset;
+    private final int versionOffset;
+    // set up on first access, see segment(int).
+    private AtomicReferenceArray<Segment> segments; // non-final for close()
     private MappedStore ms;     // non-final for close()
+    private DirectBytes header; // non-final for close()
+    private final AtomicReferenceArray<Segment> tiers;
     private final Hasher hasher;
 
     private final int replicas;
+    private final long tombstoneRetentionMS;
+    private final byte identifier;
+    // a bit for each replica, the changes a tier has for them.
+    private final long replicaMask;
     private final int entrySize;
+    private final int maxEntryOversizeFactor;
+    private final int overflowTiers;
     private final int entriesPerSegment;
     private final int hashMask;
+    private final HashLookupType hashLookupType;
+    private final boolean wideHashLookup;
 
     private final SharedMapErrorListener errorListener;
     private final SharedMapEventListener<K, V> eventListener;
@@ -60,6 +119,8 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
     // rather than as returning the Object can be expensive for something you probably don't use.
     private final boolean putReturnsNull;
     private final boolean removeReturnsNull;
+    private final boolean optimisticReads;
+    private final boolean readWriteLocks;
 
     transient Set<Map.Entry<K, V>> entrySet;
 
@@ -72,39 +133,178 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         lockTimeOutNS = builder.lockTimeOutMS() * 1000000;
 
         this.replicas = builder.replicas();
+        this.tombstoneRetentionMS = builder.tombstoneRetentionMS();
+        this.replicaMask = replicas == 64 ? -1L : (1L << replicas) - 1;
+        this.identifier = builder.identifier();
         this.entrySize = builder.entrySize();
+        this.maxEntryOversizeFactor = builder.maxEntryOversizeFactor();
+        this.overflowTiers = builder.overflowTiers();
+        this.tiers = new AtomicReferenceArray<Segment>(overflowTiers);
 
         this.errorListener = builder.errorListener();
         this.generatedKeyType = builder.generatedKeyType();
         this.generatedValueType = builder.generatedValueType();
         this.putReturnsNull = builder.putReturnsNull();
         this.removeReturnsNull = builder.removeReturnsNull();
+        this.optimisticReads = builder.optimisticReads();
+        this.readWriteLocks = builder.readWriteLocks();
 
         int segments = builder.actualSegments();
         int entriesPerSegment = builder.actualEntriesPerSegment();
         this.entriesPerSegment = entriesPerSegment;
         this.metaDataBytes = builder.metaDataBytes();
+        this.timeToLiveMS = builder.timeToLiveMS();
+        this.evictionPolicy = builder.evictionPolicy();
+        this.durability = builder.durability();
+        this.syncPeriodMS = builder.syncPeriodMS();
+        this.warmUpThreads = builder.warmUpThreads();
+        this.transactional = builder.transactional();
+        this.useRedoLog = builder.redoLog();
+        this.accessOffset = metaDataBytes + (timeToLiveMS > 0 ? 8 : 0);
+        this.versionOffset = accessOffset + (evictionPolicy != EvictionPolicy.NONE ? 8 : 0);
+        this.entryMetaDataBytes = versionOffset + (replicas > 0 ? 8 : 0);
         this.eventListener = builder.eventListener();
-        this.hashMask = entriesPerSegment > (1 << 16) ? ~0 : 0xFFFF;
+        this.hashLookupType = builder.hashLookupType();
+        this.wideHashLookup = builder.wideHashLookup();
+        // 16 bits of hash fit with the position in 4 bytes.
+        this.hashMask = entriesPerSegment > (1 << 16) || wideHashLookup ? ~0 : 0xFFFF;
 
-        this.hasher = new Hasher(segments, hashMask);
+        this.hasher = new Hasher(builder.keyHasher(), segments, hashMask);
 
-        @SuppressWarnings("unchecked")
-        Segment[] ss = (VanillaSharedHashMap.Segment[])
-                new VanillaSharedHashMap.Segment[segments];
-        this.segments = ss;
+        this.segments = new AtomicReferenceArray<Segment>(segments);
 
+        // MappedStore sets the length of the file to the size mapped, so every process maps the overflow tiers
+        // up front and the file only grows on disk as they are used.
         this.ms = new MappedStore(file, FileChannel.MapMode.READ_WRITE,
-                sizeInBytes());
+                sizeInBytes() + overflowTiers * segmentSize());
+        this.header = ms.createSlice(0, SharedHashMapBuilder.HEADER_SIZE);
+
+        // files written before the size of the map was counted in the header.
+        if (header.readVolatileInt(SharedHashMapBuilder.SIZE_COUNTED_OFFSET) == 0
+                && header.compareAndSwapInt(SharedHashMapBuilder.SIZE_COUNTED_OFFSET, 0, 1))
+            for (Segment segment : allSegments())
+                segment.countSizeExactly();
+        if (transactional)
+            redoTransactions();
+        if (warmUpThreads > 0)
+            warmUp(warmUpThreads);
+        if (durability == Durability.PERIODIC)
+            startSyncThread();
+    }
+
+    /**
+     * @return the segment, set up the first time it is accessed.
+     */
+    Segment segment(int segment) {
+        Segment s = segments.get(segment);
+        if (s == null) {
+            Segment created = new Segment(ms.createSlice(
+                    SharedHashMapBuilder.HEADER_SIZE + segment * segmentSize(), segmentSize()));
+            if (segments.compareAndSet(segment, null, created))
+                // repair a segment left locked by a process which died, rather than wait for it to time out.
+                created.recoverFromDeadOwner();
+            s = segments.get(segment);
+        }
+        return s;
+    }
+
+    /**
+     * @return every segment, setting up those not accessed yet.
+     */
+    private Segment[] allSegments() {
+        @SuppressWarnings("unchecked")
+        Segment[] all = (VanillaSharedHashMap.Segment[])
+                new VanillaSharedHashMap.Segment[segments.length()];
+        for (int i = 0; i < all.length; i++)
+            all[i] = segment(i);
+        return all;
+    }
 
-        long offset = SharedHashMapBuilder.HEADER_SIZE;
-        long segmentSize = segmentSize();
-        for (int i = 0; i < this.segments.length; i++) {
-            this.segments[i] = new Segment(ms.createSlice(offset, segmentSize));
-            offset += segmentSize;
+    /**
+     * Sets up every segment and touches each of its pages, with a group of threads each loading a share of them.
+     */
+    private void warmUp(int threads) {
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "warm-up-" + file().getName() + "-" + count++);
+                t.setDaemon(true);
+                return t;
+            }
+        }) : null;
+        try {
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(threads);
+            for (int t = 0; t < threads; t++) {
+                final int first = t;
+                final int step = threads;
+                tasks.add(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        for (int i = first; i < segments.length(); i += step)
+                            segment(i).bytes.load();
+                        return null;
+                    }
+                });
+            }
+            invokeAll(tasks, executor);
+        } finally {
+            if (executor != null)
+                executor.shutdown();
+        }
+    }
+
+    /**
+     * Makes the changes of the transactions processes died part way through, by recovering the locks they held of
+     * the segments in them, then deletes their redo logs.
+     */
+    private void redoTransactions() throws IOException {
+        for (int pid : RedoLog.pids(file())) {
+            if (isProcessAlive(pid))
+                continue;
+            ByteBuffer changes = RedoLog.read(file(), pid);
+            if (changes != null) {
+                ChangeReader reader = new ChangeReader(changes);
+                for (int position = changes.position(); position < changes.limit(); ) {
+                    position = reader.read(position);
+                    segment(reader.segment).recoverFromDeadOwner();
+                }
+            }
+            RedoLog.delete(file(), pid);
         }
     }
 
+    private void startSyncThread() {
+        syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!closing) {
+                    try {
+                        Thread.sleep(syncPeriodMS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    try {
+                        sync();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.SEVERE, "Failed to sync " + file(), e);
+                    }
+                }
+            }
+        }, "sync-" + file().getName());
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    IntIntMultiMap createMultiMap(Bytes bytes) {
+        if (hashLookupType == HashLookupType.ROBIN_HOOD)
+            return hashMask == ~0 ? new RobinHoodIntIntMultiMap(bytes) : new RobinHoodShortShortMultiMap(bytes);
+        if (hashLookupType == HashLookupType.BUCKETIZED)
+            return hashMask == ~0 ? new BucketizedIntIntMultiMap(bytes) : new BucketizedShortShortMultiMap(bytes);
+        return hashMask == ~0 ? new VanillaIntIntMultiMap(bytes) : new VanillaShortShortMultiMap(bytes);
+    }
+
     @Override
     public File file() {
         return ms.file();
@@ -113,33 +313,52 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
     @Override
     public SharedHashMapBuilder builder() {
         return new SharedHashMapBuilder()
-                .actualSegments(segments.length)
+                .actualSegments(segments.length())
                 .actualEntriesPerSegment(entriesPerSegment)
-                .entries((long) segments.length * entriesPerSegment / 2)
+                .entries((long) segments.length() * entriesPerSegment / 2)
                 .entrySize(entrySize)
+                .maxEntryOversizeFactor(maxEntryOversizeFactor)
+                .overflowTiers(overflowTiers)
+                .keyHasher(hasher.keyHasher)
+                .hashLookupType(hashLookupType)
+                .wideHashLookup(wideHashLookup)
                 .errorListener(errorListener)
                 .generatedKeyType(generatedKeyType)
                 .generatedValueType(generatedValueType)
                 .lockTimeOutMS(lockTimeOutNS / 1000000)
-                .minSegments(segments.length)
-                .actualSegments(segments.length)
+                .minSegments(segments.length())
+                .actualSegments(segments.length())
                 .actualEntriesPerSegment(entriesPerSegment)
                 .putReturnsNull(putReturnsNull)
                 .removeReturnsNull(removeReturnsNull)
+                .optimisticReads(optimisticReads)
+                .readWriteLocks(readWriteLocks)
                 .replicas(replicas)
-                .transactional(false)
+                .tombstoneRetentionMS(tombstoneRetentionMS)
+                .identifier(identifier)
+                .transactional(transactional)
+                .redoLog(useRedoLog)
                 .metaDataBytes(metaDataBytes)
+                .timeToLiveMS(timeToLiveMS)
+                .evictionPolicy(evictionPolicy)
+                .durability(durability)
+                .syncPeriodMS(syncPeriodMS)
+                .warmUpThreads(warmUpThreads)
                 .eventListener(eventListener);
     }
 
     long sizeInBytes() {
         return SharedHashMapBuilder.HEADER_SIZE +
-                segments.length * segmentSize();
+                segments.length() * segmentSize();
     }
 
     long sizeOfMultiMap() {
         int np2 = Maths.nextPower2(entriesPerSegment, 8);
-        return align64(np2 * (entriesPerSegment > (1 << 16) ? 8L : 4L));
+        return align64(np2 * (hashMask == ~0 ? 8L : 4L));
+    }
+
+    int multiMapCapacity() {
+        return (int) (sizeOfMultiMap() / (hashMask == ~0 ? 8 : 4));
     }
 
     long sizeOfBitSets() {
@@ -161,10 +380,72 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         return ss; // the actual entries used.
     }
 
+    /**
+     * @return the overflow tier, which may have been added by another process.
+     */
+    Segment tier(int tier) {
+        Segment segment = tiers.get(tier);
+        if (segment == null) {
+            tiers.compareAndSet(tier, null,
+                    new Segment(ms.createSlice(sizeInBytes() + tier * segmentSize(), segmentSize())));
+            segment = tiers.get(tier);
+        }
+        return segment;
+    }
+
+    /**
+     * Reserves the next overflow tier of the file for the calling process.
+     *
+     * @return the tier, or -1 if all the overflow tiers are in use.
+     */
+    private int allocateTier() {
+        while (true) {
+            int count = header.readVolatileInt(SharedHashMapBuilder.TIERS_OFFSET);
+            if (count >= overflowTiers)
+                return -1;
+            if (header.compareAndSwapInt(SharedHashMapBuilder.TIERS_OFFSET, count, count + 1))
+                return count;
+        }
+    }
+
     private long sizeOfEntriesInSegment() {
         return align64((long) entriesPerSegment * entrySize);
     }
 
+    /**
+     * @return whether the process is running, assumed if it can't be checked as there is no /proc.
+     */
+    static boolean isProcessAlive(int pid) {
+        if (pid == Jvm.getProcessId())
+            return true;
+        File proc = new File("/proc");
+        return !proc.isDirectory() || new File(proc, Integer.toString(pid)).exists();
+    }
+
+    /**
+     * A change is identified by a version, the time it was made in milliseconds since the epoch shifted left by
+     * 8 bits, with the identifier of the map it was made to in the low 8 bits.  Later versions replace earlier ones.
+     */
+    static long version(long timestamp, byte identifier) {
+        return timestamp << 8 | (identifier & 0xFF);
+    }
+
+    /**
+     * @return the version of a change made to this map, after the version of the change it replaces even if
+     * that was made on a host whose clock is ahead.
+     */
+    long nextVersion(long previous) {
+        long version = version(System.currentTimeMillis(), identifier);
+        return version > previous ? version : version((previous >>> 8) + 1, identifier);
+    }
+
+    static int stopBitLength(long l) {
+        int length = 1;
+        while ((l >>>= 7) != 0)
+            length++;
+        return length;
+    }
+
     /**
      * Cache line alignment, assuming 64-byte cache lines.
      */
@@ -179,21 +460,77 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
     public void close() {
         if (ms == null)
             return;
+        closing = true;
+        if (syncThread != null) {
+            syncThread.interrupt();
+            try {
+                syncThread.join();
+            } catch (InterruptedException e) {
+                currentThread().interrupt();
+            }
+        }
+        try {
+            if (durability != Durability.NONE)
+                sync();
+            if (syncFile != null)
+                syncFile.close();
+            synchronized (this) {
+                if (redoLog != null)
+                    redoLog.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to sync " + file() + " on close", e);
+        }
         ms.free();
         segments = null;
         ms = null;
+        header = null;
     }
 
     DirectBytes acquireBytes() {
-        DirectBytes bytes = localBytes.get();
+        return acquireBytes(localBytes);
+    }
+
+    private DirectBytes acquireBytes(ThreadLocal<DirectBytes> local) {
+        DirectBytes bytes = local.get();
         if (bytes == null) {
-            localBytes.set(bytes = new DirectStore(ms.bytesMarshallerFactory(), entrySize * 2, false).createSlice());
+            local.set(bytes = new DirectStore(ms.bytesMarshallerFactory(), maxEntrySize(), false).createSlice());
         } else {
             bytes.clear();
         }
         return bytes;
     }
 
+    /**
+     * @return the size of the largest entry, which is also the size of the buffers for keys and values.
+     */
+    long maxEntrySize() {
+        return (long) entrySize * maxEntryOversizeFactor;
+    }
+
+    ReadContext acquireReadContext() {
+        ReadContext context = localReadContext.get();
+        if (context == null)
+            localReadContext.set(context = new ReadContext());
+        return context;
+    }
+
+    /**
+     * The event listener expects to be called while the lock is held so optimistic reads are not used with one,
+     * nor with an eviction policy as marking the entry found could write to blocks a writer has reused.
+     */
+    private boolean readOptimistically() {
+        return optimisticReads && eventListener == SharedMapEventListeners.NOP
+                && evictionPolicy == EvictionPolicy.NONE;
+    }
+
+    /**
+     * Likewise lookups only share the segment lock without an event listener.
+     */
+    private boolean readShared() {
+        return readWriteLocks && eventListener == SharedMapEventListeners.NOP;
+    }
+
     private void checkKey(Object key) {
         if (!kClass.isInstance(key)) {
             // key.getClass will cause NPE exactly as needed
@@ -229,20 +566,128 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         checkKey(key);
         checkValue(value);
         Bytes keyBytes = getKeyAsBytes(key);
-        long hash = Hasher.hash(keyBytes);
+        return put0(keyBytes, hasher.hash(keyBytes), key, value, getValueAsBytes(value), replaceIfPresent);
+    }
+
+    @Override
+    public V put(Bytes key, Bytes value) {
+        return put0(key, hasher.hash(key), listenerKey(key), listenerValue(value), value, true);
+    }
+
+    @Override
+    public V put(HashedKey key, Bytes value) {
+        Bytes keyBytes = key.bytes();
+        return put0(keyBytes, hasher.hash(key), listenerKey(keyBytes), listenerValue(value), value, true);
+    }
+
+    private V put0(Bytes keyBytes, long hash, K key, V value, Bytes valueBytes, boolean replaceIfPresent) {
         int segmentNum = hasher.getSegment(hash);
         int segmentHash = hasher.segmentHash(hash);
-        return segments[segmentNum].put(keyBytes, key, value, segmentHash, replaceIfPresent);
+        return segment(segmentNum).put(keyBytes, key, value, valueBytes, segmentHash, replaceIfPresent,
+                defaultDeadline());
+    }
+
+    @Override
+    public V put(K key, V value, long timeToLiveMS) {
+        if (this.timeToLiveMS == 0)
+            throw new IllegalStateException("Entries of " + file() + " can't expire as it has no timeToLiveMS");
+        if (timeToLiveMS <= 0)
+            throw new IllegalArgumentException("timeToLiveMS must be positive was " + timeToLiveMS);
+        checkKey(key);
+        checkValue(value);
+        Bytes keyBytes = getKeyAsBytes(key);
+        long hash = hasher.hash(keyBytes);
+        return segment(hasher.getSegment(hash)).put(keyBytes, key, value, getValueAsBytes(value),
+                hasher.segmentHash(hash), true, deadline(timeToLiveMS));
+    }
+
+    @Override
+    public int removeExpired() {
+        int removed = 0;
+        if (timeToLiveMS > 0)
+            for (Segment segment : allSegments())
+                removed += segment.removeExpired();
+        return removed;
+    }
+
+    /**
+     * @return when an entry put now expires, or 0 if the map has no time to live or the entry never expires.
+     */
+    long defaultDeadline() {
+        return timeToLiveMS == 0 ? 0 : deadline(timeToLiveMS);
+    }
+
+    static long deadline(long timeToLiveMS) {
+        if (timeToLiveMS == Long.MAX_VALUE)
+            return 0;
+        long deadline = System.currentTimeMillis() + timeToLiveMS;
+        // never, if it overflows.
+        return deadline < 0 ? 0 : deadline;
     }
 
     private DirectBytes getKeyAsBytes(K key) {
         DirectBytes bytes = acquireBytes();
+        writeKey(bytes, key);
+        bytes.checkEndOfBuffer();
+        bytes.flip();
+        return bytes;
+    }
+
+    private DirectBytes getValueAsBytes(V value) {
+        DirectBytes bytes = acquireBytes(localValueBytes);
+        writeValue(bytes, value);
+        bytes.checkEndOfBuffer();
+        bytes.flip();
+        return bytes;
+    }
+
+    private void writeKey(Bytes bytes, K key) {
         if (generatedKeyType)
             ((BytesMarshallable) key).writeMarshallable(bytes);
         else
             bytes.writeInstance(kClass, key);
-        bytes.flip();
-        return bytes;
+    }
+
+    private void writeValue(Bytes bytes, V value) {
+        if (generatedValueType)
+            ((BytesMarshallable) value).writeMarshallable(bytes);
+        else
+            bytes.writeInstance(vClass, value);
+    }
+
+    /**
+     * Keys and values given serialized are only deserialized for the event listener.
+     */
+    private K listenerKey(Bytes keyBytes) {
+        if (eventListener == SharedMapEventListeners.NOP)
+            return null;
+        long position = keyBytes.position();
+        try {
+            if (generatedKeyType) {
+                K key = DataValueClasses.newInstance(kClass);
+                ((BytesMarshallable) key).readMarshallable(keyBytes);
+                return key;
+            }
+            return keyBytes.readInstance(kClass, null);
+        } finally {
+            keyBytes.position(position);
+        }
+    }
+
+    private V listenerValue(Bytes valueBytes) {
+        if (eventListener == SharedMapEventListeners.NOP)
+            return null;
+        long position = valueBytes.position();
+        try {
+            if (generatedValueType) {
+                V value = DataValueClasses.newInstance(vClass);
+                ((BytesMarshallable) value).readMarshallable(valueBytes);
+                return value;
+            }
+            return valueBytes.readInstance(vClass, null);
+        } finally {
+            valueBytes.position(position);
+        }
     }
 
     /**
@@ -263,13 +708,55 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         return lookupUsing(key, value, true);
     }
 
+    @Override
+    public V getUsing(Bytes key, V value) {
+        return lookupUsing(key, hasher.hash(key), null, value, false);
+    }
+
+    @Override
+    public V getUsing(HashedKey key, V value) {
+        return lookupUsing(key.bytes(), hasher.hash(key), null, value, false);
+    }
+
     private V lookupUsing(K key, V value, boolean create) {
         checkKey(key);
         Bytes keyBytes = getKeyAsBytes(key);
-        long hash = Hasher.hash(keyBytes);
+        return lookupUsing(keyBytes, hasher.hash(keyBytes), key, value, create);
+    }
+
+    /**
+     * @param key the key deserialized, or null to deserialize it from keyBytes if the event listener needs it.
+     */
+    private V lookupUsing(Bytes keyBytes, long hash, K key, V value, boolean create) {
         int segmentNum = hasher.getSegment(hash);
         int segmentHash = hasher.segmentHash(hash);
-        return segments[segmentNum].acquire(keyBytes, key, value, segmentHash, create);
+        Segment segment = segment(segmentNum);
+        if (readOptimistically()) {
+            ReadContext context = acquireReadContext();
+            if (segment.optimisticLookup(context, keyBytes, segmentHash, true)) {
+                if (context.found)
+                    return segment.readValue(context, value);
+                if (!create) {
+                    if (value instanceof Byteable)
+                        ((Byteable) value).bytes(null, 0);
+                    return null;
+                }
+            }
+        }
+        if (readShared()) {
+            ReadContext context = acquireReadContext();
+            V v = segment.lookup(context, keyBytes, value, segmentHash, true);
+            if (context.found)
+                return v;
+            if (!create) {
+                if (value instanceof Byteable)
+                    ((Byteable) value).bytes(null, 0);
+                return null;
+            }
+        }
+        if (key == null)
+            key = listenerKey(keyBytes);
+        return segment.acquire(keyBytes, key, value, segmentHash, create);
     }
 
     /**
@@ -279,16 +766,26 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
     public boolean containsKey(final Object key) {
         checkKey(key);
         Bytes keyBytes = getKeyAsBytes((K) key);
-        long hash = Hasher.hash(keyBytes);
+        long hash = hasher.hash(keyBytes);
         int segmentNum = hasher.getSegment(hash);
         int segmentHash = hasher.segmentHash(hash);
-
-        return segments[segmentNum].containsKey(keyBytes, segmentHash);
+        Segment segment = segment(segmentNum);
+        if (readOptimistically()) {
+            ReadContext context = acquireReadContext();
+            if (segment.optimisticLookup(context, keyBytes, segmentHash, false))
+                return context.found;
+        }
+        if (readShared()) {
+            ReadContext context = acquireReadContext();
+            segment.lookup(context, keyBytes, null, segmentHash, false);
+            return context.found;
+        }
+        return segment.containsKey(keyBytes, segmentHash);
     }
 
     @Override
     public void clear() {
-        for (Segment segment : segments)
+        for (Segment segment : allSegments())
             segment.clear();
     }
 
@@ -336,10 +833,18 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
     private V removeIfValueIs(final Object key, final V expectedValue) {
         checkKey(key);
         Bytes keyBytes = getKeyAsBytes((K) key);
-        long hash = Hasher.hash(keyBytes);
+        return removeIfValueIs(keyBytes, hasher.hash(keyBytes), (K) key, expectedValue);
+    }
+
+    @Override
+    public V remove(Bytes key) {
+        return removeIfValueIs(key, hasher.hash(key), listenerKey(key), null);
+    }
+
+    private V removeIfValueIs(Bytes keyBytes, long hash, K key, V expectedValue) {
         int segmentNum = hasher.getSegment(hash);
         int segmentHash = hasher.segmentHash(hash);
-        return segments[segmentNum].remove(keyBytes, (K) key, expectedValue, segmentHash);
+        return segment(segmentNum).remove(keyBytes, key, expectedValue, segmentHash);
     }
 
     /**
@@ -367,127 +872,659 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
     }
 
     @Override
-    public long longSize() {
-        long result = 0;
+    public V computeIfAbsentLocked(K key, Function<? super K, ? extends V> mappingFunction) {
+        if (mappingFunction == null)
+            throw new NullPointerException();
+        return compute0(key, Segment.COMPUTE_IF_ABSENT, null, mappingFunction, null, null);
+    }
 
-        for (final Segment segment : this.segments) {
-            result += segment.getSize();
-        }
+    @Override
+    public V computeIfPresentLocked(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (remappingFunction == null)
+            throw new NullPointerException();
+        return compute0(key, Segment.COMPUTE_IF_PRESENT, null, null, remappingFunction, null);
+    }
 
-        return result;
+    @Override
+    public V computeLocked(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (remappingFunction == null)
+            throw new NullPointerException();
+        return compute0(key, Segment.COMPUTE, null, null, remappingFunction, null);
     }
 
     @Override
-    public int size() {
-        long size = longSize();
-        return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
+    public V mergeLocked(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        checkValue(value);
+        if (remappingFunction == null)
+            throw new NullPointerException();
+        return compute0(key, Segment.MERGE, value, null, null, remappingFunction);
     }
 
-    /**
-     * replace the value in a map, only if the existing entry equals {@param existingValue}
-     *
-     * @param key           the key into the map
-     * @param existingValue the expected existing value in the map ( could be null when we don't wish to do this check )
-     * @param newValue      the new value you wish to store in the map
-     * @return the value that was replaced
-     */
-    private V replaceIfValueIs(@NotNull final K key, final V existingValue, final V newValue) {
+    private V compute0(K key, int mode, V value, Function<? super K, ? extends V> mappingFunction,
+                       BiFunction<? super K, ? super V, ? extends V> remappingFunction,
+                       BiFunction<? super V, ? super V, ? extends V> mergeFunction) {
         checkKey(key);
-        checkValue(newValue);
         Bytes keyBytes = getKeyAsBytes(key);
-        long hash = Hasher.hash(keyBytes);
+        long hash = hasher.hash(keyBytes);
         int segmentNum = hasher.getSegment(hash);
         int segmentHash = hasher.segmentHash(hash);
-        return segments[segmentNum].replace(keyBytes, key, existingValue, newValue, segmentHash);
+        return segment(segmentNum).compute(keyBytes, key, segmentHash, mode, value,
+                mappingFunction, remappingFunction, mergeFunction);
     }
 
+    @Override
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        return getAll(keys, null);
+    }
 
-    private static final class Hasher {
-
-        static long hash(Bytes bytes) {
-            long h = 0;
-            int i = 0;
-            long limit = bytes.limit(); // clustering.
-            for (; i < limit - 7; i += 8)
-                h = 1011001110001111L * h + bytes.readLong(i);
-            for (; i < limit - 1; i += 2)
-                h = 101111 * h + bytes.readShort(i);
-            if (i < limit)
-                h = 2111 * h + bytes.readByte(i);
-            h *= 11018881818881011L;
-            h ^= (h >>> 41) ^ (h >>> 21);
-            //System.out.println(bytes + " => " + Long.toHexString(h));
-            return h;
+    @Override
+    public Map<K, V> getAll(Collection<? extends K> keys, ExecutorService executor) {
+        Map<K, V> results = new HashMap<K, V>();
+        Batch batch = acquireBatch(Batch.GET, executor, results);
+        try {
+            for (K key : keys) {
+                checkKey(key);
+                batch.add(key, null);
+            }
+            batch.flush();
+        } finally {
+            batch.release();
         }
+        return results;
+    }
 
-        private final int segments;
-        private final int bits;
-        private final int mask;
+    /**
+     * Puts the entries a batch at a time, locking each segment once per batch.
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> map) {
+        putAll(map, null);
+    }
 
-        Hasher(int segments, int mask) {
-            this.segments = segments;
-            this.bits = Maths.intLog2(segments);
-            this.mask = mask;
+    @Override
+    public void putAll(Map<? extends K, ? extends V> map, ExecutorService executor) {
+        Batch batch = acquireBatch(Batch.PUT, executor, null);
+        try {
+            for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+                K key = entry.getKey();
+                V value = entry.getValue();
+                checkKey(key);
+                checkValue(value);
+                batch.add(key, value);
+            }
+            batch.flush();
+        } finally {
+            batch.release();
         }
+    }
 
-        int segmentHash(long hash) {
-            return (int) (hash >>> bits) & mask;
-        }
+    @Override
+    public int removeAll(Collection<? extends K> keys) {
+        return removeAll(keys, null);
+    }
 
-        int getSegment(long hash) {
-            return (int) (hash & (segments - 1));
+    @Override
+    public int removeAll(Collection<? extends K> keys, ExecutorService executor) {
+        Batch batch = acquireBatch(Batch.REMOVE, executor, null);
+        try {
+            for (K key : keys) {
+                checkKey(key);
+                batch.add(key, null);
+            }
+            batch.flush();
+            return batch.processed;
+        } finally {
+            batch.release();
         }
     }
 
-    // these methods should be package local, not public or private.
-    class Segment {
-        /*
-        The entry format is
-        - stop-bit encoded length for key
-        - bytes for the key
-        - stop-bit encoded length of the value
-        - bytes for the value.
-         */
-        static final int LOCK_OFFSET = 0; // 64-bit
-        static final int SIZE_OFFSET = LOCK_OFFSET + 8; // 32-bit
-        static final int PAD1_OFFSET = SIZE_OFFSET + 4; // 32-bit
-        static final int REPLICA_OFFSET = PAD1_OFFSET + 4; // 64-bit
-
-        private final NativeBytes bytes;
-        private final MultiStoreBytes tmpBytes = new MultiStoreBytes();
-        private final IntIntMultiMap hashLookup;
-        private final SingleThreadedDirectBitSet freeList;
-        private final long entriesOffset;
-        private int nextSet = 0;
-
-        Segment(NativeBytes bytes) {
-            this.bytes = bytes;
+    @Override
+    public void forEach(final EntryConsumer<? super K, ? super V> consumer, ExecutorService executor) {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (final Segment segment : allSegments())
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    List<K> keys = new ArrayList<K>();
+                    List<V> values = new ArrayList<V>();
+                    segment.readEntries(keys, values);
+                    for (int i = 0; i < keys.size(); i++)
+                        consumer.accept(keys.get(i), values.get(i));
+                    return null;
+                }
+            });
+        invokeAll(tasks, executor);
+    }
 
-            long start = bytes.startAddr() + SharedHashMapBuilder.SEGMENT_HEADER;
-            final NativeBytes iimmapBytes = new NativeBytes(null, start, start + sizeOfMultiMap(), null);
-            iimmapBytes.load();
-            hashLookup = hashMask == ~0 ? new VanillaIntIntMultiMap(iimmapBytes) : new VanillaShortShortMultiMap(iimmapBytes);
-            start += sizeOfMultiMap();
-            final NativeBytes bsBytes = new NativeBytes(tmpBytes.bytesMarshallerFactory(), start, start + sizeOfBitSets(), null);
-            freeList = new SingleThreadedDirectBitSet(bsBytes);
-            start += numberOfBitSets() * sizeOfBitSets();
-            entriesOffset = start - bytes.startAddr();
-            assert bytes.capacity() >= entriesOffset + entriesPerSegment * entrySize;
+    @Override
+    public <R> R reduce(final R identity, final EntryReducer<? super K, ? super V, R> reducer,
+                        ExecutorService executor) {
+        List<Callable<R>> tasks = new ArrayList<Callable<R>>();
+        for (final Segment segment : allSegments())
+            tasks.add(new Callable<R>() {
+                @Override
+                public R call() {
+                    List<K> keys = new ArrayList<K>();
+                    List<V> values = new ArrayList<V>();
+                    segment.readEntries(keys, values);
+                    R result = identity;
+                    for (int i = 0; i < keys.size(); i++)
+                        result = reducer.reduce(result, keys.get(i), values.get(i));
+                    return result;
+                }
+            });
+        R result = null;
+        boolean first = true;
+        for (R r : invokeAll(tasks, executor)) {
+            result = first ? r : reducer.combine(result, r);
+            first = false;
         }
+        return first ? identity : result;
+    }
 
-        /* Methods with private access modifier considered private to Segment
-         * class, although Java allows to access them from outer class anyway.
-         */
+    @Override
+    public void forEachBytes(final BytesEntryConsumer consumer, ExecutorService executor) {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (final Segment segment : allSegments())
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    segment.forEachBytes(consumer);
+                    return null;
+                }
+            });
+        invokeAll(tasks, executor);
+    }
 
-        /**
-         * increments the size by one
+    @Override
+    public void forEachBytes(int segment, BytesEntryConsumer consumer) {
+        segment(segment).forEachBytes(consumer);
+    }
+
+    /**
+     * Puts entries into a segment holding its lock once, e.g. to restore a snapshot taken of a map with the same
+     * number of segments and KeyHasher.
+     *
+     * @param entries serialized as the key's stop bit length and bytes then the value's, from position to limit.
+     * @return the number of entries put.
+     */
+    int putAll(int segment, ByteBuffer entries) {
+        return segment(segment).putAll(segment, entries);
+    }
+
+    @Override
+    public SplittableIterator<Entry<K, V>> entryIterator() {
+        return new EntryIterator(0, segments.length());
+    }
+
+    /**
+     * @return the entries of hashes[0, length) which have the same hash as another, sorting hashes.
+     */
+    static int collisions(int[] hashes, int length) {
+        Arrays.sort(hashes, 0, length);
+        int collisions = 0;
+        for (int i = 0, run = 1; i < length; i++, run++) {
+            if (i + 1 < length && hashes[i + 1] == hashes[i])
+                continue;
+            if (run > 1)
+                collisions += run;
+            run = 0;
+        }
+        return collisions;
+    }
+
+    @Override
+    public int drainChanges(int replica, BytesEntryConsumer consumer) {
+        int changes = 0;
+        for (int i = 0; i < segments.length(); i++)
+            changes += drainChanges(replica, i, consumer);
+        return changes;
+    }
+
+    @Override
+    public int drainChanges(int replica, int segment, final BytesEntryConsumer consumer) {
+        return drainChanges(replica, segment, new ChangeConsumer() {
+            @Override
+            public void accept(Bytes key, Bytes value, long timestamp, byte identifier) {
+                consumer.accept(key, value);
+            }
+        });
+    }
+
+    @Override
+    public int drainChanges(int replica, int segment, ChangeConsumer consumer) {
+        checkReplica(replica);
+        return segment(segment).drainChanges(replica, consumer);
+    }
+
+    @Override
+    public int markAllChanged(int replica) {
+        checkReplica(replica);
+        int marked = 0;
+        for (int i = 0; i < segments.length(); i++)
+            marked += segment(i).markAllChanged(replica);
+        return marked;
+    }
+
+    private void checkReplica(int replica) {
+        if (replica < 0 || replica >= replicas)
+            throw new IllegalArgumentException("replica must be between 0 and " + replicas + " was " + replica);
+    }
+
+    @Override
+    public boolean applyChange(int fromReplica, Bytes key, Bytes value, long timestamp, byte identifier) {
+        checkFromReplica(fromReplica);
+        long hash = hasher.hash(key);
+        return segment(hasher.getSegment(hash)).apply(key, value, hasher.segmentHash(hash),
+                version(timestamp, identifier), fromReplica);
+    }
+
+    @Override
+    public ChangeBatch changeBatch(final int fromReplica) {
+        checkFromReplica(fromReplica);
+        return new ChangeBatch() {
+            // the thread's batch, held from the first change accepted until flushed.
+            private Batch batch;
+
+            @Override
+            public void accept(Bytes key, Bytes value, long timestamp, byte identifier) {
+                if (batch == null) {
+                    batch = acquireBatch(Batch.APPLY, null, null);
+                    batch.fromReplica = fromReplica;
+                }
+                batch.add(key, value, version(timestamp, identifier));
+            }
+
+            @Override
+            public int flush() {
+                if (batch == null)
+                    return 0;
+                try {
+                    batch.flush();
+                    return batch.processed;
+                } finally {
+                    batch.release();
+                    batch = null;
+                }
+            }
+        };
+    }
+
+    @Override
+    public Transaction<K, V> transaction() {
+        if (!transactional)
+            throw new IllegalStateException("Transactions need a map created with transactional(true)");
+        return new MapTransaction();
+    }
+
+    private synchronized RedoLog redoLog() throws IOException {
+        if (redoLog == null)
+            redoLog = new RedoLog(file(), durability != Durability.NONE);
+        return redoLog;
+    }
+
+    private void checkFromReplica(int fromReplica) {
+        if (fromReplica < -1 || fromReplica >= replicas)
+            throw new IllegalArgumentException("fromReplica must be between -1 and " + replicas + " was " + fromReplica);
+    }
+
+    @Override
+    public synchronized long sync() throws IOException {
+        long start = System.nanoTime();
+        long synced = 0;
+        int segmentsChanged = 0;
+        for (Segment segment : allSegments()) {
+            // cleared before the segment is synced, so a change made meanwhile is synced next time.
+            if (!segment.bytes.compareAndSwapInt(Segment.DIRTY_OFFSET, 1, 0))
+                continue;
+            for (Segment tier = segment; tier != null; tier = tier.nextTier())
+                synced += tier.force();
+            segmentsChanged++;
+        }
+        if (synced > 0) {
+            // for the overflow tiers in use.
+            if (headerSyncBuffers == null)
+                headerSyncBuffers = mapForSync(0, SharedHashMapBuilder.HEADER_SIZE);
+            synced += force(headerSyncBuffers);
+        }
+        long nanos = System.nanoTime() - start;
+        syncs.incrementAndGet();
+        segmentsSynced.addAndGet(segmentsChanged);
+        bytesSynced.addAndGet(synced);
+        syncNanos.addAndGet(nanos);
+        lastSyncNanos = nanos;
+        if (nanos > maxSyncNanos)
+            maxSyncNanos = nanos;
+        return synced;
+    }
+
+    @Override
+    public SyncStats syncStats() {
+        return new SyncStats(syncs.get(), segmentsSynced.get(), bytesSynced.get(), syncNanos.get(),
+                lastSyncNanos, maxSyncNanos);
+    }
+
+    /**
+     * Maps a region of the file a second time to force it, as MappedStore can't, in buffers of up to 1 GB.
+     */
+    private MappedByteBuffer[] mapForSync(long offset, long size) throws IOException {
+        if (syncFile == null)
+            syncFile = new RandomAccessFile(file(), "rw");
+        int chunk = 1 << 30;
+        MappedByteBuffer[] buffers = new MappedByteBuffer[(int) ((size + chunk - 1) / chunk)];
+        for (int i = 0; i < buffers.length; i++) {
+            long start = (long) i * chunk;
+            buffers[i] = syncFile.getChannel().map(FileChannel.MapMode.READ_WRITE, offset + start,
+                    Math.min(chunk, size - start));
+        }
+        return buffers;
+    }
+
+    private static long force(MappedByteBuffer[] buffers) {
+        long bytes = 0;
+        for (MappedByteBuffer buffer : buffers) {
+            buffer.force();
+            bytes += buffer.capacity();
+        }
+        return bytes;
+    }
+
+    @Override
+    public int repair() {
+        int dropped = 0;
+        for (Segment segment : allSegments())
+            dropped += segment.repair();
+        return dropped;
+    }
+
+    @Override
+    public List<SegmentStats> segmentStats() {
+        List<SegmentStats> stats = new ArrayList<SegmentStats>(segments.length());
+        for (int i = 0; i < segments.length(); i++)
+            stats.add(segment(i).stats(i));
+        return stats;
+    }
+
+    /**
+     * Calls the tasks in the calling thread, or with the executor if there is one, waiting for all of them.
+     *
+     * @return the results of the tasks in order.
+     */
+    static <R> List<R> invokeAll(List<Callable<R>> tasks, ExecutorService executor) {
+        List<R> results = new ArrayList<R>(tasks.size());
+        if (executor == null) {
+            for (Callable<R> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return results;
+        }
+        List<Future<R>> futures = new ArrayList<Future<R>>(tasks.size());
+        RejectedExecutionException rejected = null;
+        for (Callable<R> task : tasks) {
+            try {
+                futures.add(executor.submit(task));
+            } catch (RejectedExecutionException e) {
+                rejected = e;
+                break;
+            }
+        }
+        Throwable thrown = null;
+        boolean interrupted = false;
+        for (Future<R> future : futures) {
+            while (true) {
+                try {
+                    results.add(future.get());
+                    break;
+                } catch (InterruptedException e) {
+                    // the tasks can use state of the caller, so every task has to finish first.
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (thrown == null)
+                        thrown = e.getCause();
+                    results.add(null);
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            currentThread().interrupt();
+        if (thrown instanceof RuntimeException)
+            throw (RuntimeException) thrown;
+        if (thrown instanceof Error)
+            throw (Error) thrown;
+        if (thrown != null)
+            throw new IllegalStateException(thrown);
+        if (rejected != null)
+            throw rejected;
+        return results;
+    }
+
+    /**
+     * @return the calling thread's batch, or a new one if it is in use, e.g. by an event listener's caller.
+     */
+    private Batch acquireBatch(int op, ExecutorService executor, Map<K, V> results) {
+        Batch batch = localBatch.get();
+        if (batch == null)
+            localBatch.set(batch = new Batch());
+        else if (batch.inUse)
+            batch = new Batch();
+        batch.start(op, executor, results);
+        return batch;
+    }
+
+    @Override
+    public long longSize() {
+        long result = 0;
+
+        for (final Segment segment : allSegments()) {
+            result += segment.getSize();
+        }
+
+        return result;
+    }
+
+    @Override
+    public long approximateSize() {
+        long size = 0;
+        for (int i = 0; i < SharedHashMapBuilder.SIZE_STRIPES; i++)
+            size += header.readVolatileLong(SharedHashMapBuilder.SIZE_STRIPES_OFFSET + i * 8);
+        return Math.max(0, size);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        // every change in size is counted in the header while the segment is locked.
+        return approximateSize() == 0;
+    }
+
+    @Override
+    public int size() {
+        long size = longSize();
+        return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
+    }
+
+    /**
+     * replace the value in a map, only if the existing entry equals {@param existingValue}
+     *
+     * @param key           the key into the map
+     * @param existingValue the expected existing value in the map ( could be null when we don't wish to do this check )
+     * @param newValue      the new value you wish to store in the map
+     * @return the value that was replaced
+     */
+    private V replaceIfValueIs(@NotNull final K key, final V existingValue, final V newValue) {
+        checkKey(key);
+        checkValue(newValue);
+        Bytes keyBytes = getKeyAsBytes(key);
+        long hash = hasher.hash(keyBytes);
+        int segmentNum = hasher.getSegment(hash);
+        int segmentHash = hasher.segmentHash(hash);
+        return segment(segmentNum).replace(keyBytes, key, existingValue, newValue, getValueAsBytes(newValue),
+                segmentHash);
+    }
+
+
+    static final class Hasher {
+        private final KeyHasher keyHasher;
+        private final int segments;
+        private final int bits;
+        private final int mask;
+
+        Hasher(KeyHasher keyHasher, int segments, int mask) {
+            this.keyHasher = keyHasher;
+            this.segments = segments;
+            this.bits = Maths.intLog2(segments);
+            this.mask = mask;
+        }
+
+        /**
+         * @return the hash of the bytes from their position to their limit.
+         */
+        long hash(Bytes bytes) {
+            return keyHasher.hash(bytes);
+        }
+
+        /**
+         * @return the hash of the key, which is only hashed again if it was hashed another way.
+         */
+        long hash(HashedKey key) {
+            return key.keyHasher() == keyHasher ? key.hash() : keyHasher.hash(key.bytes());
+        }
+
+        int segmentHash(long hash) {
+            return (int) (hash >>> bits) & mask;
+        }
+
+        int getSegment(long hash) {
+            return (int) (hash & (segments - 1));
+        }
+    }
+
+    /*
+    A segment can be followed by a chain of overflow tiers, which have the same layout.  The lock and version
+    of the first segment cover the whole chain and are unused in the tiers.  Each tier has its own size.
+     */
+    // these methods should be package local, not public or private.
+    class Segment {
+        /*
+        The entry format is
+        - metaDataBytes of meta data
+        - if the map has a timeToLiveMS, when the entry expires in milliseconds since the epoch, 0 for never.
+        - if the map has an evictionPolicy, 1 if accessed since the CLOCK hand passed, or for SAMPLED_LRU
+          when it was last accessed in milliseconds since the epoch.
+        - if the map has replicas, the version of the last change, see version().
+        - stop-bit encoded length for key
+        - bytes for the key
+        - stop-bit encoded length of the value
+        - padding to align the value to 4 bytes
+        - bytes for the value.
+        An entry uses as many consecutive entrySize blocks as sizeOfEntry() needs for these lengths
+        where it starts, so the number of blocks is recorded by the lengths at the start of the entry.
+         */
+        static final int LOCK_OFFSET = 0; // 64-bit
+        static final int SIZE_OFFSET = LOCK_OFFSET + 8; // 32-bit
+        // the size of this tier as counted in the size stripes of the map.
+        static final int COUNTED_SIZE_OFFSET = SIZE_OFFSET + 4; // 32-bit
+        // a bit for each replica this tier has changes for.
+        static final int REPLICA_OFFSET = COUNTED_SIZE_OFFSET + 4; // 64-bit
+        // odd while a writer is modifying the segment, incremented on every modification.
+        static final int VERSION_OFFSET = REPLICA_OFFSET + 8; // 64-bit
+        // the overflow tier after this one plus one, or 0 if this is the last.
+        static final int NEXT_TIER_OFFSET = VERSION_OFFSET + 8; // 32-bit
+        // the slot of the chain the CLOCK hand is at, counting the slots of every tier.
+        static final int CLOCK_HAND_OFFSET = NEXT_TIER_OFFSET + 4; // 32-bit
+        // the removed entries kept in the hashLookup until every replica has drained them.
+        static final int DELETED_OFFSET = CLOCK_HAND_OFFSET + 4; // 32-bit
+        // the process id of the thread holding the lock exclusively, or 0 if unknown.
+        static final int OWNER_PID_OFFSET = DELETED_OFFSET + 4; // 32-bit
+        // 1 if the segment or its overflow tiers have changed since they were last synced.
+        static final int DIRTY_OFFSET = OWNER_PID_OFFSET + 4; // 32-bit
+        // with readWriteLocks, the times the writer has taken the lock again while holding it.
+        static final int WRITE_HOLDS_OFFSET = DIRTY_OFFSET + 4; // 32-bit
+
+        // how long a lock is waited for before checking whether the process holding it is still alive.
+        static final long OWNER_CHECK_NS = 1000 * 1000;
+
+        // the number of entries SAMPLED_LRU compares to choose one to evict.
+        static final int EVICTION_SAMPLES = 8;
+
+        /*
+        With readWriteLocks the lock at LOCK_OFFSET holds
+        - the unique thread id of the writer in the low 48 bits, set while it waits for readers to finish.
+        - the number of readers in the next 15 bits.
+         */
+        static final long RW_WRITER_MASK = (1L << 48) - 1;
+        static final long RW_READER = 1L << 48;
+        static final long RW_READERS_MASK = 0x7FFFL << 48;
+
+        // the modes of compute(), for computeLocked() and the like
+        static final int COMPUTE = 0;
+        static final int COMPUTE_IF_ABSENT = 1;
+        static final int COMPUTE_IF_PRESENT = 2;
+        static final int MERGE = 3;
+
+        private final NativeBytes bytes;
+        private final MultiStoreBytes tmpBytes = new MultiStoreBytes();
+        private final IntIntMultiMap hashLookup;
+        private final SingleThreadedDirectBitSet freeList;
+        // with replicas, the removed entries kept with the version of the removal until every replica has drained
+        // it, and the positions of the entries each replica has yet to drain.
+        private final SingleThreadedDirectBitSet deletedSet;
+        private final SingleThreadedDirectBitSet[] changes;
+        private final long entriesOffset;
+        // the stripe of the map's size this tier counts its size in.
+        private final int sizeStripe;
+        // this segment mapped again by sync().
+        private MappedByteBuffer[] syncBuffers = null;
+        private int nextSet = 0;
+        // xorshift state for choosing the entries to sample, only used holding the lock.
+        private long random = System.nanoTime() | 1;
+
+        Segment(NativeBytes bytes) {
+            this.bytes = bytes;
+
+            long start = bytes.startAddr() + SharedHashMapBuilder.SEGMENT_HEADER;
+            final NativeBytes iimmapBytes = new NativeBytes(null, start, start + sizeOfMultiMap(), null);
+            hashLookup = createMultiMap(iimmapBytes);
+            start += sizeOfMultiMap();
+            freeList = bitSet(start, 0);
+            deletedSet = replicas > 0 ? bitSet(start, 1) : null;
+            changes = new SingleThreadedDirectBitSet[replicas];
+            for (int i = 0; i < replicas; i++)
+                changes[i] = bitSet(start, 2 + i);
+            start += numberOfBitSets() * sizeOfBitSets();
+            entriesOffset = start - bytes.startAddr();
+            sizeStripe = (int) ((bytes.startAddr() - ms.address()) / segmentSize())
+                    & (SharedHashMapBuilder.SIZE_STRIPES - 1);
+            assert bytes.capacity() >= entriesOffset + entriesPerSegment * entrySize;
+        }
+
+        private SingleThreadedDirectBitSet bitSet(long bitSetsStart, int index) {
+            long start = bitSetsStart + index * sizeOfBitSets();
+            return new SingleThreadedDirectBitSet(
+                    new NativeBytes(tmpBytes.bytesMarshallerFactory(), start, start + sizeOfBitSets(), null));
+        }
+
+        /* Methods with private access modifier considered private to Segment
+         * class, although Java allows to access them from outer class anyway.
+         */
+
+        /**
+         * increments the size by one
          */
         private void incrementSize() {
             this.bytes.addInt(SIZE_OFFSET, 1);
+            countSize();
         }
 
         private void resetSize() {
             this.bytes.writeInt(SIZE_OFFSET, 0);
+            countSize();
         }
 
         /**
@@ -495,31 +1532,283 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
          */
         private void decrementSize() {
             this.bytes.addInt(SIZE_OFFSET, -1);
+            countSize();
         }
 
         /**
-         * reads the the number of entries in this segment
+         * Counts the size of this segment and its overflow tiers in the size of the map.
+         */
+        void countSizeExactly() {
+            lock();
+            try {
+                for (Segment tier = this; tier != null; tier = tier.nextTier())
+                    tier.countSize();
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Adds the change in size of this tier since it was last counted to the size stripes of the map, while the
+         * lock is held, so the size of the map is exact once each change is made.  A change not counted as the
+         * process making it died is counted when the segment is recovered.
+         */
+        private void countSize() {
+            int size = bytes.readInt(SIZE_OFFSET);
+            int change = size - bytes.readInt(COUNTED_SIZE_OFFSET);
+            if (change == 0)
+                return;
+            header.addAtomicLong(SharedHashMapBuilder.SIZE_STRIPES_OFFSET + sizeStripe * 8, change);
+            bytes.writeOrderedInt(COUNTED_SIZE_OFFSET, size);
+        }
+
+        /**
+         * reads the the number of entries in this segment, including its overflow tiers
          */
         int getSize() {
+            int size = 0;
+            for (Segment tier = this; tier != null; tier = tier.nextTier())
+                size += tier.tierSize();
+            return size;
+        }
+
+        private int tierSize() {
             // any negative value is in error state.
             return Math.max(0, this.bytes.readVolatileInt(SIZE_OFFSET));
         }
 
+        /**
+         * The hashLookup needs a free slot to end a search for a key it doesn't have.
+         */
+        private boolean hashLookupHasRoom() {
+            return tierSize() + deletedCount() < multiMapCapacity() - 1;
+        }
+
+        private int deletedCount() {
+            return replicas > 0 ? bytes.readInt(DELETED_OFFSET) : 0;
+        }
+
+        /**
+         * @return whether the entry at this position was removed and is only kept for the replicas.
+         */
+        private boolean deleted(int pos) {
+            return replicas > 0 && deletedSet.get(pos);
+        }
+
 
         private void lock() throws IllegalStateException {
+            if (readWriteLocks) {
+                writeLock();
+                return;
+            }
             while (true) {
-                final boolean success = bytes.tryLockNanosLong(LOCK_OFFSET, lockTimeOutNS);
-                if (success) return;
-                if (currentThread().isInterrupted()) {
-                    throw new IllegalStateException(new InterruptedException("Unable to obtain lock, interrupted"));
-                } else {
-                    errorListener.onLockTimeout(bytes.threadIdForLockLong(LOCK_OFFSET));
-                    bytes.resetLockLong(LOCK_OFFSET);
+                boolean success = bytes.tryLockNanosLong(LOCK_OFFSET, Math.min(OWNER_CHECK_NS, lockTimeOutNS));
+                if (!success) {
+                    if (recoverFromDeadOwner())
+                        continue;
+                    success = bytes.tryLockNanosLong(LOCK_OFFSET, lockTimeOutNS);
                 }
+                if (success) {
+                    bytes.writeOrderedInt(OWNER_PID_OFFSET, Jvm.getProcessId());
+                    return;
+                }
+                if (recoverFromDeadOwner())
+                    continue;
+                lockTimedOut(bytes.threadIdForLockLong(LOCK_OFFSET));
+                bytes.resetLockLong(LOCK_OFFSET);
+            }
+        }
+
+        /**
+         * Takes over the lock if it is held by a process which is no longer running, and repairs the
+         * segment as the process may have died part way through changing it, then releases the lock.
+         *
+         * @return whether the lock was recovered, so it can be taken.
+         */
+        private boolean recoverFromDeadOwner() {
+            long lock = bytes.readVolatileLong(LOCK_OFFSET);
+            int pid = bytes.readVolatileInt(OWNER_PID_OFFSET);
+            // the low 16 bits of the process id are also in the lock, for a check it is still held by that process.
+            long writer = readWriteLocks ? lock & RW_WRITER_MASK : lock;
+            if (writer == 0 || pid == 0 || ((writer >>> 32) & 0xFFFF) != (pid & 0xFFFF) || isProcessAlive(pid))
+                return false;
+            long tid = Jvm.getUniqueTid();
+            long ours = readWriteLocks ? (lock & RW_READERS_MASK) | (tid & RW_WRITER_MASK) : (1L << 48) | tid;
+            if (!bytes.compareAndSwapLong(LOCK_OFFSET, lock, ours))
+                return false;
+            if (readWriteLocks) {
+                // the readers can't be identified, so wait for them to finish as writeLock() does.
+                long deadline = System.nanoTime() + lockTimeOutNS;
+                while ((bytes.readVolatileLong(LOCK_OFFSET) & RW_READERS_MASK) != 0 && System.nanoTime() < deadline)
+                    Thread.yield();
+                bytes.writeOrderedLong(LOCK_OFFSET, tid & RW_WRITER_MASK);
+                bytes.writeInt(WRITE_HOLDS_OFFSET, 0);
             }
+            bytes.writeOrderedInt(OWNER_PID_OFFSET, Jvm.getProcessId());
+            int dropped = repairLocked();
+            int redone = transactional ? redoLocked(pid) : 0;
+            LOGGER.warning("Recovered the lock of a segment of " + file() + " held by process " + pid +
+                    " which is no longer running, dropping " + dropped + " inconsistent entries" +
+                    (redone > 0 ? " and redoing " + redone + " changes of its transaction" : ""));
+            unlock();
+            return true;
+        }
+
+        private void lockTimedOut(long threadId) throws IllegalStateException {
+            if (currentThread().isInterrupted())
+                throw new IllegalStateException(new InterruptedException("Unable to obtain lock, interrupted"));
+            errorListener.onLockTimeout(threadId);
+        }
+
+        /**
+         * Takes the reader/writer lock exclusively.  Setting the writer's id stops new readers,
+         * then the writer waits for the current readers to finish.  The writer can take it again, e.g. from an
+         * event listener, and it is released by the outermost unlock.
+         */
+        private void writeLock() throws IllegalStateException {
+            long tid = Jvm.getUniqueTid() & RW_WRITER_MASK;
+            if (lockAgain(tid))
+                return;
+            long deadline = System.nanoTime() + lockTimeOutNS;
+            while (true) {
+                long lock = bytes.readVolatileLong(LOCK_OFFSET);
+                long writer = lock & RW_WRITER_MASK;
+                if (writer == 0) {
+                    bytes.compareAndSwapLong(LOCK_OFFSET, lock, lock | tid);
+                } else if (writer == tid) {
+                    if ((lock & RW_READERS_MASK) == 0) {
+                        bytes.writeInt(WRITE_HOLDS_OFFSET, 0);
+                        bytes.writeOrderedInt(OWNER_PID_OFFSET, Jvm.getProcessId());
+                        return;
+                    }
+                    if (System.nanoTime() > deadline || currentThread().isInterrupted()) {
+                        // the readers can't be identified.
+                        lockTimedOut(0L);
+                        bytes.compareAndSwapLong(LOCK_OFFSET, lock, tid);
+                        deadline = System.nanoTime() + lockTimeOutNS;
+                    }
+                } else if (recoverFromDeadOwner()) {
+                    deadline = System.nanoTime() + lockTimeOutNS;
+                } else if (System.nanoTime() > deadline || currentThread().isInterrupted()) {
+                    lockTimedOut(writer);
+                    bytes.compareAndSwapLong(LOCK_OFFSET, lock, lock & RW_READERS_MASK);
+                    deadline = System.nanoTime() + lockTimeOutNS;
+                }
+            }
+        }
+
+        /**
+         * @return whether this thread holds the write lock, and has taken it again.
+         */
+        private boolean lockAgain(long tid) {
+            if (bytes.readVolatileLong(LOCK_OFFSET) != tid)
+                return false;
+            bytes.writeInt(WRITE_HOLDS_OFFSET, bytes.readInt(WRITE_HOLDS_OFFSET) + 1);
+            return true;
+        }
+
+        /**
+         * @return whether this thread holds the write lock and has released one of the times it took it again.
+         */
+        private boolean unlockAgain(long tid) {
+            int holds = bytes.readInt(WRITE_HOLDS_OFFSET);
+            if (holds == 0 || bytes.readVolatileLong(LOCK_OFFSET) != tid)
+                return false;
+            bytes.writeInt(WRITE_HOLDS_OFFSET, holds - 1);
+            return true;
+        }
+
+        private void writeUnlock() {
+            long tid = Jvm.getUniqueTid() & RW_WRITER_MASK;
+            if (unlockAgain(tid))
+                return;
+            while (true) {
+                long lock = bytes.readVolatileLong(LOCK_OFFSET);
+                if ((lock & RW_WRITER_MASK) != tid) {
+                    errorListener.errorOnUnlock(new IllegalMonitorStateException("Segment not locked by this thread"));
+                    return;
+                }
+                if (bytes.compareAndSwapLong(LOCK_OFFSET, lock, lock & RW_READERS_MASK))
+                    return;
+            }
+        }
+
+        /**
+         * Takes the lock shared with other readers if readWriteLocks is set, otherwise exclusively.  A read by the
+         * writer takes its lock again.
+         */
+        private void readLock() throws IllegalStateException {
+            if (!readWriteLocks) {
+                lock();
+                return;
+            }
+            if (lockAgain(Jvm.getUniqueTid() & RW_WRITER_MASK))
+                return;
+            long deadline = System.nanoTime() + lockTimeOutNS;
+            while (true) {
+                long lock = bytes.readVolatileLong(LOCK_OFFSET);
+                long writer = lock & RW_WRITER_MASK;
+                if (writer == 0) {
+                    if ((lock & RW_READERS_MASK) == RW_READERS_MASK)
+                        throw new IllegalStateException("Too many readers of the segment");
+                    if (bytes.compareAndSwapLong(LOCK_OFFSET, lock, lock + RW_READER))
+                        return;
+                } else if (recoverFromDeadOwner()) {
+                    deadline = System.nanoTime() + lockTimeOutNS;
+                } else if (System.nanoTime() > deadline || currentThread().isInterrupted()) {
+                    lockTimedOut(writer);
+                    bytes.compareAndSwapLong(LOCK_OFFSET, lock, lock & RW_READERS_MASK);
+                    deadline = System.nanoTime() + lockTimeOutNS;
+                }
+            }
+        }
+
+        private void readUnlock() {
+            if (!readWriteLocks) {
+                unlock();
+                return;
+            }
+            if (unlockAgain(Jvm.getUniqueTid() & RW_WRITER_MASK))
+                return;
+            while (true) {
+                long lock = bytes.readVolatileLong(LOCK_OFFSET);
+                if ((lock & RW_READERS_MASK) == 0) {
+                    errorListener.errorOnUnlock(new IllegalMonitorStateException("Segment not read locked"));
+                    return;
+                }
+                if (bytes.compareAndSwapLong(LOCK_OFFSET, lock, lock - RW_READER))
+                    return;
+            }
+        }
+
+        /**
+         * Makes the version odd before the segment is modified, so optimistic readers retry until unlock().
+         * The version is left odd if it already is, e.g. when the previous writer died holding the lock.
+         */
+        private void beginWrite() {
+            long version = bytes.readLong(VERSION_OFFSET);
+            if ((version & 1) == 0)
+                bytes.compareAndSwapLong(VERSION_OFFSET, version, version + 1);
         }
 
         private void unlock() {
+            // the lock is reentrant, the version and owner are kept until it is released by the outermost unlock().
+            boolean outermost = readWriteLocks ? bytes.readInt(WRITE_HOLDS_OFFSET) == 0
+                    : bytes.readVolatileLong(LOCK_OFFSET) >>> 48 <= 1;
+            long version = bytes.readLong(VERSION_OFFSET);
+            if (outermost && (version & 1) != 0) {
+                if (bytes.readInt(DIRTY_OFFSET) == 0)
+                    bytes.writeOrderedInt(DIRTY_OFFSET, 1);
+                bytes.writeOrderedLong(VERSION_OFFSET, version + 1);
+            }
+            if (readWriteLocks) {
+                if (outermost)
+                    bytes.writeOrderedInt(OWNER_PID_OFFSET, 0);
+                writeUnlock();
+                return;
+            }
+            if (outermost)
+                bytes.writeOrderedInt(OWNER_PID_OFFSET, 0);
             try {
                 bytes.unlockLong(LOCK_OFFSET);
             } catch (IllegalMonitorStateException e) {
@@ -528,13 +1817,466 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         }
 
         private long offsetFromPos(int pos) {
-            return entriesOffset + pos * entrySize;
+            return entriesOffset + (long) pos * entrySize;
+        }
+
+        private MultiStoreBytes entry(long offset) {
+            return entry(tmpBytes, offset);
+        }
+
+        /**
+         * The entry bytes are limited by the end of the segment, as its size is only known once its lengths are read.
+         */
+        private MultiStoreBytes entry(MultiStoreBytes entryBytes, long offset) {
+            long entriesEnd = entriesOffset + (long) entriesPerSegment * entrySize;
+            entryBytes.storePositionAndSize(bytes,
+                    offset + entryMetaDataBytes, entriesEnd - offset - entryMetaDataBytes);
+            return entryBytes;
+        }
+
+        /**
+         * @return the bytes needed for an entry starting at this offset, including the padding before the value.
+         */
+        private long sizeOfEntry(long offset, long keyLength, long valueLength) {
+            long start = bytes.startAddr() + offset;
+            long valueStart = start + entryMetaDataBytes + stopBitLength(keyLength) + keyLength
+                    + stopBitLength(valueLength);
+            return ((valueStart + 3) & ~3L) + valueLength - start;
+        }
+
+        private int inBlocks(long size) {
+            return (int) ((size + entrySize - 1) / entrySize);
+        }
+
+        /**
+         * @return the blocks needed for an entry starting at this position, at most maxEntryOversizeFactor.
+         */
+        private int blocksFor(int pos, long keyLength, long valueLength) {
+            int blocks = inBlocks(sizeOfEntry(offsetFromPos(pos), keyLength, valueLength));
+            checkBlocks(blocks, keyLength, valueLength);
+            return blocks;
+        }
+
+        private void checkBlocks(int blocks, long keyLength, long valueLength) {
+            if (blocks > maxEntryOversizeFactor)
+                throw new IllegalArgumentException("Entry too large, key " + keyLength + " bytes and value " +
+                        valueLength + " bytes need " + blocks + " blocks of " + entrySize +
+                        " but maxEntryOversizeFactor is " + maxEntryOversizeFactor);
+        }
+
+        /**
+         * @param entry positioned at the stop-bit encoded length of the value, and left there.
+         * @return the number of blocks used by the entry.
+         */
+        private int entryBlocks(long offset, NativeBytes entry, long keyLength) {
+            long valuePosition = entry.position();
+            long valueLength = entry.readStopBit();
+            entry.position(valuePosition);
+            return inBlocks(sizeOfEntry(offset, keyLength, valueLength));
+        }
+
+        private int entryBlocks(long offset) {
+            NativeBytes entry = entry(offset);
+            long keyLength = entry.readStopBit();
+            entry.skip(keyLength);
+            return entryBlocks(offset, entry, keyLength);
+        }
+
+        /**
+         * Looks up a key without taking the segment lock.  The value is copied, or only its offset
+         * recorded for a Byteable value, and the result is accepted only if the version of the segment
+         * was even and unchanged throughout.
+         *
+         * @param context   the calling thread's state, which receives the result
+         * @param keyBytes  serialized key
+         * @param hash2     a hash code related to the {@code keyBytes}
+         * @param readValue whether the value is needed or only the presence of the key
+         * @return true if a consistent result was read, false if the caller should take the lock instead.
+         */
+        boolean optimisticLookup(ReadContext context, Bytes keyBytes, int hash2, boolean readValue) {
+            long keyLength = keyBytes.remaining();
+            for (int i = 0; i < OPTIMISTIC_READ_ATTEMPTS; i++) {
+                long version = bytes.readVolatileLong(VERSION_OFFSET);
+                if ((version & 1) != 0)
+                    continue; // a writer is active.
+                boolean found = false;
+                try {
+                    for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                        if (!tier.find(context, keyBytes, keyLength, hash2))
+                            continue;
+                        found = true;
+                        if (readValue)
+                            tier.copyValue(context, context.entryBytes);
+                        break;
+                    }
+                } catch (RuntimeException e) {
+                    // an inconsistent view of the segment is only an error if nothing changed.
+                    if (bytes.readVolatileLong(VERSION_OFFSET) == version)
+                        throw e;
+                    continue;
+                }
+                if (bytes.readVolatileLong(VERSION_OFFSET) == version) {
+                    context.found = found;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Copies the value so it is only deserialized once the read is known to be consistent.
+         */
+        private void copyValue(ReadContext context, NativeBytes entry) {
+            long valueLength = entry.readStopBit();
+            entry.alignPositionAddr(4);
+            if (valueLength < 0 || valueLength > entry.remaining() || valueLength > context.valueBytes.capacity())
+                throw new IllegalStateException("Value length " + valueLength + " larger than the entry");
+            context.valueOffset = entry.positionAddr() - bytes.address();
+            context.valueSegmentBytes = bytes;
+            DirectBytes valueBytes = context.valueBytes;
+            valueBytes.clear();
+            valueBytes.write(entry, entry.position(), valueLength);
+            valueBytes.flip();
+        }
+
+        /**
+         * Looks up a key holding the read lock.  The search uses the context of the calling thread
+         * as other readers can be using the Segment concurrently.
+         *
+         * @param context   the calling thread's state, which records whether the key was found
+         * @param keyBytes  serialized key
+         * @param hash2     a hash code related to the {@code keyBytes}
+         * @param readValue whether the value is needed or only the presence of the key
+         * @return the value found, or null if absent or not read.
+         */
+        V lookup(ReadContext context, Bytes keyBytes, V usingValue, int hash2, boolean readValue) {
+            readLock();
+            try {
+                return lookupLocked(context, keyBytes, usingValue, hash2, readValue);
+            } finally {
+                readUnlock();
+            }
+        }
+
+        /**
+         * As lookup(), for a caller holding at least the read lock.
+         */
+        private V lookupLocked(ReadContext context, Bytes keyBytes, V usingValue, int hash2, boolean readValue) {
+            long keyLength = keyBytes.remaining();
+            for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                if (!tier.find(context, keyBytes, keyLength, hash2))
+                    continue;
+                context.found = true;
+                return readValue ? tier.readValue(context.entryBytes, usingValue) : null;
+            }
+            context.found = false;
+            return null;
+        }
+
+        /**
+         * Searches this tier for the key using the context of the calling thread.
+         *
+         * @return true if found, with the context's entryBytes after the key.
+         */
+        private boolean find(ReadContext context, Bytes keyBytes, long keyLength, int hash2) {
+            IntIntMultiMap lookup = context.hashLookup(bytes);
+            lookup.startSearch(hash2);
+            int pos;
+            while ((pos = lookup.nextPos()) >= 0) {
+                if (deleted(pos))
+                    continue;
+                long offset = offsetFromPos(pos);
+                NativeBytes entry = entry(context.entryBytes, offset);
+                if (keyEquals(keyBytes, keyLength, entry)) {
+                    if (expired(offset, System.currentTimeMillis()))
+                        return false;
+                    touch(offset);
+                    entry.skip(keyLength);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Searches this tier for the key, holding the lock.  If found the hashLookup is left at the entry for
+         * removePrevPos() and replacePrevPos(), otherwise it is ready for putAfterFailedSearch().  An expired
+         * entry for the key is removed and not found.
+         *
+         * @param segment the first segment of the chain, whose version covers this tier.
+         * @return the position of the entry with tmpBytes after the key, or -1 if it is not in this tier.
+         */
+        private int find(Segment segment, Bytes keyBytes, long keyLength, int hash2) {
+            hashLookup.startSearch(hash2);
+            int pos;
+            while ((pos = hashLookup.nextPos()) >= 0) {
+                if (deleted(pos))
+                    continue;
+                long offset = offsetFromPos(pos);
+                NativeBytes entry = entry(offset);
+                if (keyEquals(keyBytes, keyLength, entry)) {
+                    if (expired(offset, System.currentTimeMillis())) {
+                        segment.beginWrite();
+                        dropEntry(hash2, pos);
+                        // search again so the hashLookup is ready for putAfterFailedSearch().
+                        return find(segment, keyBytes, keyLength, hash2);
+                    }
+                    touch(offset);
+                    entry.skip(keyLength);
+                    return pos;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return whether the entry at this offset has expired by now.
+         */
+        private boolean expired(long offset, long now) {
+            if (timeToLiveMS == 0)
+                return false;
+            long deadline = bytes.readLong(offset + metaDataBytes);
+            return deadline != 0 && deadline <= now;
+        }
+
+        private void writeDeadline(long offset, long deadline) {
+            if (timeToLiveMS > 0)
+                bytes.writeLong(offset + metaDataBytes, deadline);
+        }
+
+        /**
+         * Marks the entry at this offset as accessed for the eviction policy.
+         */
+        private void touch(long offset) {
+            if (evictionPolicy == EvictionPolicy.NONE)
+                return;
+            long mark = evictionPolicy == EvictionPolicy.CLOCK ? 1 : System.currentTimeMillis();
+            // only written if changed as readers may share the lock.
+            if (bytes.readLong(offset + accessOffset) != mark)
+                bytes.writeLong(offset + accessOffset, mark);
+        }
+
+        /**
+         * Removes the expired entries of this segment and its overflow tiers holding the lock.
+         *
+         * @return the number of entries removed.
+         */
+        int removeExpired() {
+            lock();
+            try {
+                return removeExpiredLocked();
+            } finally {
+                unlock();
+            }
+        }
+
+        private int removeExpiredLocked() {
+            final long now = System.currentTimeMillis();
+            int removed = 0;
+            for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                final Segment t = tier;
+                // hash and position pairs, collected first as the hashLookup can't change while visited.
+                final int[][] expired = {new int[16]};
+                final int[] count = {0};
+                tier.hashLookup.forEach(new IntIntMultiMap.EntryConsumer() {
+                    @Override
+                    public void accept(int hash, int pos) {
+                        if (t.deleted(pos) || !t.expired(t.offsetFromPos(pos), now))
+                            return;
+                        if (count[0] * 2 == expired[0].length)
+                            expired[0] = Arrays.copyOf(expired[0], count[0] * 4);
+                        expired[0][count[0] * 2] = hash;
+                        expired[0][count[0] * 2 + 1] = pos;
+                        count[0]++;
+                    }
+                });
+                if (count[0] > 0)
+                    beginWrite();
+                for (int i = 0; i < count[0]; i++)
+                    tier.dropEntry(expired[0][i * 2], expired[0][i * 2 + 1]);
+                removed += count[0];
+            }
+            return removed;
+        }
+
+        /**
+         * Removes an entry which expired from this tier, which is notified as removed.
+         */
+        private void dropEntry(int hash2, int pos) {
+            dropEntry(hash2, pos, false);
+        }
+
+        /**
+         * Removes an entry which expired or was evicted from this tier, which is notified as removed.  An evicted
+         * entry is freed straight away rather than kept for the replicas, as eviction has to make room, and is
+         * not passed to them as it only makes room in this map.
+         */
+        private void dropEntry(int hash2, int pos, boolean evicted) {
+            long offset = offsetFromPos(pos);
+            int blocks = entryBlocks(offset);
+            K key = null;
+            V value = null;
+            if (eventListener != SharedMapEventListeners.NOP) {
+                NativeBytes entry = entry(offset);
+                entry.readStopBit();
+                key = readKey(entry);
+                value = readValue(entry, null);
+            }
+            if (replicas == 0 || evicted)
+                hashLookup.remove(hash2, pos);
+            decrementSize();
+            notifyRemoved(offset, key, value);
+            if (evicted && replicas > 0) {
+                forgetChanges(pos);
+                free(pos, blocks);
+            } else {
+                release(pos, blocks, 0);
+            }
+        }
+
+        /**
+         * @return the overflow tier after this one, or null if there is none.
+         */
+        Segment nextTier() {
+            int next = bytes.readVolatileInt(NEXT_TIER_OFFSET);
+            return next == 0 ? null : tier(next - 1);
+        }
+
+        /**
+         * @return the tier at this index in the chain starting with this segment.
+         */
+        private Segment tierOfChain(int index) {
+            Segment tier = this;
+            for (int i = 0; i < index; i++)
+                tier = tier.nextTier();
+            return tier;
+        }
+
+        /**
+         * Removes an entry of this segment or its overflow tiers chosen by the eviction policy,
+         * which is notified as removed.
+         *
+         * @return false if there are no entries to evict.
+         */
+        private boolean evict() {
+            int tiers = 1;
+            for (Segment tier = nextTier(); tier != null; tier = tier.nextTier())
+                tiers++;
+            int capacity = hashLookup.capacity();
+            int slots = tiers * capacity;
+            int victim = evictionPolicy == EvictionPolicy.CLOCK
+                    ? clockVictim(slots, capacity) : sampledVictim(slots, capacity);
+            if (victim < 0)
+                return false;
+            Segment tier = tierOfChain(victim / capacity);
+            long slot = tier.hashLookup.slot(victim % capacity);
+            beginWrite();
+            tier.dropEntry((int) (slot >>> 32), (int) slot, true);
+            return true;
+        }
+
+        /**
+         * Moves the CLOCK hand on, clearing the marks of accessed entries, to the first entry not accessed
+         * since the hand last passed it.
+         *
+         * @return the slot of the entry in the chain, or -1 if there are none.
+         */
+        private int clockVictim(int slots, int capacity) {
+            int hand = bytes.readInt(CLOCK_HAND_OFFSET);
+            Segment tier = null;
+            // all the marks are cleared by the end of the first pass.
+            for (int i = 0; i <= 2 * slots; i++, hand++) {
+                if (hand >= slots)
+                    hand = 0;
+                if (tier == null || hand % capacity == 0)
+                    tier = tierOfChain(hand / capacity);
+                long slot = tier.hashLookup.slot(hand % capacity);
+                if (slot == 0 || tier.deleted((int) slot))
+                    continue;
+                long mark = tier.offsetFromPos((int) slot) + accessOffset;
+                if (tier.bytes.readLong(mark) == 0) {
+                    bytes.writeInt(CLOCK_HAND_OFFSET, hand + 1);
+                    return hand;
+                }
+                tier.bytes.writeLong(mark, 0);
+            }
+            return -1;
+        }
+
+        /**
+         * Compares the access times of entries found after random slots.
+         *
+         * @return the slot in the chain of the least recently accessed, or -1 if there are no entries.
+         */
+        private int sampledVictim(int slots, int capacity) {
+            int victim = -1;
+            long oldest = Long.MAX_VALUE;
+            for (int i = 0; i < EVICTION_SAMPLES; i++) {
+                random ^= random << 13;
+                random ^= random >>> 7;
+                random ^= random << 17;
+                int index = (int) ((random >>> 1) % slots);
+                // the next entry from there, wrapping around.
+                for (int j = 0; j < slots; j++, index++) {
+                    if (index >= slots)
+                        index = 0;
+                    Segment tier = tierOfChain(index / capacity);
+                    long slot = tier.hashLookup.slot(index % capacity);
+                    if (slot == 0 || tier.deleted((int) slot))
+                        continue;
+                    long accessed = tier.bytes.readLong(tier.offsetFromPos((int) slot) + accessOffset);
+                    if (accessed < oldest) {
+                        oldest = accessed;
+                        victim = index;
+                    }
+                    break;
+                }
+                if (victim < 0)
+                    return -1;
+            }
+            return victim;
+        }
+
+        /**
+         * Chains a new overflow tier after the last one.
+         */
+        private Segment addTier(Segment last) {
+            Segment segment = tryAddTier(last);
+            if (segment == null)
+                throw new IllegalStateException(overflowTiers == 0
+                        ? "Segment is full, no free entries found"
+                        : "Segment is full and all " + overflowTiers + " overflow tiers are in use");
+            return segment;
+        }
+
+        /**
+         * As addTier(), unless all the overflow tiers are in use.
+         *
+         * @return the new tier, or null if there are none left.
+         */
+        private Segment tryAddTier(Segment last) {
+            int tier = allocateTier();
+            if (tier < 0)
+                return null;
+            Segment segment = tier(tier);
+            last.bytes.writeOrderedInt(NEXT_TIER_OFFSET, tier + 1);
+            return segment;
         }
 
-        private MultiStoreBytes entry(long offset) {
-            tmpBytes.storePositionAndSize(bytes,
-                    offset + metaDataBytes, entrySize - metaDataBytes);
-            return tmpBytes;
+        /**
+         * @return the value found by the last optimisticLookup() of the context.
+         */
+        V readValue(ReadContext context, V value) {
+            if (generatedValueType)
+                if (value == null)
+                    value = DataValueClasses.newDirectReference(vClass);
+                else
+                    assert value instanceof Byteable;
+            if (value instanceof Byteable) {
+                ((Byteable) value).bytes(context.valueSegmentBytes, context.valueOffset);
+                return value;
+            }
+            return context.valueBytes.readInstance(vClass, value);
         }
 
         /**
@@ -559,54 +2301,44 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         V acquire(Bytes keyBytes, K key, V usingValue, int hash2, boolean create) {
             lock();
             try {
-                long keyLength = keyBytes.remaining();
-                hashLookup.startSearch(hash2);
-                int pos;
-                while ((pos = hashLookup.nextPos()) >= 0) {
-                    long offset = offsetFromPos(pos);
-                    NativeBytes entry = entry(offset);
-                    if (!keyEqualsForAcquire(keyBytes, keyLength, entry))
-                        continue;
-                    // key is found
-                    entry.skip(keyLength);
-                    V v = readValue(entry, usingValue);
-                    notifyGet(offset, key, v);
-                    return v;
-                }
-                // key is not found
-                if (create) {
-                    usingValue = createValueIfNull(usingValue);
-                } else {
-                    if (usingValue instanceof Byteable)
-                        ((Byteable) usingValue).bytes(null, 0);
-                    usingValue = notifyMissed(keyBytes, key, usingValue);
-                    if (usingValue == null)
-                        return null;
-                }
-                pos = nextFree();
-                long offset = offsetFromPos(pos);
-                putEntryConsideringByteableValue(offset, keyBytes, usingValue);
-                hashLookup.putAfterFailedSearch(pos);
-                incrementSize();
-                notifyPut(offset, true, key, usingValue);
-                return usingValue;
+                return acquireLocked(keyBytes, key, usingValue, hash2, create);
             } finally {
                 unlock();
             }
         }
 
-        /**
-         * Who needs this? Why only in acquire()?
-         */
-        private boolean keyEqualsForAcquire(Bytes keyBytes, long keyLength, Bytes entry) {
-            if (!LOGGER.isLoggable(Level.FINE))
-                return keyEquals(keyBytes, keyLength, entry);
-            final long start0 = System.nanoTime();
-            boolean result = keyEquals(keyBytes, keyLength, entry);
-            final long time0 = System.nanoTime() - start0;
-            if (time0 > 1e6) // 1 million nanoseconds = 1 millisecond
-                LOGGER.fine("startsWith took " + time0 / 100000 / 10.0 + " ms.");
-            return result;
+        private V acquireLocked(Bytes keyBytes, K key, V usingValue, int hash2, boolean create) {
+            long keyLength = keyBytes.remaining();
+            for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                int pos = tier.find(this, keyBytes, keyLength, hash2);
+                if (pos < 0)
+                    continue;
+                // key is found
+                V v = tier.readValue(tier.tmpBytes, usingValue);
+                // the value can be changed through the reference acquired.
+                if (create && v instanceof Byteable && replicas > 0) {
+                    long offset = tier.offsetFromPos(pos);
+                    tier.writeVersion(offset, nextVersion(tier.readVersion(offset)));
+                    tier.markChanged(pos);
+                }
+                tier.notifyGet(tier.offsetFromPos(pos), key, v);
+                return v;
+            }
+            // key is not found
+            if (create) {
+                usingValue = createValueIfNull(usingValue);
+            } else {
+                if (usingValue instanceof Byteable)
+                    ((Byteable) usingValue).bytes(null, 0);
+                usingValue = notifyMissed(keyBytes, key, usingValue);
+                if (usingValue == null)
+                    return null;
+            }
+            beginWrite();
+            insert(keyBytes, key, usingValue,
+                    usingValue instanceof Byteable ? null : getValueAsBytes(usingValue), hash2, null,
+                    defaultDeadline(), 0);
+            return usingValue;
         }
 
         private V createValueIfNull(V value) {
@@ -623,76 +2355,222 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
             return value;
         }
 
-        private void putEntryConsideringByteableValue(long offset,
-                Bytes keyBytes, V value) {
-            putEntry(offset, keyBytes, value, true);
-        }
-
-        V put(Bytes keyBytes, K key, V value, int hash2, boolean replaceIfPresent) {
+        /**
+         * @param value      the value for the event listener, only used if there is one.
+         * @param valueBytes the serialized value.
+         */
+        V put(Bytes keyBytes, K key, V value, Bytes valueBytes, int hash2, boolean replaceIfPresent, long deadline) {
             lock();
             try {
-                long keyLength = keyBytes.remaining();
-                hashLookup.startSearch(hash2);
-                int pos;
-                while ((pos = hashLookup.nextPos()) >= 0) {
-                    long offset = offsetFromPos(pos);
-                    NativeBytes entry = entry(offset);
-                    if (!keyEquals(keyBytes, keyLength, entry))
-                        continue;
-                    // key is found
-                    entry.skip(keyLength);
-                    if (replaceIfPresent) {
-                        V prevValue = null;
-                        if (!putReturnsNull) {
-                            long valuePosition = entry.position();
-                            prevValue = readValue(entry, null);
-                            entry.position(valuePosition);
+                return putLocked(keyBytes, key, value, valueBytes, hash2, replaceIfPresent, !putReturnsNull,
+                        deadline);
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * @param readPrevValue whether to return the previous value.
+         * @param deadline      when the entry expires, see defaultDeadline().
+         */
+        private V putLocked(Bytes keyBytes, K key, V value, Bytes valueBytes, int hash2, boolean replaceIfPresent,
+                            boolean readPrevValue, long deadline) {
+            long keyLength = keyBytes.remaining();
+            for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                int pos = tier.find(this, keyBytes, keyLength, hash2);
+                if (pos < 0)
+                    continue;
+                // key is found
+                NativeBytes entry = tier.tmpBytes;
+                if (replaceIfPresent) {
+                    V prevValue = null;
+                    if (readPrevValue) {
+                        long valuePosition = entry.position();
+                        prevValue = tier.readValue(entry, null);
+                        entry.position(valuePosition);
+                    }
+                    beginWrite();
+                    replaceValue(tier, pos, keyBytes, key, value, valueBytes, hash2, deadline, 0);
+                    return prevValue;
+                } else {
+                    return readPrevValue ? tier.readValue(entry, null) : null;
+                }
+            }
+            // key is not found
+            beginWrite();
+            insert(keyBytes, key, value, valueBytes, hash2, null, deadline, 0);
+            return null;
+        }
+
+        /**
+         * Writes an entry to the first tier with room for it, adding an overflow tier if none has, or evicting
+         * entries until one has if the map has an eviction policy and no overflow tiers left.
+         *
+         * @param valueBytes the serialized value, or null to reuse a Byteable value for the entry.
+         * @param metaData   of an entry moved from another tier, or null for a new entry.
+         * @param deadline   when the entry expires, see defaultDeadline().
+         * @param version    of the change, or 0 for a change made to this map.
+         */
+        private void insert(Bytes keyBytes, K key, V value, Bytes valueBytes, int hash2, byte[] metaData,
+                            long deadline, long version) {
+            // the search for a new key leaves every tier ready for putAfterFailedSearch()
+            boolean searched = metaData == null;
+            boolean expiredRemoved = false;
+            Segment tier = this;
+            int pos;
+            while (!tier.hashLookupHasRoom() || (pos = tier.putEntry(keyBytes, value, valueBytes)) < 0) {
+                Segment next = tier.nextTier();
+                if (next == null) {
+                    if (!expiredRemoved && timeToLiveMS > 0) {
+                        // make room by removing expired entries first, which moves the searches on.
+                        expiredRemoved = true;
+                        if (removeExpiredLocked() > 0) {
+                            searched = false;
+                            tier = this;
+                            continue;
                         }
-                        putValue(entry, value, keyBytes);
-                        notifyPut(offset, false, key, value);
-                        return prevValue;
-                    } else {
-                        return putReturnsNull ? null : readValue(entry, null);
                     }
+                    if (evictionPolicy == EvictionPolicy.NONE) {
+                        next = addTier(tier);
+                    } else if ((next = tryAddTier(tier)) == null) {
+                        if (!evict())
+                            addTier(tier); // throws as full
+                        searched = false;
+                        tier = this;
+                        continue;
+                    }
+                    searched = false;
                 }
-                // key is not found
-                pos = nextFree();
-                long offset = offsetFromPos(pos);
-                putEntry(offset, keyBytes, value);
-                hashLookup.putAfterFailedSearch(pos);
-                incrementSize();
-                notifyPut(offset, true, key, value);
-                return null;
-            } finally {
-                unlock();
+                tier = next;
+            }
+            if (searched)
+                tier.hashLookup.putAfterFailedSearch(pos);
+            else
+                tier.hashLookup.put(hash2, pos);
+            tier.incrementSize();
+            long offset = tier.offsetFromPos(pos);
+            if (metaData != null) {
+                for (int i = 0; i < metaData.length; i++)
+                    tier.bytes.writeByte(offset + i, metaData[i]);
+            }
+            tier.writeDeadline(offset, deadline);
+            tier.touch(offset);
+            if (replicas > 0) {
+                tier.writeVersion(offset, version != 0 ? version : nextVersion(0));
+                tier.markChanged(pos);
+            }
+            tier.notifyPut(offset, metaData == null, key, value);
+        }
+
+        /**
+         * Replaces the value of an entry found in a tier, moving it to another tier if it no longer fits.
+         */
+        private void replaceValue(Segment tier, int pos, Bytes keyBytes, K key, V value, Bytes valueBytes,
+                                  int hash2, long deadline, long version) {
+            if (version == 0 && replicas > 0)
+                version = nextVersion(tier.readVersion(tier.offsetFromPos(pos)));
+            int newPos = tier.putValue(pos, tier.tmpBytes, keyBytes, valueBytes);
+            if (newPos >= 0) {
+                long offset = tier.offsetFromPos(newPos);
+                tier.writeDeadline(offset, deadline);
+                tier.touch(offset);
+                if (replicas > 0) {
+                    tier.writeVersion(offset, version);
+                    tier.markChanged(newPos);
+                }
+                tier.notifyPut(offset, false, key, value);
+                return;
             }
+            byte[] metaData = tier.removeFound(pos, keyBytes.remaining());
+            insert(keyBytes, key, value, valueBytes, hash2, metaData, deadline, version);
         }
 
-        private void putEntry(long offset, Bytes keyBytes, V value) {
-            putEntry(offset, keyBytes, value, false);
+        /**
+         * Removes the entry last found from this tier so it can be moved to another.
+         *
+         * @return the meta data of the entry.
+         */
+        private byte[] removeFound(int pos, long keyLength) {
+            long offset = offsetFromPos(pos);
+            byte[] metaData = new byte[entryMetaDataBytes];
+            for (int i = 0; i < entryMetaDataBytes; i++)
+                metaData[i] = bytes.readByte(offset + i);
+            NativeBytes entry = entry(offset);
+            entry.skip(stopBitLength(keyLength) + keyLength);
+            int blocks = entryBlocks(offset, entry, keyLength);
+            hashLookup.removePrevPos();
+            decrementSize();
+            forgetChanges(pos);
+            free(pos, blocks);
+            return metaData;
         }
 
-        private void putEntry(long offset,
-                Bytes keyBytes, V value, boolean considerByteableValue) {
+        /**
+         * Allocates the blocks for a new entry and writes its key and value.
+         *
+         * @return the position of the first block of the entry, or -1 if this tier has no room for it.
+         */
+        private int putEntry(Bytes keyBytes, V value, Bytes valueBytes) {
+            long keyLength = keyBytes.remaining();
+            boolean byteable = valueBytes == null;
+            long valueLength = byteable ? ((Byteable) value).maxSize() : valueBytes.remaining();
+            int pos = allocEntry(keyLength, valueLength);
+            if (pos < 0)
+                return -1;
+            long offset = offsetFromPos(pos);
             clearMetaData(offset);
             NativeBytes entry = entry(offset);
             writeKey(entry, keyBytes);
-            if (considerByteableValue && value instanceof Byteable) {
+            if (byteable)
                 reuseValueAsByteable(entry, (Byteable) value);
-            } else {
-                putValue(entry, value, keyBytes);
+            else
+                writeValue(entry, valueBytes);
+            return pos;
+        }
+
+        /**
+         * Replaces the value of an existing entry.  The entry grows or shrinks in place if it can,
+         * otherwise it is moved to free blocks, keeping its meta data.
+         *
+         * @param entry positioned at the value.
+         * @return the position of the first block of the entry, which changes if it was moved,
+         *         or -1 if this tier has no room for it, leaving the entry unchanged.
+         */
+        private int putValue(int pos, NativeBytes entry, Bytes keyBytes, Bytes valueBytes) {
+            long keyLength = keyBytes.remaining();
+            int blocks = entryBlocks(offsetFromPos(pos), entry, keyLength);
+            long valueLength = valueBytes.remaining();
+            int newBlocks = blocksFor(pos, keyLength, valueLength);
+            if (newBlocks < blocks) {
+                free(pos + newBlocks, blocks - newBlocks);
+            } else if (newBlocks > blocks && !allocAfter(pos + blocks, newBlocks - blocks)) {
+                int newPos = allocEntry(keyLength, valueLength);
+                if (newPos < 0)
+                    return -1;
+                long offset = offsetFromPos(pos);
+                long newOffset = offsetFromPos(newPos);
+                for (int i = 0; i < entryMetaDataBytes; i++)
+                    bytes.writeByte(newOffset + i, bytes.readByte(offset + i));
+                entry = entry(newOffset);
+                writeKey(entry, keyBytes);
+                hashLookup.replacePrevPos(newPos);
+                forgetChanges(pos);
+                free(pos, blocks);
+                pos = newPos;
             }
+            writeValue(entry, valueBytes);
+            return pos;
         }
 
         private void clearMetaData(long offset) {
-            if (metaDataBytes > 0)
-                bytes.zeroOut(offset, offset + metaDataBytes);
+            if (entryMetaDataBytes > 0)
+                bytes.zeroOut(offset, offset + entryMetaDataBytes);
         }
 
         private void writeKey(Bytes entry, Bytes keyBytes) {
             long keyLength = keyBytes.remaining();
             entry.writeStopBit(keyLength);
-            entry.write(keyBytes);
+            entry.write(keyBytes, keyBytes.position(), keyLength);
         }
 
         private void reuseValueAsByteable(NativeBytes entry, Byteable value) {
@@ -709,17 +2587,245 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
             value.bytes(bytes, valueOffset);
         }
 
-        private int nextFree() {
-            int ret = (int) freeList.setNextClearBit(nextSet);
+        /**
+         * Allocates the blocks for an entry.  The padding before the value depends on where the entry
+         * starts, so this can need one more block than the lengths alone.
+         *
+         * @return the position of the first block, or -1 if there is no room.
+         */
+        private int allocEntry(long keyLength, long valueLength) {
+            int blocks = inBlocks(entryMetaDataBytes + stopBitLength(keyLength) + keyLength
+                    + stopBitLength(valueLength) + valueLength);
+            checkBlocks(blocks, keyLength, valueLength);
+            int pos = alloc(blocks);
+            if (pos < 0)
+                return -1;
+            int needed = inBlocks(sizeOfEntry(offsetFromPos(pos), keyLength, valueLength));
+            if (needed > blocks) {
+                if (needed > maxEntryOversizeFactor)
+                    free(pos, blocks);
+                checkBlocks(needed, keyLength, valueLength);
+                if (!allocAfter(pos + blocks, needed - blocks)) {
+                    // one more block is enough wherever the entry starts.
+                    free(pos, blocks);
+                    pos = alloc(needed);
+                    if (pos < 0)
+                        return -1;
+                    int used = inBlocks(sizeOfEntry(offsetFromPos(pos), keyLength, valueLength));
+                    if (used < needed)
+                        free(pos + used, needed - used);
+                }
+            }
+            return pos;
+        }
+
+        /**
+         * Finds and marks as used a run of free blocks.
+         *
+         * @return the position of the first block, or -1 if there is no such run.
+         */
+        private int alloc(int blocks) {
+            long ret = allocFrom(nextSet, blocks);
             if (ret == DirectBitSet.NOT_FOUND) {
-                ret = (int) freeList.setNextClearBit(0);
+                ret = allocFrom(0, blocks);
                 if (ret == DirectBitSet.NOT_FOUND)
-                    throw new IllegalStateException("Segment is full, no free entries found");
+                    return -1;
+            }
+            nextSet = (int) ret + blocks;
+            return (int) ret;
+        }
+
+        private long allocFrom(int from, int blocks) {
+            long ret = freeList.setNextNContinuousClearBits(from, blocks);
+            // the bit set can be larger than the number of blocks in the segment.
+            if (ret != DirectBitSet.NOT_FOUND && ret + blocks > entriesPerSegment) {
+                freeList.clear(ret, ret + blocks);
+                return DirectBitSet.NOT_FOUND;
             }
-            nextSet = ret + 1;
             return ret;
         }
 
+        /**
+         * Marks the blocks following an entry as used, if they are free, so the entry can grow in place.
+         */
+        private boolean allocAfter(int from, int blocks) {
+            if (from + blocks > entriesPerSegment)
+                return false;
+            for (int i = from; i < from + blocks; i++)
+                if (freeList.get(i))
+                    return false;
+            freeList.set(from, from + blocks);
+            return true;
+        }
+
+        private void free(int pos, int blocks) {
+            freeList.clear(pos, pos + blocks);
+            if (pos < nextSet)
+                nextSet = pos;
+        }
+
+        /**
+         * Frees the blocks of a removed entry, or with replicas keeps it in the hashLookup until every replica
+         * has drained the removal.
+         *
+         * @param version of the removal, or 0 for a removal made to this map.
+         */
+        private void release(int pos, int blocks, long version) {
+            if (replicas == 0) {
+                free(pos, blocks);
+                return;
+            }
+            deletedSet.set(pos);
+            bytes.writeInt(DELETED_OFFSET, bytes.readInt(DELETED_OFFSET) + 1);
+            long offset = offsetFromPos(pos);
+            writeVersion(offset, version != 0 ? version : nextVersion(readVersion(offset)));
+            markChanged(pos);
+        }
+
+        /**
+         * @return the version of the last change to the entry at this offset, or 0 without replicas.
+         */
+        private long readVersion(long offset) {
+            return replicas > 0 ? bytes.readLong(offset + versionOffset) : 0;
+        }
+
+        private void writeVersion(long offset, long version) {
+            if (replicas > 0)
+                bytes.writeLong(offset + versionOffset, version);
+        }
+
+        /**
+         * Records a change to the entry at this position for every replica.
+         */
+        private void markChanged(int pos) {
+            if (replicas == 0)
+                return;
+            for (SingleThreadedDirectBitSet changed : changes)
+                changed.set(pos);
+            bytes.writeLong(REPLICA_OFFSET, replicaMask);
+        }
+
+        /**
+         * Forgets the changes to an entry which has moved.
+         */
+        private void forgetChanges(int pos) {
+            for (SingleThreadedDirectBitSet changed : changes)
+                changed.clear(pos);
+        }
+
+        /**
+         * Marks every live entry and tombstone of this segment and its tiers as changed for a replica on reconnect.
+         */
+        int markAllChanged(int replica) {
+            final SingleThreadedDirectBitSet[] changed = {null};
+            final int[] count = {0};
+            IntIntMultiMap.EntryConsumer marker = new IntIntMultiMap.EntryConsumer() {
+                @Override
+                public void accept(int hash, int pos) {
+                    changed[0].set(pos);
+                    count[0]++;
+                }
+            };
+            lock();
+            try {
+                for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                    int before = count[0];
+                    changed[0] = tier.changes[replica];
+                    // removals are kept in the hash lookup until every replica has drained them.
+                    tier.hashLookup.forEach(marker);
+                    if (count[0] > before)
+                        tier.bytes.writeLong(REPLICA_OFFSET, tier.bytes.readLong(REPLICA_OFFSET) | 1L << replica);
+                }
+                return count[0];
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Passes the entries put or removed in this segment and its overflow tiers since the replica last
+         * drained them to the consumer, holding the lock.
+         *
+         * @return the number of changes passed.
+         */
+        int drainChanges(int replica, ChangeConsumer consumer) {
+            MultiStoreBytes keyBytes = new MultiStoreBytes();
+            MultiStoreBytes valueBytes = new MultiStoreBytes();
+            long bit = 1L << replica;
+            lock();
+            try {
+                int count = 0;
+                for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                    long pending = tier.bytes.readLong(REPLICA_OFFSET);
+                    if ((pending & bit) == 0)
+                        continue;
+                    count += tier.drainTier(this, replica, consumer, keyBytes, valueBytes);
+                    tier.bytes.writeLong(REPLICA_OFFSET, pending & ~bit);
+                }
+                for (Segment tier = this; tier != null; tier = tier.nextTier())
+                    if (tier.deletedCount() > 0)
+                        tier.purgeTombstones(keyBytes);
+                return count;
+            } finally {
+                unlock();
+            }
+        }
+
+        private int drainTier(Segment segment, int replica, ChangeConsumer consumer,
+                              MultiStoreBytes keyBytes, MultiStoreBytes valueBytes) {
+            SingleThreadedDirectBitSet changed = changes[replica];
+            long now = System.currentTimeMillis();
+            int count = 0;
+            for (long p = changed.nextSetBit(0); p >= 0; p = changed.nextSetBit(p + 1)) {
+                int pos = (int) p;
+                changed.clear(pos);
+                long offset = offsetFromPos(pos);
+                NativeBytes entry = entry(offset);
+                long keyLength = entry.readStopBit();
+                keyBytes.storePositionAndSize(bytes, offset + entryMetaDataBytes + entry.position(), keyLength);
+                long version = readVersion(offset);
+                if (deletedSet.get(pos)) {
+                    int hash2 = hasher.segmentHash(hasher.hash(keyBytes));
+                    // not passed if the key has been put again, as that is passed instead.
+                    if (!segment.containsKey(keyBytes, keyLength, hash2)) {
+                        consumer.accept(keyBytes, null, version >>> 8, (byte) version);
+                        count++;
+                    }
+                    if (purgeable(pos, now))
+                        purge(hash2, pos);
+                    continue;
+                }
+                entry.skip(keyLength);
+                long valueLength = entry.readStopBit();
+                entry.alignPositionAddr(4);
+                valueBytes.storePositionAndSize(bytes, offset + entryMetaDataBytes + entry.position(), valueLength);
+                consumer.accept(keyBytes, valueBytes, version >>> 8, (byte) version);
+                count++;
+            }
+            return count;
+        }
+
+        private boolean changedForAnyReplica(int pos) {
+            for (SingleThreadedDirectBitSet changed : changes)
+                if (changed.get(pos))
+                    return true;
+            return false;
+        }
+
+        /**
+         * @return whether this segment or its overflow tiers have an entry for the key, expired or not.
+         */
+        private boolean containsKey(Bytes keyBytes, long keyLength, int hash2) {
+            for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                tier.hashLookup.startSearch(hash2);
+                int pos;
+                while ((pos = tier.hashLookup.nextPos()) >= 0)
+                    if (!tier.deleted(pos) && keyEquals(keyBytes, keyLength, tier.entry(tier.offsetFromPos(pos))))
+                        return true;
+            }
+            return false;
+        }
+
         /**
          * @param value the object to reuse (if possible),
          *              if {@code null} a new object is created
@@ -741,50 +2847,265 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
             return entry.readInstance(vClass, value);
         }
 
-        boolean keyEquals(Bytes keyBytes, long keyLength, Bytes entry) {
-            return keyLength == entry.readStopBit() && entry.startsWith(keyBytes);
+        boolean keyEquals(Bytes keyBytes, long keyLength, Bytes entry) {
+            if (keyLength != entry.readStopBit() || keyLength > entry.remaining())
+                return false;
+            // not startsWith() as in lang 6.3.4 it only compares the first half of every 8 bytes.
+            long position = entry.position();
+            long keyPosition = keyBytes.position();
+            int i = 0;
+            for (; i < keyLength - 7; i += 8)
+                if (entry.readLong(position + i) != keyBytes.readLong(keyPosition + i))
+                    return false;
+            for (; i < keyLength; i++)
+                if (entry.readByte(position + i) != keyBytes.readByte(keyPosition + i))
+                    return false;
+            return true;
+        }
+
+        /**
+         * Removes a key (or key-value pair) from the Segment.
+         *
+         * The entry will only be removed if {@code expectedValue} equals
+         * to {@code null} or the value previously corresponding to the specified key.
+         *
+         * @param keyBytes bytes of the key to remove
+         * @param hash2 a hash code related to the {@code keyBytes}
+         * @return the value of the entry that was removed if the entry
+         *         corresponding to the {@code keyBytes} exists
+         *         and {@link #removeReturnsNull} is {@code false},
+         *         {@code null} otherwise
+         */
+        V remove(Bytes keyBytes, K key, V expectedValue, int hash2) {
+            lock();
+            try {
+                return removeLocked(keyBytes, key, expectedValue, hash2, !removeReturnsNull);
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * @param readValue whether to return the value removed, which is always read if expectedValue is set.
+         */
+        private V removeLocked(Bytes keyBytes, K key, V expectedValue, int hash2, boolean readValue) {
+            long keyLength = keyBytes.remaining();
+            for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                int pos = tier.find(this, keyBytes, keyLength, hash2);
+                if (pos < 0)
+                    continue;
+                // key is found
+                NativeBytes entry = tier.tmpBytes;
+                long offset = tier.offsetFromPos(pos);
+                int blocks = tier.entryBlocks(offset, entry, keyLength);
+                V valueRemoved = expectedValue != null || readValue
+                        ? tier.readValue(entry, null) : null;
+                if (expectedValue != null && !expectedValue.equals(valueRemoved))
+                    return null;
+                beginWrite();
+                tier.removeEntry(pos, blocks, key, valueRemoved, 0);
+                return valueRemoved;
+            }
+            // key is not found
+            return null;
+        }
+
+        /**
+         * Removes the entry found last from this tier.
+         *
+         * @param version of the removal, or 0 for a removal made to this map.
+         */
+        private void removeEntry(int pos, int blocks, K key, V value, long version) {
+            if (replicas == 0)
+                hashLookup.removePrevPos();
+            decrementSize();
+            notifyRemoved(offsetFromPos(pos), key, value);
+            release(pos, blocks, version);
+        }
+
+        boolean apply(Bytes keyBytes, Bytes valueBytes, int hash2, long version, int fromReplica) {
+            K key = listenerKey(keyBytes);
+            V value = valueBytes == null ? null : listenerValue(valueBytes);
+            lock();
+            try {
+                return applyLocked(keyBytes, key, valueBytes, value, hash2, version, fromReplica);
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Applies a change made to another map unless this segment has a later version of the key, which may
+         * be a removal it still keeps for its replicas.
+         *
+         * @param valueBytes the value put, or null for a removal.
+         * @param version    of the change, see version().
+         * @return whether the change was applied.
+         */
+        private boolean applyLocked(Bytes keyBytes, K key, Bytes valueBytes, V value, int hash2, long version,
+                                    int fromReplica) {
+            long keyLength = keyBytes.remaining();
+            if (version <= latestVersion(keyBytes, keyLength, hash2))
+                return false;
+            Segment tier = this;
+            int pos = -1;
+            for (; tier != null; tier = tier.nextTier())
+                if ((pos = tier.find(this, keyBytes, keyLength, hash2)) >= 0)
+                    break;
+            if (valueBytes == null) {
+                if (pos < 0)
+                    return false;
+                beginWrite();
+                tier.removeEntry(pos, tier.entryBlocks(tier.offsetFromPos(pos)), key, value, version);
+            } else {
+                beginWrite();
+                if (pos >= 0)
+                    replaceValue(tier, pos, keyBytes, key, value, valueBytes, hash2, defaultDeadline(), version);
+                else
+                    insert(keyBytes, key, value, valueBytes, hash2, null, defaultDeadline(), version);
+            }
+            if (fromReplica >= 0)
+                forgetChange(keyBytes, keyLength, hash2, version, fromReplica);
+            return true;
+        }
+
+        /**
+         * @return the latest version of the key in this segment and its overflow tiers, including removals
+         *         kept for the replicas, or 0 if there is none.
+         */
+        private long latestVersion(Bytes keyBytes, long keyLength, int hash2) {
+            long latest = 0;
+            for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                tier.hashLookup.startSearch(hash2);
+                int pos;
+                while ((pos = tier.hashLookup.nextPos()) >= 0) {
+                    long offset = tier.offsetFromPos(pos);
+                    if (keyEquals(keyBytes, keyLength, tier.entry(offset)))
+                        latest = Math.max(latest, tier.readVersion(offset));
+                }
+            }
+            return latest;
+        }
+
+        /**
+         * Forgets the change applied from a replica so it isn't passed back to it.  A removal no other replica
+         * has to drain is freed.
+         */
+        private void forgetChange(Bytes keyBytes, long keyLength, int hash2, long version, int replica) {
+            for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                tier.hashLookup.startSearch(hash2);
+                int pos;
+                while ((pos = tier.hashLookup.nextPos()) >= 0) {
+                    long offset = tier.offsetFromPos(pos);
+                    if (tier.readVersion(offset) != version || !keyEquals(keyBytes, keyLength, tier.entry(offset)))
+                        continue;
+                    tier.changes[replica].clear(pos);
+                    if (tier.deleted(pos) && tier.purgeable(pos, System.currentTimeMillis()))
+                        tier.purge(hash2, pos);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return whether the removal at the position has been drained by every replica and kept for
+         * tombstoneRetentionMS.
+         */
+        private boolean purgeable(int pos, long now) {
+            // a version can be ahead of the clock, so with no retention it isn't compared.
+            return !changedForAnyReplica(pos) && (tombstoneRetentionMS == 0
+                    || (readVersion(offsetFromPos(pos)) >>> 8) + tombstoneRetentionMS <= now);
+        }
+
+        /**
+         * Frees the removals of this tier which are purgeable.
+         */
+        private void purgeTombstones(MultiStoreBytes keyBytes) {
+            long now = System.currentTimeMillis();
+            for (long p = deletedSet.nextSetBit(0); p >= 0; p = deletedSet.nextSetBit(p + 1)) {
+                int pos = (int) p;
+                if (!purgeable(pos, now))
+                    continue;
+                long offset = offsetFromPos(pos);
+                NativeBytes entry = entry(offset);
+                long keyLength = entry.readStopBit();
+                keyBytes.storePositionAndSize(bytes, offset + entryMetaDataBytes + entry.position(), keyLength);
+                purge(hasher.segmentHash(hasher.hash(keyBytes)), pos);
+            }
+        }
+
+        /**
+         * Frees a removed entry every replica has drained.
+         */
+        private void purge(int hash2, int pos) {
+            hashLookup.remove(hash2, pos);
+            deletedSet.clear(pos);
+            bytes.writeInt(DELETED_OFFSET, bytes.readInt(DELETED_OFFSET) - 1);
+            free(pos, entryBlocks(offsetFromPos(pos)));
         }
 
         /**
-         * Removes a key (or key-value pair) from the Segment.
+         * Replaces, adds or removes the value of a key according to a function called holding the lock.
+         * A new value is written over the old one if it fits.
          *
-         * The entry will only be removed if {@code expectedValue} equals
-         * to {@code null} or the value previously corresponding to the specified key.
-         *
-         * @param keyBytes bytes of the key to remove
-         * @param hash2 a hash code related to the {@code keyBytes}
-         * @return the value of the entry that was removed if the entry
-         *         corresponding to the {@code keyBytes} exists
-         *         and {@link #removeReturnsNull} is {@code false},
-         *         {@code null} otherwise
+         * @param mode  one of COMPUTE, COMPUTE_IF_ABSENT, COMPUTE_IF_PRESENT or MERGE, which use
+         *              remappingFunction, mappingFunction, remappingFunction and mergeFunction respectively.
+         * @param value for MERGE
+         * @return the value associated with the key afterwards, or null if there is none.
          */
-        V remove(Bytes keyBytes, K key, V expectedValue, int hash2) {
+        V compute(Bytes keyBytes, K key, int hash2, int mode, V value,
+                  Function<? super K, ? extends V> mappingFunction,
+                  BiFunction<? super K, ? super V, ? extends V> remappingFunction,
+                  BiFunction<? super V, ? super V, ? extends V> mergeFunction) {
             lock();
             try {
                 long keyLength = keyBytes.remaining();
-                hashLookup.startSearch(hash2);
-                int pos;
-                while ((pos = hashLookup.nextPos()) >= 0) {
-                    long offset = offsetFromPos(pos);
-                    NativeBytes entry = entry(offset);
-                    if (!keyEquals(keyBytes, keyLength, entry))
-                        continue;
-                    // key is found
-                    entry.skip(keyLength);
-                    V valueRemoved = expectedValue != null || !removeReturnsNull
-                            ? readValue(entry, null) : null;
-                    if (expectedValue != null && !expectedValue.equals(valueRemoved))
-                        return null;
-                    hashLookup.removePrevPos();
-                    decrementSize();
-                    freeList.clear(pos);
-                    if (pos < nextSet)
-                        nextSet = pos;
-                    notifyRemoved(offset, key, valueRemoved);
-                    return valueRemoved;
+                Segment tier = this;
+                int pos = -1;
+                for (; tier != null; tier = tier.nextTier())
+                    if ((pos = tier.find(this, keyBytes, keyLength, hash2)) >= 0)
+                        break;
+                V oldValue = null;
+                if (pos >= 0) {
+                    NativeBytes entry = tier.tmpBytes;
+                    long valuePosition = entry.position();
+                    oldValue = tier.readValue(entry, null);
+                    entry.position(valuePosition);
                 }
-                // key is not found
-                return null;
+                V newValue;
+                switch (mode) {
+                    case COMPUTE_IF_ABSENT:
+                        if (oldValue != null)
+                            return oldValue;
+                        newValue = mappingFunction.apply(key);
+                        break;
+                    case COMPUTE_IF_PRESENT:
+                        if (oldValue == null)
+                            return null;
+                        newValue = remappingFunction.apply(key, oldValue);
+                        break;
+                    case COMPUTE:
+                        newValue = remappingFunction.apply(key, oldValue);
+                        break;
+                    default:
+                        newValue = oldValue == null ? value : mergeFunction.apply(oldValue, value);
+                        break;
+                }
+                if (newValue == null) {
+                    if (pos >= 0) {
+                        beginWrite();
+                        tier.removeEntry(pos, tier.entryBlocks(tier.offsetFromPos(pos)), key, oldValue, 0);
+                    }
+                    return null;
+                }
+                checkValue(newValue);
+                Bytes valueBytes = getValueAsBytes(newValue);
+                beginWrite();
+                if (pos >= 0)
+                    replaceValue(tier, pos, keyBytes, key, newValue, valueBytes, hash2, defaultDeadline(), 0);
+                else
+                    insert(keyBytes, key, newValue, valueBytes, hash2, null, defaultDeadline(), 0);
+                return newValue;
             } finally {
                 unlock();
             }
@@ -794,13 +3115,9 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
             lock();
             try {
                 long keyLength = keyBytes.remaining();
-                hashLookup.startSearch(hash2);
-                int pos;
-                while ((pos = hashLookup.nextPos()) >= 0) {
-                    Bytes entry = entry(offsetFromPos(pos));
-                    if (keyEquals(keyBytes, keyLength, entry))
+                for (Segment tier = this; tier != null; tier = tier.nextTier())
+                    if (tier.find(this, keyBytes, keyLength, hash2) >= 0)
                         return true;
-                }
                 return false;
             } finally {
                 unlock();
@@ -818,27 +3135,24 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
          * @param hash2         a hash code related to the {@code keyBytes}
          * @return the replaced value or {@code null} if the value was not replaced
          */
-        V replace(Bytes keyBytes, K key, V expectedValue, V newValue, int hash2) {
+        V replace(Bytes keyBytes, K key, V expectedValue, V newValue, Bytes newValueBytes, int hash2) {
             lock();
             try {
                 long keyLength = keyBytes.remaining();
-                hashLookup.startSearch(hash2);
-                int pos;
-                while ((pos = hashLookup.nextPos()) >= 0) {
-                    final long offset = offsetFromPos(pos);
-                    NativeBytes entry = entry(offset);
-                    if (!keyEquals(keyBytes, keyLength, entry))
+                for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                    int pos = tier.find(this, keyBytes, keyLength, hash2);
+                    if (pos < 0)
                         continue;
                     // key is found
-                    entry.skip(keyLength);
+                    NativeBytes entry = tier.tmpBytes;
                     long valuePosition = entry.position();
-                    V valueRead = readValue(entry, null);
+                    V valueRead = tier.readValue(entry, null);
                     if (valueRead == null)
                         return null;
                     if (expectedValue == null || expectedValue.equals(valueRead)) {
                         entry.position(valuePosition);
-                        putValue(entry, newValue, keyBytes);
-                        notifyPut(offset, false, key, newValue);
+                        beginWrite();
+                        replaceValue(tier, pos, keyBytes, key, newValue, newValueBytes, hash2, defaultDeadline(), 0);
                         return valueRead;
                     }
                     return null;
@@ -853,14 +3167,14 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
 
         private void notifyPut(long offset, boolean added, K key, V value) {
             if (eventListener != SharedMapEventListeners.NOP) {
-                tmpBytes.storePositionAndSize(bytes, offset, entrySize);
+                tmpBytes.storePositionAndSize(bytes, offset, (long) entryBlocks(offset) * entrySize);
                 eventListener.onPut(VanillaSharedHashMap.this, tmpBytes, metaDataBytes, added, key, value);
             }
         }
 
         private void notifyGet(long offset, K key, V value) {
             if (eventListener != SharedMapEventListeners.NOP) {
-                tmpBytes.storePositionAndSize(bytes, offset, entrySize);
+                tmpBytes.storePositionAndSize(bytes, offset, (long) entryBlocks(offset) * entrySize);
                 eventListener.onGetFound(VanillaSharedHashMap.this, tmpBytes, metaDataBytes, key, value);
             }
         }
@@ -874,47 +3188,449 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
 
         private void notifyRemoved(long offset, K key, V value) {
             if (eventListener != SharedMapEventListeners.NOP) {
-                tmpBytes.storePositionAndSize(bytes, offset, entrySize);
+                tmpBytes.storePositionAndSize(bytes, offset, (long) entryBlocks(offset) * entrySize);
                 eventListener.onRemove(VanillaSharedHashMap.this, tmpBytes, metaDataBytes, key, value);
             }
         }
 
-        private void putValue(Bytes entry, V value, Bytes buffer) {
-            buffer.clear();
-            if (generatedValueType)
-                ((BytesMarshallable) value).writeMarshallable(buffer);
-            else
-                buffer.writeInstance(vClass, value);
-            buffer.flip();
-            if (buffer.remaining() + 4 > entry.remaining())
-                throw new IllegalArgumentException("Value too large for entry was " + (
-                        buffer.remaining() + 4) + ", remaining: " + entry.remaining());
-            entry.writeStopBit(buffer.remaining());
+        private void writeValue(Bytes entry, Bytes valueBytes) {
+            long valueLength = valueBytes.remaining();
+            entry.writeStopBit(valueLength);
             entry.alignPositionAddr(4);
-            entry.write(buffer);
+            entry.write(valueBytes, valueBytes.position(), valueLength);
+        }
+
+        /**
+         * Performs a bulk operation for the keys of a batch in this segment, taking the lock once.
+         *
+         * @param from the first of the batch's entries in order for this segment.
+         * @param to   after the last of them.
+         * @return the number of entries removed if the batch is removing them, the number of changes applied if
+         *         it is applying them, otherwise 0.
+         */
+        int process(Batch batch, int from, int to) {
+            MultiStoreBytes keyBytes = new MultiStoreBytes();
+            MultiStoreBytes valueBytes = new MultiStoreBytes();
+            boolean shared = batch.op == Batch.GET && readShared();
+            if (shared)
+                readLock();
+            else
+                lock();
+            try {
+                int sizeBefore = batch.op == Batch.REMOVE ? getSize() : 0;
+                int count = 0;
+                ReadContext context = shared ? acquireReadContext() : null;
+                for (int i = from; i < to; i++) {
+                    int n = batch.order[i];
+                    batch.keyBytes(n, keyBytes);
+                    int hash2 = hasher.segmentHash(batch.hashes[n]);
+                    K key = batch.key(n);
+                    switch (batch.op) {
+                        case Batch.GET:
+                            batch.values[n] = shared
+                                    ? lookupLocked(context, keyBytes, null, hash2, true)
+                                    : acquireLocked(keyBytes, key, null, hash2, false);
+                            break;
+                        case Batch.PUT:
+                            batch.valueBytes(n, valueBytes);
+                            putLocked(keyBytes, key, batch.value(n), valueBytes, hash2, true, false, defaultDeadline());
+                            break;
+                        case Batch.REMOVE:
+                            removeLocked(keyBytes, key, null, hash2,
+                                    eventListener != SharedMapEventListeners.NOP);
+                            break;
+                        case Batch.APPLY:
+                            Bytes applied = batch.valueLengths[n] < 0 ? null : batch.valueBytes(n, valueBytes);
+                            if (applyLocked(keyBytes, listenerKey(keyBytes), applied,
+                                    applied == null ? null : listenerValue(applied), hash2, batch.versions[n],
+                                    batch.fromReplica))
+                                count++;
+                            break;
+                    }
+                }
+                return batch.op == Batch.REMOVE ? sizeBefore - getSize() : count;
+            } finally {
+                if (shared)
+                    readUnlock();
+                else
+                    unlock();
+            }
+        }
+
+        /**
+         * @param segment the number of this segment, which every key has to be in.
+         */
+        int putAll(int segment, ByteBuffer entries) {
+            ByteBufferBytes keyBytes = new ByteBufferBytes(entries);
+            ByteBufferBytes valueBytes = new ByteBufferBytes(entries);
+            long position = entries.position();
+            int count = 0;
+            lock();
+            try {
+                while (position < entries.limit()) {
+                    keyBytes.limit(entries.limit());
+                    keyBytes.position(position);
+                    long keyLength = keyBytes.readStopBit();
+                    long keyPosition = keyBytes.position();
+                    valueBytes.limit(entries.limit());
+                    valueBytes.position(keyPosition + keyLength);
+                    long valueLength = valueBytes.readStopBit();
+                    position = valueBytes.position() + valueLength;
+                    valueBytes.limit(position);
+                    keyBytes.limit(keyPosition + keyLength);
+                    long hash = hasher.hash(keyBytes);
+                    if (hasher.getSegment(hash) != segment)
+                        throw new IllegalArgumentException("The key of entry " + count + " is not in this segment");
+                    putLocked(keyBytes, listenerKey(keyBytes), listenerValue(valueBytes), valueBytes,
+                            hasher.segmentHash(hash), true, false, defaultDeadline());
+                    count++;
+                }
+                return count;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Makes the changes to this segment of the transaction the process was committing when it died, if it had
+         * one in its redo log, holding the lock it held.
+         *
+         * @return the number of changes made.
+         */
+        private int redoLocked(int pid) {
+            ByteBuffer changes;
+            try {
+                changes = RedoLog.read(file(), pid);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Failed to read the redo log of process " + pid + " for " + file(), e);
+                return 0;
+            }
+            if (changes == null)
+                return 0;
+            long segment = (bytes.startAddr() - ms.address() - SharedHashMapBuilder.HEADER_SIZE) / segmentSize();
+            ChangeReader reader = new ChangeReader(changes);
+            int redone = 0;
+            for (int position = changes.position(); position < changes.limit(); ) {
+                position = reader.read(position);
+                if (reader.segment != segment)
+                    continue;
+                changeLocked(reader.keyBytes, listenerKey(reader.keyBytes), reader.valueBytes(),
+                        reader.removal ? null : listenerValue(reader.valueBytes), reader.hash2());
+                redone++;
+            }
+            return redone;
+        }
+
+        /**
+         * Puts the value, or removes the key if the value is null, holding the lock.
+         */
+        private void changeLocked(Bytes keyBytes, K key, Bytes valueBytes, V value, int hash2) {
+            if (valueBytes == null)
+                removeLocked(keyBytes, key, null, hash2, eventListener != SharedMapEventListeners.NOP);
+            else
+                putLocked(keyBytes, key, value, valueBytes, hash2, true, false, defaultDeadline());
+        }
+
+        /**
+         * @return a copy of the serialized value of the key, or null if it isn't present, holding the lock.
+         */
+        private byte[] copyValueLocked(Bytes keyBytes, int hash2) {
+            long keyLength = keyBytes.remaining();
+            for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                int pos = tier.find(this, keyBytes, keyLength, hash2);
+                if (pos < 0)
+                    continue;
+                NativeBytes entry = tier.tmpBytes;
+                byte[] value = new byte[(int) entry.readStopBit()];
+                entry.alignPositionAddr(4);
+                entry.readFully(value);
+                return value;
+            }
+            return null;
+        }
+
+        /**
+         * Writes the pages of this tier back to the file, called by sync().
+         *
+         * @return the bytes synced.
+         */
+        private long force() throws IOException {
+            if (syncBuffers == null)
+                syncBuffers = mapForSync(bytes.startAddr() - ms.address(), segmentSize());
+            return VanillaSharedHashMap.force(syncBuffers);
+        }
+
+        int repair() {
+            lock();
+            try {
+                return repairLocked();
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Rebuilds each tier's hashLookup, free list and size from the entries its hashLookup refers to which
+         * are intact and don't overlap another entry.
+         *
+         * @return the number of entries dropped.
+         */
+        private int repairLocked() {
+            beginWrite();
+            int dropped = 0;
+            for (Segment tier = this; tier != null; tier = tier.nextTier())
+                dropped += tier.repairTier();
+            return dropped;
+        }
+
+        private int repairTier() {
+            final int[][] positions = {new int[16]};
+            final int[] count = {0};
+            hashLookup.forEach(new IntIntMultiMap.EntryConsumer() {
+                @Override
+                public void accept(int hash, int pos) {
+                    if (count[0] == positions[0].length)
+                        positions[0] = Arrays.copyOf(positions[0], count[0] * 2);
+                    positions[0][count[0]++] = pos;
+                }
+            });
+            int[] sorted = positions[0];
+            Arrays.sort(sorted, 0, count[0]);
+            hashLookup.clear();
+            freeList.clear();
+            nextSet = 0;
+            BitSet kept = new BitSet(entriesPerSegment);
+            MultiStoreBytes keyBytes = new MultiStoreBytes();
+            int size = 0;
+            int deleted = 0;
+            int dropped = 0;
+            for (int i = 0; i < count[0]; i++) {
+                int pos = sorted[i];
+                if (i > 0 && sorted[i - 1] == pos)
+                    continue;
+                int blocks = intactEntryBlocks(pos, keyBytes);
+                // the entries are added in order, so one overlaps an earlier entry if its first block is in use.
+                if (blocks < 0 || freeList.get(pos)) {
+                    dropped++;
+                    continue;
+                }
+                freeList.set(pos, pos + blocks);
+                hashLookup.put(hasher.segmentHash(hasher.hash(keyBytes)), pos);
+                kept.set(pos);
+                if (deleted(pos))
+                    deleted++;
+                else
+                    size++;
+            }
+            bytes.writeInt(SIZE_OFFSET, size);
+            countSize();
+            if (replicas > 0) {
+                // forget the removals and changes of the entries dropped.
+                for (int pos = -1; (pos = (int) deletedSet.nextSetBit(pos + 1)) >= 0; )
+                    if (!kept.get(pos))
+                        deletedSet.clear(pos);
+                for (SingleThreadedDirectBitSet changed : changes)
+                    for (int pos = -1; (pos = (int) changed.nextSetBit(pos + 1)) >= 0; )
+                        if (!kept.get(pos))
+                            changed.clear(pos);
+                bytes.writeInt(DELETED_OFFSET, deleted);
+                bytes.writeLong(REPLICA_OFFSET, replicaMask);
+            }
+            return dropped;
+        }
+
+        /**
+         * @param keyBytes set to the key of the entry.
+         * @return the blocks of the entry at this position, or -1 if its lengths don't fit in this tier.
+         */
+        private int intactEntryBlocks(int pos, MultiStoreBytes keyBytes) {
+            if (pos < 0 || pos >= entriesPerSegment)
+                return -1;
+            long offset = offsetFromPos(pos);
+            long maxSize = (long) Math.min(entriesPerSegment - pos, maxEntryOversizeFactor) * entrySize;
+            NativeBytes entry = entry(offset);
+            long keyLength = entry.readStopBit();
+            if (keyLength < 0 || entryMetaDataBytes + entry.position() + keyLength + 1 > maxSize)
+                return -1;
+            keyBytes.storePositionAndSize(bytes, offset + entryMetaDataBytes + entry.position(), keyLength);
+            entry.skip(keyLength);
+            long valueLength = entry.readStopBit();
+            if (valueLength < 0 || valueLength > maxSize)
+                return -1;
+            long size = sizeOfEntry(offset, keyLength, valueLength);
+            return size > maxSize ? -1 : inBlocks(size);
         }
 
         void clear() {
             lock();
             try {
-                hashLookup.clear();
-                freeList.clear();
-                resetSize();
+                beginWrite();
+                for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                    if (replicas > 0) {
+                        // each entry is removed so the replicas drain the removals.
+                        final Segment t = tier;
+                        final int[][] live = {new int[16]};
+                        final int[] count = {0};
+                        tier.hashLookup.forEach(new IntIntMultiMap.EntryConsumer() {
+                            @Override
+                            public void accept(int hash, int pos) {
+                                if (t.deleted(pos))
+                                    return;
+                                if (count[0] == live[0].length)
+                                    live[0] = Arrays.copyOf(live[0], count[0] * 2);
+                                live[0][count[0]++] = pos;
+                            }
+                        });
+                        for (int i = 0; i < count[0]; i++)
+                            tier.release(live[0][i], 0, 0);
+                    } else {
+                        tier.hashLookup.clear();
+                        tier.freeList.clear();
+                        tier.nextSet = 0;
+                    }
+                    tier.resetSize();
+                }
             } finally {
                 unlock();
             }
 
         }
 
+        /**
+         * Measures this segment and its overflow tiers holding the read lock.
+         */
+        SegmentStats stats(int segment) {
+            readLock();
+            try {
+                int tiers = 0, entries = 0, maxProbeLength = 0, hashCollisions = 0;
+                int freeRuns = 0, largestFreeRun = 0;
+                long usedBlocks = 0, probeLengths = 0;
+                for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                    tiers++;
+                    final int[] hashes = new int[tier.tierSize()];
+                    final int[] probes = new int[2]; // count, max
+                    final long[] total = new long[1];
+                    tier.hashLookup.forEachProbeLength(new IntIntMultiMap.EntryConsumer() {
+                        @Override
+                        public void accept(int hash, int probeLength) {
+                            if (probes[0] < hashes.length)
+                                hashes[probes[0]] = hash;
+                            probes[0]++;
+                            probes[1] = Math.max(probes[1], probeLength);
+                            total[0] += probeLength;
+                        }
+                    });
+                    entries += probes[0];
+                    maxProbeLength = Math.max(maxProbeLength, probes[1]);
+                    probeLengths += total[0];
+                    hashCollisions += collisions(hashes, Math.min(probes[0], hashes.length));
+
+                    // the free list may have spare bits after entriesPerSegment.
+                    long freeBlocks = 0;
+                    long free = tier.freeList.nextClearBit(0);
+                    while (free >= 0 && free < entriesPerSegment) {
+                        long end = tier.freeList.nextSetBit(free);
+                        if (end < 0 || end > entriesPerSegment)
+                            end = entriesPerSegment;
+                        freeRuns++;
+                        largestFreeRun = (int) Math.max(largestFreeRun, end - free);
+                        freeBlocks += end - free;
+                        free = end == entriesPerSegment ? -1 : tier.freeList.nextClearBit(end);
+                    }
+                    usedBlocks += entriesPerSegment - freeBlocks;
+                }
+                return new SegmentStats(segment, tiers, entries, tiers * multiMapCapacity(),
+                        (long) tiers * entriesPerSegment, usedBlocks, probeLengths, maxProbeLength, hashCollisions,
+                        freeRuns, largestFreeRun);
+            } finally {
+                readUnlock();
+            }
+        }
+
+        /**
+         * Reads the entries of this segment and its overflow tiers holding the read lock.
+         */
+        void readEntries(final List<K> keys, final List<V> values) {
+            final MultiStoreBytes entryBytes = new MultiStoreBytes();
+            final long now = System.currentTimeMillis();
+            readLock();
+            try {
+                for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                    final Segment t = tier;
+                    tier.hashLookup.forEach(new IntIntMultiMap.EntryConsumer() {
+                        @Override
+                        public void accept(int hash, int pos) {
+                            if (t.deleted(pos) || t.expired(t.offsetFromPos(pos), now))
+                                return;
+                            NativeBytes entry = t.entry(entryBytes, t.offsetFromPos(pos));
+                            entry.readStopBit();
+                            keys.add(readKey(entry));
+                            values.add(t.readValue(entry, null));
+                        }
+                    });
+                }
+            } finally {
+                readUnlock();
+            }
+        }
+
+        /**
+         * Passes the key and value of each entry of this segment and its overflow tiers to the consumer
+         * holding the read lock, reusing the same two Bytes.
+         */
+        void forEachBytes(final BytesEntryConsumer consumer) {
+            final MultiStoreBytes entryBytes = new MultiStoreBytes();
+            final MultiStoreBytes keyBytes = new MultiStoreBytes();
+            final MultiStoreBytes valueBytes = new MultiStoreBytes();
+            final long now = System.currentTimeMillis();
+            readLock();
+            try {
+                for (Segment tier = this; tier != null; tier = tier.nextTier()) {
+                    final Segment t = tier;
+                    tier.hashLookup.forEach(new IntIntMultiMap.EntryConsumer() {
+                        @Override
+                        public void accept(int hash, int pos) {
+                            long offset = t.offsetFromPos(pos);
+                            if (t.deleted(pos) || t.expired(offset, now))
+                                return;
+                            NativeBytes entry = t.entry(entryBytes, offset);
+                            long keyLength = entry.readStopBit();
+                            long keyOffset = offset + entryMetaDataBytes + entry.position();
+                            entry.skip(keyLength);
+                            long valueLength = entry.readStopBit();
+                            entry.alignPositionAddr(4);
+                            long valueOffset = offset + entryMetaDataBytes + entry.position();
+                            keyBytes.storePositionAndSize(t.bytes, keyOffset, keyLength);
+                            valueBytes.storePositionAndSize(t.bytes, valueOffset, valueLength);
+                            consumer.accept(keyBytes, valueBytes);
+                        }
+                    });
+                }
+            } finally {
+                readUnlock();
+            }
+        }
+
+        private K readKey(NativeBytes entry) {
+            if (generatedKeyType) {
+                K key = DataValueClasses.newInstance(kClass);
+                ((BytesMarshallable) key).readMarshallable(entry);
+                return key;
+            }
+            return entry.readInstance(kClass, null);
+        }
+
         void visit(IntIntMultiMap.EntryConsumer entryConsumer) {
             hashLookup.forEach(entryConsumer);
         }
 
         Entry<K, V> getEntry(int pos) {
             long offset = offsetFromPos(pos);
+            if (deleted(pos) || expired(offset, System.currentTimeMillis()))
+                return null;
             NativeBytes entry = entry(offset);
             entry.readStopBit();
-            K key = entry.readInstance(kClass, null); //todo: readUsing?
+            K key = readKey(entry); //todo: readUsing?
 
             V value = readValue(entry, null); //todo: reusable container
 
@@ -924,18 +3640,449 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         }
     }
 
-    final class EntryIterator implements Iterator<Entry<K, V>>, IntIntMultiMap.EntryConsumer {
+    /**
+     * The keys of a bulk operation, and the values to put, serialized and hashed so they can be grouped by
+     * segment and each segment locked once for all its keys.  The keys are processed a batch at a time, and
+     * the segments of a batch are processed in parallel if there is an executor.
+     */
+    final class Batch {
+        static final int GET = 0;
+        static final int PUT = 1;
+        static final int REMOVE = 2;
+        static final int APPLY = 3;
+
+        final DirectBytes arena = new DirectStore(ms.bytesMarshallerFactory(),
+                Math.max(BATCH_BYTES, 4 * maxEntrySize()), false).createSlice();
+        final long[] keyOffsets;
+        final int[] keyLengths;
+        final int[] valueLengths;
+        final long[] hashes;
+        final int[] segmentNums;
+        final long[] versions;
+        final Object[] keys;
+        final Object[] values;
+        // the entries in segment order, and their segment number in the high 32 bits to sort by.
+        final int[] order;
+        final long[] grouped;
+        final MultiStoreBytes hashBytes = new MultiStoreBytes();
+        int op;
+        ExecutorService executor;
+        Map<K, V> results;
+        int fromReplica = -1;
+        int count;
+        // the entries removed or changes applied.
+        int processed;
+        boolean inUse;
+
+        Batch() {
+            int capacity = BATCH_ENTRIES;
+            keyOffsets = new long[capacity];
+            keyLengths = new int[capacity];
+            valueLengths = new int[capacity];
+            hashes = new long[capacity];
+            segmentNums = new int[capacity];
+            versions = new long[capacity];
+            keys = new Object[capacity];
+            values = new Object[capacity];
+            order = new int[capacity];
+            grouped = new long[capacity];
+        }
+
+        void start(int op, ExecutorService executor, Map<K, V> results) {
+            this.op = op;
+            this.executor = executor;
+            this.results = results;
+            fromReplica = -1;
+            processed = 0;
+            inUse = true;
+        }
+
+        /**
+         * @param value to put, or null
+         */
+        void add(K key, V value) {
+            // processing can reuse the thread local buffers, so the batch is flushed before a key is written.
+            if (count == keys.length || arena.remaining() < 2 * maxEntrySize())
+                flush();
+            long keyOffset = arena.position();
+            writeKey(arena, key);
+            long valueOffset = arena.position();
+            if (value != null)
+                writeValue(arena, value);
+            arena.checkEndOfBuffer();
+            keyOffsets[count] = keyOffset;
+            keyLengths[count] = (int) (valueOffset - keyOffset);
+            valueLengths[count] = (int) (arena.position() - valueOffset);
+            long hash = hasher.hash(keyBytes(count, hashBytes));
+            hashes[count] = hash;
+            segmentNums[count] = hasher.getSegment(hash);
+            keys[count] = key;
+            values[count] = value;
+            count++;
+        }
+
+        /**
+         * Copies a change made to another map to apply.
+         *
+         * @param valueBytes the value put, or null for a removal.
+         */
+        void add(Bytes keyBytes, Bytes valueBytes, long version) {
+            long keyLength = keyBytes.remaining();
+            long valueLength = valueBytes == null ? 0 : valueBytes.remaining();
+            if (count == keys.length || arena.remaining() < keyLength + valueLength)
+                flush();
+            long keyOffset = arena.position();
+            arena.write(keyBytes, keyBytes.position(), keyLength);
+            if (valueBytes != null)
+                arena.write(valueBytes, valueBytes.position(), valueLength);
+            arena.checkEndOfBuffer();
+            keyOffsets[count] = keyOffset;
+            keyLengths[count] = (int) keyLength;
+            valueLengths[count] = valueBytes == null ? -1 : (int) valueLength;
+            long hash = hasher.hash(keyBytes(count, hashBytes));
+            hashes[count] = hash;
+            segmentNums[count] = hasher.getSegment(hash);
+            versions[count] = version;
+            count++;
+        }
+
+        // only the keys and values passed to add() are held, which are a K and a V.
+        @SuppressWarnings("unchecked")
+        K key(int n) {
+            return (K) keys[n];
+        }
+
+        @SuppressWarnings("unchecked")
+        V value(int n) {
+            return (V) values[n];
+        }
+
+        MultiStoreBytes keyBytes(int n, MultiStoreBytes bytes) {
+            bytes.storePositionAndSize(arena, keyOffsets[n], keyLengths[n]);
+            return bytes;
+        }
+
+        MultiStoreBytes valueBytes(int n, MultiStoreBytes bytes) {
+            bytes.storePositionAndSize(arena, keyOffsets[n] + keyLengths[n], valueLengths[n]);
+            return bytes;
+        }
+
+        void flush() {
+            if (count == 0)
+                return;
+            try {
+                groupBySegment();
+                List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+                for (int i = 0; i < count; ) {
+                    final int from = i;
+                    final int segmentNum = segmentNums[order[from]];
+                    while (i < count && segmentNums[order[i]] == segmentNum)
+                        i++;
+                    final int to = i;
+                    final Segment segment = segment(segmentNum);
+                    tasks.add(new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            return segment.process(Batch.this, from, to);
+                        }
+                    });
+                }
+                for (int r : invokeAll(tasks, executor))
+                    processed += r;
+                if (results != null) {
+                    for (int i = 0; i < count; i++)
+                        if (values[i] != null)
+                            results.put(key(i), value(i));
+                }
+            } finally {
+                clear();
+            }
+        }
+
+        /**
+         * Sorts the entries by segment, so only the segments the batch touches are visited however many the
+         * map has.
+         */
+        private void groupBySegment() {
+            for (int i = 0; i < count; i++)
+                grouped[i] = (long) segmentNums[i] << 32 | i;
+            Arrays.sort(grouped, 0, count);
+            for (int i = 0; i < count; i++)
+                order[i] = (int) grouped[i];
+        }
+
+        private void clear() {
+            Arrays.fill(keys, 0, count, null);
+            Arrays.fill(values, 0, count, null);
+            count = 0;
+            arena.clear();
+        }
+
+        void release() {
+            clear();
+            executor = null;
+            results = null;
+            inUse = false;
+        }
+    }
+
+    /**
+     * Reads the changes of a transaction, held in the format of a RedoLog.
+     */
+    final class ChangeReader {
+        final ByteBuffer changes;
+        final ByteBufferBytes keyBytes;
+        final ByteBufferBytes valueBytes;
+        int segment;
+        boolean removal;
+
+        ChangeReader(ByteBuffer changes) {
+            this.changes = changes;
+            keyBytes = new ByteBufferBytes(changes);
+            valueBytes = new ByteBufferBytes(changes);
+        }
+
+        /**
+         * Reads the change at the position.
+         *
+         * @return the position of the next change.
+         */
+        int read(int position) {
+            segment = changes.getInt(position);
+            int keyLength = changes.getInt(position + 4);
+            int valueLength = changes.getInt(position + 8);
+            removal = valueLength < 0;
+            int keyPosition = position + RedoLog.CHANGE_HEADER;
+            int valuePosition = keyPosition + keyLength;
+            int end = valuePosition + Math.max(0, valueLength);
+            if (segment < 0 || segment >= segments.length() || keyLength < 0 || end > changes.limit())
+                throw new IllegalStateException("Corrupt change at " + position + " of a transaction");
+            keyBytes.limit(changes.limit());
+            keyBytes.position(keyPosition);
+            keyBytes.limit(valuePosition);
+            valueBytes.limit(changes.limit());
+            valueBytes.position(valuePosition);
+            valueBytes.limit(end);
+            return end;
+        }
+
+        /**
+         * @return the value put, or null for a removal.
+         */
+        Bytes valueBytes() {
+            return removal ? null : valueBytes;
+        }
+
+        int hash2() {
+            return hasher.segmentHash(hasher.hash(keyBytes));
+        }
+    }
+
+    final class MapTransaction implements Transaction<K, V> {
+        private ByteBuffer changes = ByteBuffer.allocateDirect(TRANSACTION_BYTES).order(ByteOrder.nativeOrder());
+        private final List<K> keys = new ArrayList<K>();
+        private final List<V> values = new ArrayList<V>();
+        private final BitSet segmentNums = new BitSet();
+        private byte[] copyBuffer = new byte[64];
+        private boolean committed = false;
+
+        @Override
+        public Transaction<K, V> put(K key, V value) {
+            if (key == null || value == null)
+                throw new NullPointerException();
+            add(key, value);
+            return this;
+        }
+
+        @Override
+        public Transaction<K, V> remove(K key) {
+            if (key == null)
+                throw new NullPointerException();
+            add(key, null);
+            return this;
+        }
+
+        private void add(K key, V value) {
+            if (committed)
+                throw new IllegalStateException("The transaction was already committed");
+            DirectBytes keyBytes = getKeyAsBytes(key);
+            DirectBytes valueBytes = value == null ? null : getValueAsBytes(value);
+            int keyLength = (int) keyBytes.remaining();
+            int valueLength = valueBytes == null ? -1 : (int) valueBytes.remaining();
+            int segment = hasher.getSegment(hasher.hash(keyBytes));
+            ensureRemaining(RedoLog.CHANGE_HEADER + keyLength + Math.max(0, valueLength));
+            changes.putInt(segment).putInt(keyLength).putInt(valueLength);
+            copy(keyBytes, keyLength);
+            if (valueBytes != null)
+                copy(valueBytes, valueLength);
+            keys.add(key);
+            values.add(value);
+            segmentNums.set(segment);
+        }
+
+        private void ensureRemaining(int length) {
+            if (changes.remaining() >= length)
+                return;
+            ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(changes.capacity() * 2, changes.position() + length))
+                    .order(ByteOrder.nativeOrder());
+            changes.flip();
+            bigger.put(changes);
+            changes = bigger;
+        }
+
+        private void copy(Bytes bytes, int length) {
+            if (copyBuffer.length < length)
+                copyBuffer = new byte[Math.max(copyBuffer.length * 2, length)];
+            bytes.readFully(copyBuffer, 0, length);
+            changes.put(copyBuffer, 0, length);
+        }
+
+        @Override
+        public void commit() {
+            if (committed)
+                throw new IllegalStateException("The transaction was already committed");
+            committed = true;
+            if (keys.isEmpty())
+                return;
+            ByteBuffer toCommit = changes.duplicate().order(ByteOrder.nativeOrder());
+            toCommit.flip();
+            int[] locked = new int[segmentNums.cardinality()];
+            int lockedCount = 0;
+            try {
+                // in segment order, so transactions don't deadlock.
+                for (int s = segmentNums.nextSetBit(0); s >= 0; s = segmentNums.nextSetBit(s + 1)) {
+                    segment(s).lock();
+                    locked[lockedCount++] = s;
+                }
+                if (useRedoLog) {
+                    // one transaction of this process at a time is in its log.
+                    RedoLog log = redoLog();
+                    synchronized (log) {
+                        log.write(toCommit, keys.size());
+                        try {
+                            commitLocked(toCommit);
+                        } finally {
+                            log.clear();
+                        }
+                    }
+                } else {
+                    commitLocked(toCommit);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to write the redo log of " + file(), e);
+            } finally {
+                while (lockedCount > 0)
+                    segment(locked[--lockedCount]).unlock();
+            }
+        }
+
+        /**
+         * Makes each change, copying the value it replaces first, then undoes those made if one fails.
+         */
+        private void commitLocked(ByteBuffer toCommit) {
+            ChangeReader reader = new ChangeReader(toCommit);
+            int[] positions = new int[keys.size()];
+            byte[][] previous = new byte[keys.size()][];
+            int started = 0;
+            boolean done = false;
+            try {
+                for (int i = 0, position = toCommit.position(); i < positions.length; i++) {
+                    positions[i] = position;
+                    position = reader.read(position);
+                    Segment segment = segment(reader.segment);
+                    int hash2 = reader.hash2();
+                    previous[i] = segment.copyValueLocked(reader.keyBytes, hash2);
+                    started = i + 1;
+                    segment.changeLocked(reader.keyBytes, keys.get(i), reader.valueBytes(), values.get(i), hash2);
+                }
+                done = true;
+            } finally {
+                if (!done)
+                    undo(reader, positions, previous, started);
+            }
+        }
+
+        private void undo(ChangeReader reader, int[] positions, byte[][] previous, int started) {
+            for (int i = started - 1; i >= 0; i--) {
+                reader.read(positions[i]);
+                Segment segment = segment(reader.segment);
+                DirectBytes valueBytes = null;
+                if (previous[i] != null) {
+                    valueBytes = acquireBytes(localValueBytes);
+                    valueBytes.write(previous[i]);
+                    valueBytes.flip();
+                }
+                try {
+                    segment.changeLocked(reader.keyBytes, listenerKey(reader.keyBytes), valueBytes,
+                            valueBytes == null ? null : listenerValue(valueBytes), reader.hash2());
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "Failed to undo a change of a transaction to " + file(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Per thread state for lookups which don't hold the segment lock exclusively, as a Segment's hashLookup
+     * and tmpBytes can only be used by the thread holding the lock.
+     */
+    final class ReadContext {
+        final MultiStoreBytes lookupBytes = new MultiStoreBytes();
+        final MultiStoreBytes entryBytes = new MultiStoreBytes();
+        final DirectBytes valueBytes = new DirectStore(ms.bytesMarshallerFactory(), maxEntrySize(), false).createSlice();
+        final IntIntMultiMap hashLookup;
+        boolean found;
+        Bytes valueSegmentBytes;
+        long valueOffset;
+
+        ReadContext() {
+            hashLookup = createMultiMap(hashLookupBytes(segment(0).bytes));
+        }
+
+        private Bytes hashLookupBytes(Bytes segmentBytes) {
+            lookupBytes.storePositionAndSize(segmentBytes, SharedHashMapBuilder.SEGMENT_HEADER, sizeOfMultiMap());
+            return lookupBytes;
+        }
+
+        IntIntMultiMap hashLookup(Bytes segmentBytes) {
+            hashLookupBytes(segmentBytes);
+            return hashLookup;
+        }
+    }
 
-        int segmentIndex = segments.length;
+    /**
+     * Iterates over the segments from {@code to - 1} down to {@code from}.  trySplit() hands the segments not
+     * started yet to another iterator.
+     */
+    final class EntryIterator implements SplittableIterator<Entry<K, V>>, IntIntMultiMap.EntryConsumer {
+
+        int from;
+        int segmentIndex;
+        Segment tier = null;
 
         Entry<K, V> nextEntry, lastReturned;
 
-        Deque<Integer> segmentPositions = new ArrayDeque<Integer>(); //todo: replace with a more efficient, auto resizing int[]
+        int[] segmentPositions = new int[16];
+        int positionsRead = 0;
+        int positionsCount = 0;
 
-        EntryIterator() {
+        EntryIterator(int from, int to) {
+            this.from = from;
+            this.segmentIndex = to;
             nextEntry = nextSegmentEntry();
         }
 
+        @Override
+        public SplittableIterator<Entry<K, V>> trySplit() {
+            // the segments from from up to, not including, segmentIndex are still to be read.
+            if (segmentIndex - from < 2)
+                return null;
+            int mid = from + (segmentIndex - from) / 2;
+            EntryIterator split = new EntryIterator(from, mid);
+            from = mid;
+            return split;
+        }
+
         public boolean hasNext() {
             return nextEntry != null;
         }
@@ -956,13 +4103,12 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         }
 
         Entry<K, V> nextSegmentEntry() {
-            while (segmentIndex >= 0) {
-                if (segmentPositions.isEmpty()) {
+            while (segmentIndex >= from) {
+                if (positionsRead == positionsCount) {
                     switchToNextSegment();
                 } else {
-                    Segment segment = segments[segmentIndex];
-                    while (!segmentPositions.isEmpty()) {
-                        Entry<K, V> entry = segment.getEntry(segmentPositions.removeFirst());
+                    while (positionsRead < positionsCount) {
+                        Entry<K, V> entry = tier.getEntry(segmentPositions[positionsRead++]);
                         if (entry != null) {
                             return entry;
                         }
@@ -973,22 +4119,26 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         }
 
         private void switchToNextSegment() {
-            segmentPositions.clear();
-            segmentIndex--;
-            if (segmentIndex >= 0) {
-                segments[segmentIndex].visit(this);
-            }
+            positionsRead = positionsCount = 0;
+            if (tier != null)
+                tier = tier.nextTier();
+            if (tier == null && --segmentIndex >= from)
+                tier = segment(segmentIndex);
+            if (tier != null)
+                tier.visit(this);
         }
 
         @Override
         public void accept(int key, int value) {
-            segmentPositions.add(value);
+            if (positionsCount == segmentPositions.length)
+                segmentPositions = Arrays.copyOf(segmentPositions, positionsCount * 2);
+            segmentPositions[positionsCount++] = value;
         }
     }
 
     final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
         public Iterator<Map.Entry<K, V>> iterator() {
-            return new EntryIterator();
+            return new EntryIterator(0, segments.length());
         }
 
         public boolean contains(Object o) {
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.NativeBytes;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Each slot holds a 32-bit key followed by a 32-bit value.
+ */
+public class VanillaSharedIntIntMap extends AbstractPrimitiveSharedMap implements SharedIntIntMap {
+    private static final int VALUE_OFFSET = 4;
+
+    public VanillaSharedIntIntMap(SharedHashMapBuilder builder, File file) throws IOException {
+        super(builder, file, 8);
+    }
+
+    @Override
+    long readKey(NativeBytes bytes, long offset) {
+        return bytes.readInt(offset);
+    }
+
+    @Override
+    void writeKey(NativeBytes bytes, long offset, long key) {
+        bytes.writeInt(offset, (int) key);
+    }
+
+    @Override
+    public int get(int key, int missing) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            long offset = segment.find(key, hash);
+            return offset < 0 ? missing : segment.bytes.readInt(offset + VALUE_OFFSET);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public int put(int key, int value, int missing) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            long offset = segment.find(key, hash);
+            int prevValue = missing;
+            if (offset < 0)
+                offset = segment.add(key, hash);
+            else
+                prevValue = segment.bytes.readInt(offset + VALUE_OFFSET);
+            segment.bytes.writeInt(offset + VALUE_OFFSET, value);
+            return prevValue;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public int remove(int key, int missing) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            long offset = segment.find(key, hash);
+            if (offset < 0)
+                return missing;
+            int value = segment.bytes.readInt(offset + VALUE_OFFSET);
+            segment.remove(offset);
+            return value;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(int key) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            return segment.find(key, hash) >= 0;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public int addAndGet(int key, int delta) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            long offset = segment.find(key, hash);
+            if (offset < 0)
+                offset = segment.add(key, hash);
+            int value = segment.bytes.readInt(offset + VALUE_OFFSET) + delta;
+            segment.bytes.writeInt(offset + VALUE_OFFSET, value);
+            return value;
+        } finally {
+            segment.unlock();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.NativeBytes;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Each slot holds a 64-bit key followed by a 64-bit value.
+ */
+public class VanillaSharedLongLongMap extends AbstractPrimitiveSharedMap implements SharedLongLongMap {
+    private static final int VALUE_OFFSET = 8;
+
+    public VanillaSharedLongLongMap(SharedHashMapBuilder builder, File file) throws IOException {
+        super(builder, file, 16);
+    }
+
+    @Override
+    long readKey(NativeBytes bytes, long offset) {
+        return bytes.readLong(offset);
+    }
+
+    @Override
+    void writeKey(NativeBytes bytes, long offset, long key) {
+        bytes.writeLong(offset, key);
+    }
+
+    @Override
+    public long get(long key, long missing) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            long offset = segment.find(key, hash);
+            return offset < 0 ? missing : segment.bytes.readLong(offset + VALUE_OFFSET);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public long put(long key, long value, long missing) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            long offset = segment.find(key, hash);
+            long prevValue = missing;
+            if (offset < 0)
+                offset = segment.add(key, hash);
+            else
+                prevValue = segment.bytes.readLong(offset + VALUE_OFFSET);
+            segment.bytes.writeLong(offset + VALUE_OFFSET, value);
+            return prevValue;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public long remove(long key, long missing) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            long offset = segment.find(key, hash);
+            if (offset < 0)
+                return missing;
+            long value = segment.bytes.readLong(offset + VALUE_OFFSET);
+            segment.remove(offset);
+            return value;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(long key) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            return segment.find(key, hash) >= 0;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public long addAndGet(long key, long delta) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            long offset = segment.find(key, hash);
+            if (offset < 0)
+                offset = segment.add(key, hash);
+            long value = segment.bytes.readLong(offset + VALUE_OFFSET) + delta;
+            segment.bytes.writeLong(offset + VALUE_OFFSET, value);
+            return value;
+        } finally {
+            segment.unlock();
+        }
+    }
+}
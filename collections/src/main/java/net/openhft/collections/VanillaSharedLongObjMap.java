@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectBytes;
+import net.openhft.lang.io.DirectStore;
+import net.openhft.lang.io.MultiStoreBytes;
+import net.openhft.lang.io.NativeBytes;
+import net.openhft.lang.io.serialization.BytesMarshallable;
+import net.openhft.lang.model.DataValueClasses;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Each slot holds a 64-bit key followed by entrySize bytes for the stop-bit encoded length and bytes of the
+ * value.  As slots are moved when keys are removed, values are always copied rather than referenced.
+ */
+public class VanillaSharedLongObjMap<V> extends AbstractPrimitiveSharedMap implements SharedLongObjMap<V> {
+    private static final int VALUE_OFFSET = 8;
+
+    private final ThreadLocal<DirectBytes> localBytes = new ThreadLocal<DirectBytes>();
+    private final Class<V> vClass;
+    private final boolean generatedValueType;
+    private final boolean putReturnsNull;
+    private final boolean removeReturnsNull;
+
+    public VanillaSharedLongObjMap(SharedHashMapBuilder builder, File file, Class<V> vClass) throws IOException {
+        super(builder, file, VALUE_OFFSET + ((builder.entrySize() + 7) & ~7));
+        this.vClass = vClass;
+        this.generatedValueType = builder.generatedValueType();
+        this.putReturnsNull = builder.putReturnsNull();
+        this.removeReturnsNull = builder.removeReturnsNull();
+    }
+
+    @Override
+    long readKey(NativeBytes bytes, long offset) {
+        return bytes.readLong(offset);
+    }
+
+    @Override
+    void writeKey(NativeBytes bytes, long offset, long key) {
+        bytes.writeLong(offset, key);
+    }
+
+    @Override
+    public V get(long key) {
+        return getUsing(key, null);
+    }
+
+    @Override
+    public V getUsing(long key, V value) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            long offset = segment.find(key, hash);
+            return offset < 0 ? null : readValue(segment, offset, value);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public V put(long key, V value) {
+        checkValue(value);
+        Bytes valueBytes = getValueAsBytes(value);
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            long offset = segment.find(key, hash);
+            V prevValue = null;
+            if (offset < 0)
+                offset = segment.add(key, hash);
+            else if (!putReturnsNull)
+                prevValue = readValue(segment, offset, null);
+            MultiStoreBytes slot = slotValue(segment, offset);
+            slot.writeStopBit(valueBytes.remaining());
+            slot.write(valueBytes);
+            return prevValue;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public V remove(long key) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            long offset = segment.find(key, hash);
+            if (offset < 0)
+                return null;
+            V value = removeReturnsNull ? null : readValue(segment, offset, null);
+            segment.remove(offset);
+            return value;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(long key) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            return segment.find(key, hash) >= 0;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    private void checkValue(Object value) {
+        if (!vClass.isInstance(value)) {
+            // value.getClass will cause NPE exactly as needed
+            throw new ClassCastException("Value must be a " + vClass.getName() +
+                    " but was a " + value.getClass());
+        }
+    }
+
+    private MultiStoreBytes slotValue(Segment segment, long offset) {
+        MultiStoreBytes slot = segment.tmpBytes;
+        slot.storePositionAndSize(segment.bytes, offset + VALUE_OFFSET, slotSize - VALUE_OFFSET);
+        return slot;
+    }
+
+    private V readValue(Segment segment, long offset, V value) {
+        MultiStoreBytes slot = slotValue(segment, offset);
+        slot.readStopBit();
+        if (generatedValueType) {
+            if (value == null)
+                value = DataValueClasses.newInstance(vClass);
+            ((BytesMarshallable) value).readMarshallable(slot);
+            return value;
+        }
+        return slot.readInstance(vClass, value);
+    }
+
+    private Bytes getValueAsBytes(V value) {
+        DirectBytes bytes = localBytes.get();
+        if (bytes == null)
+            localBytes.set(bytes = new DirectStore(bytesMarshallerFactory(), slotSize * 2, false).createSlice());
+        else
+            bytes.clear();
+        if (generatedValueType)
+            ((BytesMarshallable) value).writeMarshallable(bytes);
+        else
+            bytes.writeInstance(vClass, value);
+        bytes.checkEndOfBuffer();
+        bytes.flip();
+        long length = bytes.remaining();
+        if (VanillaSharedHashMap.stopBitLength(length) + length > slotSize - VALUE_OFFSET)
+            throw new IllegalArgumentException("Value too large for entry was " + length +
+                    " bytes, entrySize: " + builder.entrySize());
+        return bytes;
+    }
+}
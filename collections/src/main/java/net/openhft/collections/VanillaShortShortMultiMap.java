@@ -169,6 +169,11 @@ class VanillaShortShortMultiMap implements IntIntMultiMap {
         removePos((searchPos - ENTRY_SIZE) & capacityMask2);
     }
 
+    @Override
+    public void replacePrevPos(int value) {
+        bytes.writeInt((searchPos - ENTRY_SIZE) & capacityMask2, ((searchHash << 16) | value));
+    }
+
     @Override
     public void putAfterFailedSearch(int value) {
         bytes.writeInt(searchPos, ((searchHash << 16) | value));
@@ -203,6 +208,27 @@ class VanillaShortShortMultiMap implements IntIntMultiMap {
         }
     }
 
+    @Override
+    public void forEachProbeLength(EntryConsumer action) {
+        for (int i = 0; i < capacity; i++) {
+            int key = bytes.readInt(i << ENTRY_SIZE_SHIFT) >>> 16;
+            if (key != UNSET_KEY)
+                action.accept(key, ((i - key) & capacityMask) + 1);
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public long slot(int index) {
+        int entry = bytes.readInt(index << ENTRY_SIZE_SHIFT);
+        int key = entry >>> 16;
+        return key == UNSET_KEY ? 0 : ((long) key << 32) | (entry & 0xFFFF);
+    }
+
     @Override
     public void clear() {
         for (int pos = 0; pos < bytes.capacity(); pos += ENTRY_SIZE) {
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.collections.VanillaSharedHashMap.Segment;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class ApproximateSizeTest {
+
+    @Test
+    public void testApproximateSizeFollowsChanges() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(10000)
+                .minSegments(16)
+                .create(file, String.class, String.class);
+        SharedHashMap<String, String> map2 = new SharedHashMapBuilder()
+                .entries(10000)
+                .minSegments(16)
+                .create(file, String.class, String.class);
+        assertTrue(map.isEmpty());
+        assertEquals(0, map.approximateSize());
+
+        map.put("key", "value");
+        assertFalse(map2.isEmpty());
+        assertEquals(1, map2.longSize());
+
+        for (int i = 0; i < 5000; i++)
+            map.put("key" + i, "value" + i);
+        assertEquals(5001, map2.longSize());
+        assertEquals(5001, map2.approximateSize());
+
+        for (int i = 0; i < 5000; i++)
+            map2.remove("key" + i);
+        map2.remove("key");
+        assertEquals(0, map.approximateSize());
+        assertTrue(map.isEmpty());
+
+        map.put("key", "value");
+        map2.clear();
+        assertEquals(0, map.approximateSize());
+        assertTrue(map.isEmpty());
+        map2.close();
+        map.close();
+    }
+
+    @Test
+    public void testCountsSizeOfOlderFiles() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(10000)
+                .minSegments(16)
+                .create(file, String.class, String.class);
+        for (int i = 0; i < 1000; i++)
+            map.put("key" + i, "value" + i);
+        int segments = map.builder().actualSegments();
+        long segmentSize = ((VanillaSharedHashMap) map).segmentSize();
+        map.close();
+
+        // as written before the size was counted in the header.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        for (int i = 0; i < segments; i++) {
+            raf.seek(SharedHashMapBuilder.HEADER_SIZE + i * segmentSize + Segment.COUNTED_SIZE_OFFSET);
+            raf.writeInt(0);
+        }
+        raf.seek(SharedHashMapBuilder.SIZE_COUNTED_OFFSET);
+        raf.writeInt(0);
+        raf.seek(SharedHashMapBuilder.SIZE_STRIPES_OFFSET);
+        for (int i = 0; i < SharedHashMapBuilder.SIZE_STRIPES; i++)
+            raf.writeLong(0);
+        raf.close();
+
+        map = new SharedHashMapBuilder()
+                .entries(10000)
+                .minSegments(16)
+                .create(file, String.class, String.class);
+        assertEquals(1000, map.approximateSize());
+        assertEquals(1000, map.size());
+        map.close();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class BulkOperationTest {
+
+    static void checkBulkOperations(SharedHashMap<String, String> map, ExecutorService executor) {
+        // more entries than a batch.
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        for (int i = 0; i < 5000; i++)
+            entries.put("key" + i, "value" + i);
+        map.put("key0", "old");
+        map.putAll(entries, executor);
+        assertEquals(entries, new HashMap<String, String>(map));
+
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 6000; i += 3)
+            keys.add("key" + i);
+        Map<String, String> found = map.getAll(keys, executor);
+        assertEquals(1667, found.size());
+        for (Map.Entry<String, String> entry : found.entrySet())
+            assertEquals(entries.get(entry.getKey()), entry.getValue());
+
+        assertEquals(1667, map.removeAll(keys, executor));
+        assertEquals(5000 - 1667, map.size());
+        assertTrue(map.getAll(keys, executor).isEmpty());
+        assertEquals(0, map.removeAll(keys, executor));
+        assertEquals("value1", map.get("key1"));
+        assertNull(map.get("key3"));
+    }
+
+    @Test
+    public void testBulkOperations() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(20000)
+                .minSegments(4)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        checkBulkOperations(map, null);
+        map.close();
+    }
+
+    @Test
+    public void testBulkOperationsInParallel() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                    .entries(20000)
+                    .minSegments(4)
+                    .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+            checkBulkOperations(map, executor);
+            map.close();
+
+            SharedHashMap<String, String> map2 = new SharedHashMapBuilder()
+                    .entries(20000)
+                    .minSegments(4)
+                    .readWriteLocks(true)
+                    .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+            checkBulkOperations(map2, executor);
+            map2.close();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBulkOperationsManySegments() throws IOException {
+        // more segments than entries in a batch.
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(20000)
+                .minSegments(4096)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        assertTrue(map.builder().actualSegments() > 1024);
+        checkBulkOperations(map, null);
+        map.close();
+    }
+
+    @Test
+    public void testPutAllNullValue() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(20000)
+                .minSegments(4)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        Map<String, String> entries = new HashMap<String, String>();
+        entries.put("key", null);
+        try {
+            map.putAll(entries);
+            fail();
+        } catch (NullPointerException expected) {
+            // as for put()
+        }
+        // the batch can be used again.
+        map.putAll(Collections.singletonMap("key", "value"));
+        assertEquals(Collections.singletonMap("key", "value"), map.getAll(Arrays.asList("key", "missing")));
+        map.close();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectStore;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BytesKeyTest {
+
+    static Bytes bytes(String... strings) {
+        Bytes bytes = new DirectStore(256).createSlice();
+        for (String s : strings)
+            bytes.writeInstance(String.class, s);
+        bytes.flip();
+        return bytes;
+    }
+
+    @Test
+    public void testBytesKeysAndValues() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(2)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+
+        Bytes key1 = bytes("key1");
+        Bytes value1 = bytes("one");
+        assertNull(map.put(key1, value1));
+        assertEquals(0, key1.position());
+        assertEquals(0, value1.position());
+        assertEquals("one", map.get("key1"));
+        assertEquals("one", map.getUsing(key1, null));
+        assertEquals("one", map.put(key1, bytes("uno")));
+
+        map.put("key2", "two");
+        // a key in the middle of a buffer.
+        Bytes buffer = bytes("prefix", "key2");
+        buffer.position(buffer.readStopBit() + 1);
+        assertEquals("two", map.getUsing(buffer, null));
+        assertEquals("two", map.remove(buffer));
+        assertFalse(map.containsKey("key2"));
+        assertNull(map.getUsing(buffer, null));
+        assertNull(map.remove(buffer));
+
+        HashedKey key = new HashedKey();
+        for (int i = 0; i < 100; i++) {
+            key.set(bytes("key" + i));
+            map.put(key, bytes("value" + i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, map.get("key" + i));
+            assertEquals("value" + i, map.getUsing(key.set(bytes("key" + i)), null));
+        }
+        assertEquals("value1", map.remove(bytes("key1")));
+        assertNull(map.getUsing(new HashedKey(bytes("key1")), null));
+        assertEquals(99, map.size());
+        map.close();
+    }
+
+    @Test
+    public void testEventListenerGetsKeysAndValues() throws IOException {
+        final List<String> events = new ArrayList<String>();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .eventListener(new SharedMapEventListener<String, String>() {
+                    @Override
+                    public String onGetMissing(SharedHashMap<String, String> map, Bytes keyBytes, String key,
+                                               String usingValue) {
+                        events.add("missing " + key);
+                        return null;
+                    }
+
+                    @Override
+                    public void onGetFound(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes,
+                                           String key, String value) {
+                        events.add("found " + key + "=" + value);
+                    }
+
+                    @Override
+                    public void onPut(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes,
+                                      boolean added, String key, String value) {
+                        events.add("put " + key + "=" + value);
+                    }
+
+                    @Override
+                    public void onRemove(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes,
+                                         String key, String value) {
+                        events.add("remove " + key + "=" + value);
+                    }
+                })
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        Bytes key = bytes("key");
+        map.getUsing(key, null);
+        map.put(key, bytes("value"));
+        map.getUsing(new HashedKey(key), null);
+        map.remove(key);
+        assertEquals("[missing key, put key=value, found key=value, remove key=value]", events.toString());
+        map.close();
+    }
+}
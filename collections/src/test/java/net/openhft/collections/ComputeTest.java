@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import javax.tools.*;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class ComputeTest {
+
+    static final SharedHashMap.BiFunction<Long, Long, Long> SUM = new SharedHashMap.BiFunction<Long, Long, Long>() {
+        @Override
+        public Long apply(Long a, Long b) {
+            return a + b;
+        }
+    };
+
+    @Test
+    public void testComputeMethods() throws IOException {
+        SharedHashMap<String, Long> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(2)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, Long.class);
+        SharedHashMap.Function<String, Long> length = new SharedHashMap.Function<String, Long>() {
+            @Override
+            public Long apply(String key) {
+                return (long) key.length();
+            }
+        };
+        assertEquals(Long.valueOf(3), map.computeIfAbsentLocked("abc", length));
+        map.put("abc", 10L);
+        assertEquals(Long.valueOf(10), map.computeIfAbsentLocked("abc", length));
+        assertNull(map.computeIfAbsentLocked("null", new SharedHashMap.Function<String, Long>() {
+            @Override
+            public Long apply(String key) {
+                return null;
+            }
+        }));
+        assertFalse(map.containsKey("null"));
+
+        SharedHashMap.BiFunction<String, Long, Long> increment = new SharedHashMap.BiFunction<String, Long, Long>() {
+            @Override
+            public Long apply(String key, Long value) {
+                return value == null ? 1L : value + 1;
+            }
+        };
+        assertNull(map.computeIfPresentLocked("missing", increment));
+        assertFalse(map.containsKey("missing"));
+        assertEquals(Long.valueOf(11), map.computeIfPresentLocked("abc", increment));
+        assertEquals(Long.valueOf(1), map.computeLocked("new", increment));
+        assertEquals(Long.valueOf(2), map.computeLocked("new", increment));
+        assertNull(map.computeLocked("new", new SharedHashMap.BiFunction<String, Long, Long>() {
+            @Override
+            public Long apply(String key, Long value) {
+                return null;
+            }
+        }));
+        assertFalse(map.containsKey("new"));
+
+        assertEquals(Long.valueOf(5), map.mergeLocked("merged", 5L, SUM));
+        assertEquals(Long.valueOf(12), map.mergeLocked("merged", 7L, SUM));
+        assertEquals(Long.valueOf(12), map.get("merged"));
+        assertEquals(2, map.size());
+        map.close();
+    }
+
+    @Test
+    public void testConcurrentMerges() throws Exception {
+        final SharedHashMap<String, Long> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(2)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, Long.class);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++)
+                        map.mergeLocked("key" + i % 10, 1L, SUM);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        for (int i = 0; i < 10; i++)
+            assertEquals(Long.valueOf(4000), map.get("key" + i));
+        map.close();
+    }
+
+    /**
+     * Lambdas are passed to these and to the compute methods Java 8's Map has, which would be ambiguous if they
+     * overloaded each other.  Only run where javac accepts lambdas.
+     */
+    @Test
+    public void testLambdasCompile() throws IOException {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        assumeTrue(javac != null && !System.getProperty("java.specification.version").matches("1\\.[0-7]"));
+        final String source = "import net.openhft.collections.SharedHashMap;\n" +
+                "class ComputeLambdas {\n" +
+                "    static long use(SharedHashMap<String, Long> map) {\n" +
+                "        map.computeIfAbsentLocked(\"a\", k -> 1L);\n" +
+                "        map.computeIfPresentLocked(\"a\", (k, v) -> v + 1);\n" +
+                "        map.computeLocked(\"b\", (k, v) -> v == null ? 1L : v + 1);\n" +
+                "        map.mergeLocked(\"c\", 1L, Long::sum);\n" +
+                "        map.computeIfAbsent(\"d\", k -> 1L);\n" +
+                "        map.compute(\"d\", (k, v) -> v + 1);\n" +
+                "        return map.merge(\"d\", 1L, Long::sum);\n" +
+                "    }\n" +
+                "}\n";
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///ComputeLambdas.java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        File out = SharedHashMapTest.getPersistenceFile();
+        assertTrue(out.mkdirs());
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        boolean compiled = javac.getTask(null, null, diagnostics,
+                Arrays.asList("-classpath", System.getProperty("java.class.path"), "-d", out.getPath()),
+                null, Collections.singletonList(file)).call();
+        assertTrue(diagnostics.getDiagnostics().toString(), compiled);
+        assertTrue(new File(out, "ComputeLambdas.class").delete());
+        assertTrue(out.delete());
+    }
+}
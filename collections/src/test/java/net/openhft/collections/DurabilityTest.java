@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class DurabilityTest {
+
+    @Test
+    public void testSyncsChangedSegmentsOnDemand() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(8)
+                .durability(Durability.ON_DEMAND)
+                .syncPeriodMS(10)
+                .create(file, String.class, String.class);
+        assertEquals(0, map.sync());
+
+        map.put("key", "value");
+        // one segment and the header.
+        long segmentBytes = map.sync() - SharedHashMapBuilder.HEADER_SIZE;
+        assertTrue(segmentBytes > 0);
+        assertEquals(0, map.sync());
+
+        // changes made by another process are synced too.
+        SharedHashMap<String, String> map2 = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(8)
+                .syncPeriodMS(10)
+                .create(file, String.class, String.class);
+        for (int i = 0; i < 100; i++)
+            map2.put("key" + i, "value" + i);
+        assertEquals(8 * segmentBytes + SharedHashMapBuilder.HEADER_SIZE, map.sync());
+        map2.close();
+
+        SyncStats stats = map.syncStats();
+        assertEquals(4, stats.syncs());
+        assertEquals(9, stats.segmentsSynced());
+        assertEquals(9 * segmentBytes + 2 * SharedHashMapBuilder.HEADER_SIZE, stats.bytesSynced());
+        assertTrue(stats.maxNanos() >= stats.lastNanos());
+        assertTrue(stats.totalNanos() >= stats.maxNanos());
+        map.close();
+    }
+
+    @Test
+    public void testSyncsOnClose() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(8)
+                .syncPeriodMS(10)
+                .create(file, String.class, String.class);
+        map.put("key", "value");
+        map.close();
+        // not synced on close without durability, so the change is still to sync.
+        map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(8)
+                .durability(Durability.ON_DEMAND)
+                .syncPeriodMS(10)
+                .create(file, String.class, String.class);
+        assertTrue(map.sync() > 0);
+        map.put("key", "value2");
+        map.close();
+        map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(8)
+                .syncPeriodMS(10)
+                .create(file, String.class, String.class);
+        assertEquals(0, map.sync());
+        assertEquals("value2", map.get("key"));
+        map.close();
+    }
+
+    @Test
+    public void testSyncsPeriodically() throws IOException, InterruptedException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(8)
+                .durability(Durability.PERIODIC)
+                .syncPeriodMS(10)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        map.put("key", "value");
+        for (int i = 0; i < 500 && map.syncStats().segmentsSynced() == 0; i++)
+            Thread.sleep(10);
+        SyncStats stats = map.syncStats();
+        assertEquals(stats.toString(), 1, stats.segmentsSynced());
+        assertTrue(stats.syncs() >= 1);
+        assertEquals(Durability.PERIODIC, map.builder().durability());
+        map.close();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EvictionTest {
+
+    static SharedMapEventListener<String, String> recordRemoved(final List<String> removed) {
+        return new SharedMapEventListener<String, String>() {
+            @Override
+            public String onGetMissing(SharedHashMap<String, String> map, Bytes keyBytes, String key,
+                                       String usingValue) {
+                return null;
+            }
+
+            @Override
+            public void onGetFound(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes,
+                                   String key, String value) {
+            }
+
+            @Override
+            public void onPut(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes,
+                              boolean added, String key, String value) {
+            }
+
+            @Override
+            public void onRemove(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes,
+                                 String key, String value) {
+                removed.add(key + "=" + value);
+            }
+        };
+    }
+
+    @Test
+    public void testClockKeepsAccessedEntries() throws IOException, InterruptedException {
+        checkKeepsAccessedEntries(EvictionPolicy.CLOCK);
+    }
+
+    @Test
+    public void testSampledLruKeepsAccessedEntries() throws IOException, InterruptedException {
+        checkKeepsAccessedEntries(EvictionPolicy.SAMPLED_LRU);
+    }
+
+    static void checkKeepsAccessedEntries(EvictionPolicy evictionPolicy) throws IOException, InterruptedException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        List<String> removed = new ArrayList<String>();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(64)
+                .minSegments(1)
+                .entrySize(32)
+                .evictionPolicy(evictionPolicy)
+                .eventListener(recordRemoved(removed))
+                .create(file, String.class, String.class);
+        int capacity = map.builder().actualEntriesPerSegment();
+        for (int i = 0; i < capacity * 3; i++) {
+            map.put("key" + i, "value" + i);
+            // accessed between every put.
+            assertEquals("value0", map.get("key0"));
+            // access times are recorded in milliseconds.
+            if (evictionPolicy == EvictionPolicy.SAMPLED_LRU)
+                Thread.sleep(1);
+        }
+        assertTrue(map.size() <= capacity);
+        assertEquals(capacity * 3, map.size() + removed.size());
+        assertFalse(removed.contains("key0=value0"));
+        assertTrue(removed.contains("key1=value1"));
+        for (String entry : removed)
+            assertFalse(map.containsKey(entry.substring(0, entry.indexOf('='))));
+        // the last put is always kept.
+        assertEquals("value" + (capacity * 3 - 1), map.get("key" + (capacity * 3 - 1)));
+
+        // recorded in the file.
+        SharedHashMap<String, String> map2 = new SharedHashMapBuilder()
+                .entries(64)
+                .minSegments(1)
+                .entrySize(32)
+                .create(file, String.class, String.class);
+        assertEquals(evictionPolicy, map2.builder().evictionPolicy());
+        assertEquals("value0", map2.get("key0"));
+        map2.close();
+        map.close();
+    }
+
+    @Test
+    public void testEvictsOnlyWhenOverflowTiersAreInUse() throws IOException {
+        List<String> removed = new ArrayList<String>();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(64)
+                .minSegments(1)
+                .entrySize(32)
+                .overflowTiers(2)
+                .evictionPolicy(EvictionPolicy.CLOCK)
+                .eventListener(recordRemoved(removed))
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        int capacity = map.builder().actualEntriesPerSegment();
+        for (int i = 0; i < capacity * 2; i++)
+            map.put("key" + i, "value" + i);
+        assertEquals(capacity * 2, map.size());
+        assertTrue(removed.isEmpty());
+
+        for (int i = capacity * 2; i < capacity * 3; i++)
+            map.put("key" + i, "value" + i);
+        assertFalse(removed.isEmpty());
+        assertTrue(map.size() <= capacity * 3);
+        assertEquals(capacity * 3, map.size() + removed.size());
+        map.close();
+    }
+
+    @Test
+    public void testEvictsToFitLargerEntries() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(64)
+                .minSegments(1)
+                .entrySize(32)
+                .evictionPolicy(EvictionPolicy.SAMPLED_LRU)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        int capacity = map.builder().actualEntriesPerSegment();
+        for (int i = 0; i < capacity; i++)
+            map.put("key" + i, "value" + i);
+        // each of these needs several blocks.
+        String large = MultiBlockEntryTest.value(100, 'x');
+        for (int i = 0; i < capacity; i++)
+            map.put("large" + i, large);
+        assertEquals(large, map.get("large" + (capacity - 1)));
+        assertTrue(map.size() < capacity);
+        map.close();
+    }
+
+    @Test
+    public void testEvictsWithReplicas() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(64)
+                .minSegments(1)
+                .entrySize(32)
+                .replicas(1)
+                .evictionPolicy(EvictionPolicy.CLOCK)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        int capacity = map.builder().actualEntriesPerSegment();
+        // the evicted entries are freed without waiting for the replica to drain them.
+        for (int i = 0; i < capacity * 3; i++)
+            map.put("key" + i, "value" + i);
+        // each entry needs two blocks with its version.
+        assertTrue(map.size() > capacity / 4);
+        assertTrue(map.size() <= capacity);
+        assertEquals("value" + (capacity * 3 - 1), map.get("key" + (capacity * 3 - 1)));
+
+        // only the entries kept are passed to the replica, not the evictions.
+        final List<String> drained = new ArrayList<String>();
+        map.drainChanges(0, new SharedHashMap.BytesEntryConsumer() {
+            @Override
+            public void accept(Bytes key, Bytes value) {
+                assertNotNull(value);
+                drained.add(key.readInstance(String.class, null));
+            }
+        });
+        assertEquals(map.size(), drained.size());
+        for (String key : drained)
+            assertTrue(map.containsKey(key));
+        map.close();
+    }
+}
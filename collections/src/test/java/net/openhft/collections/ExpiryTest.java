@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ExpiryTest {
+
+    @Test
+    public void testExpiresAfterTimeToLive() throws IOException, InterruptedException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(256)
+                .minSegments(2)
+                .entrySize(32)
+                .metaDataBytes(4)
+                .timeToLiveMS(100)
+                .create(file, String.class, String.class);
+        map.put("a", "1");
+        map.put("b", "2");
+        assertEquals("1", map.get("a"));
+        // recorded in the file.
+        SharedHashMap<String, String> map2 = new SharedHashMapBuilder()
+                .entries(256)
+                .minSegments(2)
+                .entrySize(32)
+                .metaDataBytes(4)
+                .create(file, String.class, String.class);
+        assertEquals(100, map2.builder().timeToLiveMS());
+        assertEquals("2", map2.get("b"));
+
+        Thread.sleep(150);
+        // counted until they are removed.
+        assertEquals(2, map.size());
+        int count = 0;
+        for (Map.Entry<String, String> entry : map.entrySet())
+            count++;
+        assertEquals(0, count);
+        assertFalse(map.containsKey("a"));
+        assertEquals(1, map.size());
+        assertNull(map.get("b"));
+        map2.removeExpired();
+        assertEquals(0, map.size());
+
+        // a put starts the time to live again.
+        assertNull(map.put("a", "3"));
+        assertEquals("3", map.put("a", "4"));
+        assertEquals("4", map.get("a"));
+        map2.close();
+        map.close();
+    }
+
+    @Test
+    public void testTimeToLivePerPut() throws IOException, InterruptedException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(256)
+                .minSegments(2)
+                .entrySize(32)
+                .metaDataBytes(4)
+                .timeToLiveMS(Long.MAX_VALUE)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        map.put("forever", "1");
+        map.put("short", "2", 50);
+        map.put("replaced", "3", 50);
+        assertEquals("2", map.get("short"));
+        assertEquals("3", map.put("replaced", "4"));
+        Thread.sleep(100);
+        assertEquals("1", map.get("forever"));
+        assertNull(map.get("short"));
+        assertEquals("4", map.get("replaced"));
+        assertNull(map.remove("short"));
+        assertEquals(2, map.size());
+        assertEquals(0, map.removeExpired());
+        map.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoTimeToLive() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(256)
+                .minSegments(2)
+                .entrySize(32)
+                .metaDataBytes(4)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        try {
+            map.put("key", "value", 1000);
+        } finally {
+            map.close();
+        }
+    }
+
+    @Test
+    public void testExpiredEntriesMakeRoom() throws IOException, InterruptedException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(256)
+                .minSegments(2)
+                .entrySize(32)
+                .metaDataBytes(4)
+                .timeToLiveMS(50)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        for (int i = 0; i < 200; i++)
+            map.put("key" + i, "value" + i);
+        Thread.sleep(100);
+        // without the expired entries this would be more than the segments hold.
+        for (int i = 0; i < 200; i++)
+            map.put("other" + i, "value" + i);
+        assertEquals(200, map.size());
+        assertEquals("value199", map.get("other199"));
+        map.close();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import java.util.Random;
+
+/**
+ * Compares the time to find keys in each hash lookup layout of 64K slots as the load grows, for one
+ * lookup which stays in cache, and spread over many lookups, like a large cold map file.
+ */
+public class HashLookupBenchmarkMain {
+    static final int CAPACITY = 1 << 16;
+    static final int LOOKUPS = 5000000;
+
+    public static void main(String... args) {
+        for (int maps : new int[]{1, 512}) {
+            for (double load : new double[]{0.5, 0.75, 0.9, 0.97}) {
+                int entries = (int) (CAPACITY * load);
+                for (int type = 0; type < 3; type++) {
+                    Random rand = new Random(1);
+                    IntIntMultiMap[] lookups = new IntIntMultiMap[maps];
+                    int[][] keys = new int[maps][entries];
+                    for (int m = 0; m < maps; m++) {
+                        lookups[m] = type == 0 ? new VanillaShortShortMultiMap(CAPACITY)
+                                : type == 1 ? new RobinHoodShortShortMultiMap(CAPACITY)
+                                : new BucketizedShortShortMultiMap(CAPACITY);
+                        for (int i = 0; i < entries; i++) {
+                            keys[m][i] = rand.nextInt(0xFFFF) + 1;
+                            lookups[m].put(keys[m][i], i);
+                        }
+                    }
+                    long found = 0, time = 0;
+                    // the first run is a warm up.
+                    for (int run = 0; run < 2; run++) {
+                        Random r = new Random(2);
+                        long start = System.nanoTime();
+                        for (int n = 0; n < LOOKUPS; n++) {
+                            int m = r.nextInt(maps), i = r.nextInt(entries);
+                            IntIntMultiMap lookup = lookups[m];
+                            lookup.startSearch(keys[m][i]);
+                            int value;
+                            while ((value = lookup.nextPos()) >= 0)
+                                if (value == i) {
+                                    found++;
+                                    break;
+                                }
+                        }
+                        time = System.nanoTime() - start;
+                    }
+                    System.out.printf("%-28s maps %3d load %.2f: %.1f ns/lookup (%d)%n",
+                            lookups[0].getClass().getSimpleName(), maps, load, (double) time / LOOKUPS, found);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class HashLookupTypeTest {
+
+    @Test
+    public void testRobinHoodRecordedInFile() throws IOException {
+        assertRecordedInFile(HashLookupType.ROBIN_HOOD);
+    }
+
+    @Test
+    public void testBucketizedRecordedInFile() throws IOException {
+        assertRecordedInFile(HashLookupType.BUCKETIZED);
+    }
+
+    static void assertRecordedInFile(HashLookupType type) throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(2)
+                .entrySize(32)
+                .hashLookupType(type)
+                .create(file, String.class, String.class);
+        assertEquals(type, map.builder().hashLookupType());
+        for (int i = 0; i < 1000; i++)
+            map.put("key" + i, "value" + i);
+        for (int i = 0; i < 1000; i += 2)
+            assertEquals("value" + i, map.remove("key" + i));
+        assertEquals(500, map.size());
+
+        // the type is read from the file.
+        SharedHashMap<String, String> map2 = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(2)
+                .entrySize(32)
+                .create(file, String.class, String.class);
+        assertEquals(type, map2.builder().hashLookupType());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i % 2 == 0 ? null : "value" + i, map2.get("key" + i));
+        map2.put("key0", "again");
+        assertEquals("again", map.get("key0"));
+        map2.close();
+        map.close();
+    }
+
+    @Test
+    public void testLinearProbingByDefault() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        assertEquals(HashLookupType.LINEAR_PROBING, map.builder().hashLookupType());
+        assertFalse(map.builder().wideHashLookup());
+        map.close();
+    }
+
+    /**
+     * Every key has the same low 16 bits of hash.
+     */
+    static final KeyHasher COLLIDING = new KeyHasher() {
+        @Override
+        public long hash(Bytes bytes) {
+            return KeyHashers.XX_HASH_64.hash(bytes) & ~0xFFFFL;
+        }
+    };
+
+    static SharedHashMap<String, String> collidingMap(File file, boolean wideHashLookup) throws IOException {
+        return new SharedHashMapBuilder()
+                .entries(500)
+                .minSegments(1)
+                .entrySize(32)
+                .keyHasher(COLLIDING)
+                .wideHashLookup(wideHashLookup)
+                .create(file, String.class, String.class);
+    }
+
+    @Test
+    public void testWideHashLookup() throws IOException {
+        for (boolean wide : new boolean[]{false, true}) {
+            File file = SharedHashMapTest.getPersistenceFile();
+            SharedHashMap<String, String> map = collidingMap(file, wide);
+            for (int i = 0; i < 200; i++)
+                map.put("key" + i, "value" + i);
+            for (int i = 0; i < 200; i += 2)
+                assertEquals("value" + i, map.remove("key" + i));
+
+            // recorded in the file.
+            SharedHashMap<String, String> map2 = collidingMap(file, !wide);
+            assertEquals(wide, map2.builder().wideHashLookup());
+            assertEquals(100, map2.size());
+            for (int i = 0; i < 200; i++)
+                assertEquals(i % 2 == 0 ? null : "value" + i, map2.get("key" + i));
+            map2.close();
+            map.close();
+        }
+    }
+}
@@ -38,7 +38,11 @@ public class IntIntMultiMapTest {
     public static Collection<Object[]> data() {
         return Arrays.asList(new Object[][] {
                 { VanillaIntIntMultiMap.class },
-                { VanillaShortShortMultiMap.class }
+                { VanillaShortShortMultiMap.class },
+                { RobinHoodIntIntMultiMap.class },
+                { RobinHoodShortShortMultiMap.class },
+                { BucketizedIntIntMultiMap.class },
+                { BucketizedShortShortMultiMap.class }
         });
     }
     private Class<? extends IntIntMultiMap> c;
@@ -142,4 +146,86 @@ public class IntIntMultiMapTest {
         map.startSearch(15);
         assertTrue(map.nextPos() < 0);
     }
+
+    @Test
+    public void testProbeLengths() {
+        initMap(16);
+        map.put(5, 1);
+        map.put(5, 2);
+        map.put(5, 3);
+        map.put(9, 1);
+        final List<Integer> lengths = new ArrayList<Integer>();
+        map.forEachProbeLength(new IntIntMultiMap.EntryConsumer() {
+            @Override
+            public void accept(int key, int probeLength) {
+                if (key == 5)
+                    lengths.add(probeLength);
+            }
+        });
+        Collections.sort(lengths);
+        assertEquals(Arrays.asList(1, 2, 3), lengths);
+    }
+
+    @Test
+    public void testSlots() {
+        initMap(16);
+        map.put(5, 1);
+        map.put(5, 2);
+        map.put(9, 3);
+        map.remove(5, 1);
+        List<Long> slots = new ArrayList<Long>();
+        for (int i = 0; i < map.capacity(); i++) {
+            long slot = map.slot(i);
+            if (slot != 0)
+                slots.add(slot);
+        }
+        Collections.sort(slots);
+        assertEquals(Arrays.asList((5L << 32) | 2, (9L << 32) | 3), slots);
+    }
+
+    @Test
+    public void testRandomPutRemoveAtHighLoad() {
+        initMap(256);
+        Random rand = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            // few distinct keys with colliding home slots, so chains wrap and interleave.
+            int k = (rand.nextInt(64) + 1) * 37;
+            int v = rand.nextInt(8);
+            if (referenceMap.size() < 240 && rand.nextBoolean()) {
+                put(k, v);
+            } else {
+                remove(k, v, referenceMap.containsEntry(k, v));
+            }
+            if (i % 100 == 0) {
+                multiMapEquals();
+                valuesEqualsByKey(k);
+            }
+        }
+        multiMapEquals();
+    }
+
+    @Test
+    public void testSearchRemoveAndPut() {
+        initMap(16);
+        for (int v = 1; v <= 5; v++)
+            put(3, v);
+        put(4, 1);
+        put(19, 1);
+
+        // remove every other value in one search, as the segment does.
+        map.startSearch(3);
+        int v;
+        while ((v = map.nextPos()) >= 0) {
+            if (v % 2 == 0) {
+                map.removePrevPos();
+                referenceMap.remove(3, v);
+            }
+        }
+        map.putAfterFailedSearch(6);
+        referenceMap.put(3, 6);
+        multiMapEquals();
+        valuesEqualsByKey(3);
+        valuesEqualsByKey(4);
+        valuesEqualsByKey(19);
+    }
 }
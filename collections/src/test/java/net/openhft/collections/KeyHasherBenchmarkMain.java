@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectStore;
+
+/**
+ * Compares the time to hash keys of different lengths, and how evenly each hash spreads prefixed keys
+ * over the 16-bit slots of a segment's hash lookup.
+ */
+public class KeyHasherBenchmarkMain {
+    static final int KEYS = 1 << 16;
+    static final int RUNS = 2000;
+
+    public static void main(String... args) {
+        for (int length : new int[]{8, 16, 32, 64, 256}) {
+            Bytes[] keys = new Bytes[KEYS];
+            for (int i = 0; i < KEYS; i++) {
+                // a common prefix followed by 7 distinct digits.
+                Bytes key = new DirectStore(length + 16).createSlice();
+                while (key.position() < length - 7)
+                    key.writeByte('k');
+                key.write(Integer.toString(1000000 + i).getBytes());
+                key.flip();
+                keys[i] = key;
+            }
+            for (KeyHashers hasher : KeyHashers.values()) {
+                long blackhole = 0;
+                // warm up
+                for (int r = 0; r < RUNS / 10; r++)
+                    for (Bytes key : keys)
+                        blackhole += hasher.hash(key);
+                long start = System.nanoTime();
+                for (int r = 0; r < RUNS; r++)
+                    for (Bytes key : keys)
+                        blackhole += hasher.hash(key);
+                long time = System.nanoTime() - start;
+                System.out.printf("%-10s length %3d: %.2f ns/hash, longest probe %d (%x)%n",
+                        hasher, length, (double) time / RUNS / KEYS, longestProbe(hasher, keys), blackhole & 0xF);
+            }
+        }
+    }
+
+    /**
+     * @return the longest run of used slots of an open addressed table of 2 * KEYS slots.
+     */
+    static int longestProbe(KeyHasher hasher, Bytes[] keys) {
+        int mask = 2 * KEYS - 1;
+        boolean[] used = new boolean[mask + 1];
+        int longest = 0;
+        for (Bytes key : keys) {
+            int slot = (int) (hasher.hash(key) >>> 6) & mask;
+            int probe = 1;
+            while (used[slot]) {
+                slot = (slot + 1) & mask;
+                probe++;
+            }
+            used[slot] = true;
+            longest = Math.max(longest, probe);
+        }
+        return longest;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectStore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class KeyHasherTest {
+
+    static Bytes bytes(byte[] bytes) {
+        Bytes b = new DirectStore(bytes.length + 16).createSlice();
+        b.write(bytes);
+        b.flip();
+        return b;
+    }
+
+    static Bytes key(String key) {
+        Bytes b = new DirectStore(64).createSlice();
+        b.writeInstance(String.class, key);
+        b.flip();
+        return b;
+    }
+
+    @Test
+    public void testXxHash64() throws IOException {
+        assumeTrue(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+        KeyHasher hasher = KeyHashers.XX_HASH_64;
+        assertEquals(0xEF46DB3751D8E999L, hasher.hash(bytes(new byte[0])));
+        assertEquals(0xD24EC4F1A98C6E5BL, hasher.hash(bytes("a".getBytes("US-ASCII"))));
+        assertEquals(0x44BC2CF5AD770999L, hasher.hash(bytes("abc".getBytes("US-ASCII"))));
+        assertEquals(0xFBCEA83C8A378BF1L,
+                hasher.hash(bytes("Nobody inspects the spammish repetition".getBytes("US-ASCII"))));
+    }
+
+    @Test
+    public void testHashesFromPosition() {
+        for (KeyHashers hasher : KeyHashers.values()) {
+            Bytes bytes = new DirectStore(64).createSlice();
+            bytes.writeLong(-1L);
+            bytes.writeInstance(String.class, "a key of some length");
+            bytes.flip();
+            bytes.position(8);
+            assertEquals(hasher.hash(key("a key of some length")), hasher.hash(bytes));
+            assertEquals(8, bytes.position());
+        }
+    }
+
+    @Test
+    public void testDistributionOfPrefixedKeys() {
+        int keys = 1 << 16;
+        int segments = 64;
+        int[] segmentCounts = new int[segments];
+        BitSet slots = new BitSet();
+        for (int i = 0; i < keys; i++) {
+            long hash = KeyHashers.XX_HASH_64.hash(key("account-" + (10000000 + i)));
+            segmentCounts[(int) (hash & (segments - 1))]++;
+            slots.set((int) (hash >>> 6) & 0xFFFF);
+        }
+        int mean = keys / segments;
+        for (int count : segmentCounts)
+            assertTrue("segment count " + count, Math.abs(count - mean) < mean * 15 / 100);
+        // as many distinct 16-bit segment hashes as random values have, (1 - 1/e) * keys
+        int distinct = slots.cardinality();
+        assertTrue("distinct " + distinct, distinct > 40500 && distinct < 42500);
+    }
+
+    @Test
+    public void testAvalanche() {
+        Random random = new Random(1);
+        long changed = 0;
+        int[] flips = new int[64];
+        int trials = 0;
+        byte[] key = new byte[20];
+        for (int t = 0; t < 200; t++) {
+            random.nextBytes(key);
+            long hash = KeyHashers.XX_HASH_64.hash(bytes(key));
+            for (int bit = 0; bit < key.length * 8; bit++) {
+                key[bit >> 3] ^= 1 << (bit & 7);
+                long diff = hash ^ KeyHashers.XX_HASH_64.hash(bytes(key));
+                key[bit >> 3] ^= 1 << (bit & 7);
+                changed += Long.bitCount(diff);
+                for (int i = 0; i < 64; i++)
+                    if ((diff >>> i & 1) != 0)
+                        flips[i]++;
+                trials++;
+            }
+        }
+        double average = (double) changed / trials;
+        assertEquals(32.0, average, 0.5);
+        for (int flip : flips)
+            assertEquals(0.5, (double) flip / trials, 0.05);
+    }
+
+    @Test
+    public void testKeyHasherRecordedInFile() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .keyHasher(KeyHashers.XX_HASH_64)
+                .create(file, String.class, String.class);
+        map.put("key", "value");
+        SharedHashMap<String, String> map2 = new SharedHashMapBuilder()
+                .entries(1000)
+                .create(file, String.class, String.class);
+        assertEquals(KeyHashers.XX_HASH_64, map2.builder().keyHasher());
+        assertEquals("value", map2.get("key"));
+        map2.close();
+        map.close();
+    }
+
+    @Test
+    public void testCustomKeyHasher() throws IOException {
+        KeyHasher custom = new KeyHasher() {
+            @Override
+            public long hash(Bytes bytes) {
+                return ~KeyHashers.XX_HASH_64.hash(bytes);
+            }
+        };
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .keyHasher(custom)
+                .create(file, String.class, String.class);
+        map.put("key", "value");
+        assertEquals("value", map.getUsing(new HashedKey(key("key")), null));
+        assertEquals("value", map.getUsing(new HashedKey(custom).set(key("key")), null));
+        try {
+            new SharedHashMapBuilder()
+                    .entries(1000)
+                    .create(file, String.class, String.class);
+            fail();
+        } catch (IOException expected) {
+            // the builder needs the custom hasher.
+        }
+        map.close();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+public class LockRecoveryTest {
+
+    static SharedHashMapBuilder builder(boolean readWriteLocks) {
+        return new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(4)
+                .readWriteLocks(readWriteLocks)
+                .lockTimeOutMS(20000)
+                .errorListener(SharedMapErrorListeners.ERROR);
+    }
+
+    /**
+     * Starts a process which puts the key "hold" and dies holding the lock of its segment.
+     */
+    static void killHoldingLock(File file, boolean readWriteLocks) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                LockRecoveryTest.class.getName(),
+                file.getPath(), Boolean.toString(readWriteLocks))
+                .redirectErrorStream(true)
+                .start();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line;
+            while ((line = reader.readLine()) != null && !line.equals("locked"))
+                System.out.println(line);
+            assertEquals("locked", line);
+        } finally {
+            process.destroy();
+        }
+        process.waitFor();
+    }
+
+    private void testRecoversLockOfDeadProcess(boolean readWriteLocks) throws IOException, InterruptedException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = builder(readWriteLocks).create(file, String.class, String.class);
+        for (int i = 0; i < 100; i++)
+            map.put("key" + i, "value" + i);
+        killHoldingLock(file, readWriteLocks);
+
+        long start = System.currentTimeMillis();
+        assertEquals("held", map.get("hold"));
+        map.put("hold", "again");
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(101, map.size());
+        for (int i = 0; i < 100; i++)
+            assertEquals("value" + i, map.get("key" + i));
+        assertEquals(0, map.repair());
+        map.close();
+    }
+
+    @Test
+    public void testRecoversLockOfDeadProcess() throws IOException, InterruptedException {
+        testRecoversLockOfDeadProcess(false);
+    }
+
+    @Test
+    public void testRecoversReadWriteLockOfDeadProcess() throws IOException, InterruptedException {
+        testRecoversLockOfDeadProcess(true);
+    }
+
+    @Test
+    public void testRecoversOnOpen() throws IOException, InterruptedException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        builder(false).create(file, String.class, String.class).close();
+        killHoldingLock(file, false);
+
+        long start = System.currentTimeMillis();
+        SharedHashMap<String, String> map = builder(false).create(file, String.class, String.class);
+        // no segment is left locked.
+        assertEquals(4, map.segmentStats().size());
+        assertEquals("held", map.get("hold"));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        map.close();
+    }
+
+    @Test
+    public void testRepairRecomputesSizes() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = builder(false).create(file, String.class, String.class);
+        for (int i = 0; i < 200; i++)
+            map.put("key" + i, "value" + i);
+        // corrupt the size of the first segment.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                SharedHashMapBuilder.HEADER_SIZE, 64);
+        buffer.order(ByteOrder.nativeOrder());
+        buffer.putInt(VanillaSharedHashMap.Segment.SIZE_OFFSET, 12345);
+        raf.close();
+        assertTrue(map.size() > 200);
+
+        assertEquals(0, map.repair());
+        assertEquals(200, map.size());
+        for (int i = 0; i < 200; i++)
+            assertEquals("value" + i, map.get("key" + i));
+        map.put("key200", "value200");
+        assertEquals(201, map.size());
+        map.close();
+    }
+
+    /**
+     * Puts the key "hold" and blocks holding the lock of its segment until the process is killed.
+     */
+    public static void main(String... args) throws IOException {
+        SharedHashMap<String, String> map = builder(Boolean.parseBoolean(args[1]))
+                .eventListener(new SharedMapEventListener<String, String>() {
+                    @Override
+                    public String onGetMissing(SharedHashMap<String, String> map, Bytes keyBytes, String key,
+                                               String usingValue) {
+                        return null;
+                    }
+
+                    @Override
+                    public void onGetFound(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes,
+                                           String key, String value) {
+                    }
+
+                    @Override
+                    public void onPut(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes,
+                                      boolean added, String key, String value) {
+                        System.out.println("locked");
+                        System.out.flush();
+                        while (true) {
+                            try {
+                                Thread.sleep(1000);
+                            } catch (InterruptedException ignored) {
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onRemove(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes,
+                                         String key, String value) {
+                    }
+                })
+                .create(new File(args[0]), String.class, String.class);
+        map.put("hold", "held");
+    }
+}
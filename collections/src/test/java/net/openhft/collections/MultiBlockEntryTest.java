@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MultiBlockEntryTest {
+
+    static String value(int length, char ch) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, ch);
+        return new String(chars);
+    }
+
+    @Test
+    public void testEntriesSpanningBlocks() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(256)
+                .minSegments(1)
+                .entrySize(32)
+                .maxEntryOversizeFactor(16)
+                .create(file, String.class, String.class);
+
+        map.put("small", "s");
+        map.put("large", value(200, 'a'));
+        map.put("after", "t");
+        assertEquals(value(200, 'a'), map.get("large"));
+
+        // grows past the next entry so it has to move.
+        map.put("small", value(300, 'b'));
+        assertEquals(value(300, 'b'), map.get("small"));
+        assertEquals("t", map.get("after"));
+
+        // shrinks in place, then grows into the blocks it freed.
+        map.put("large", "c");
+        assertEquals("c", map.get("large"));
+        assertEquals("c", map.replace("large", value(100, 'd')));
+        assertEquals(value(100, 'd'), map.get("large"));
+
+        assertEquals(value(300, 'b'), map.remove("small"));
+        for (int i = 0; i < 20; i++)
+            map.put("key" + i, value(i * 20, (char) ('a' + i)));
+        for (int i = 0; i < 20; i++)
+            assertEquals(value(i * 20, (char) ('a' + i)), map.get("key" + i));
+        assertEquals(22, map.size());
+        map.close();
+
+        // the factor is read from the file.
+        SharedHashMap<String, String> map2 = new SharedHashMapBuilder()
+                .entries(256)
+                .minSegments(1)
+                .entrySize(32)
+                .create(file, String.class, String.class);
+        assertEquals(16, map2.builder().maxEntryOversizeFactor());
+        assertEquals(value(100, 'd'), map2.get("large"));
+        map2.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEntryTooLarge() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(256)
+                .minSegments(1)
+                .entrySize(32)
+                .maxEntryOversizeFactor(4)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        try {
+            map.put("key", value(120, 'x'));
+        } finally {
+            map.close();
+        }
+    }
+}
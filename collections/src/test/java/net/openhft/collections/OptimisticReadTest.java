@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.values.LongValue;
+import net.openhft.lang.values.LongValue$$Native;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class OptimisticReadTest {
+
+    @Test
+    public void testGetContainsKeyAndAcquire() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(2)
+                .optimisticReads(true)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        assertTrue(map.builder().optimisticReads());
+
+        assertNull(map.get("key1"));
+        assertFalse(map.containsKey("key1"));
+        map.put("key1", "one");
+        map.put("key2", "two");
+        assertEquals("one", map.get("key1"));
+        assertEquals("two", map.getUsing("key2", null));
+        assertTrue(map.containsKey("key1"));
+        map.remove("key1");
+        assertNull(map.get("key1"));
+        assertFalse(map.containsKey("key1"));
+        map.close();
+
+        SharedHashMap<String, LongValue> map2 = new SharedHashMapBuilder()
+                .entries(1000)
+                .generatedValueType(true)
+                .optimisticReads(true)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, LongValue.class);
+        LongValue value = new LongValue$$Native();
+        assertNull(map2.getUsing("counter", value));
+        map2.acquireUsing("counter", value);
+        value.addValue(5);
+        LongValue value2 = new LongValue$$Native();
+        assertSame(value2, map2.getUsing("counter", value2));
+        assertEquals(5, value2.getValue());
+        map2.close();
+    }
+
+    @Test
+    public void testReadsWhileWriting() throws Exception {
+        final SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(1)
+                .optimisticReads(true)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        final int keys = 100;
+        for (int i = 0; i < keys; i++)
+            map.put("key" + i, "value" + i + "/0");
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> error = new AtomicReference<String>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int j = 1; running.get(); j++)
+                    for (int i = 0; i < keys; i++) {
+                        map.put("key" + i, "value" + i + "/" + j);
+                        if ((j & 1) == 0)
+                            map.remove("key" + (keys + i));
+                        else
+                            map.put("key" + (keys + i), "x");
+                    }
+            }
+        });
+        writer.start();
+        try {
+            for (int n = 0; n < 200 * 1000; n++) {
+                int i = n % keys;
+                String value = map.get("key" + i);
+                if (value == null || !value.startsWith("value" + i + "/")) {
+                    error.set("key" + i + " => " + value);
+                    break;
+                }
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+        assertNull(error.get());
+        map.close();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OverflowTierTest {
+
+    @Test
+    public void testGrowsWhileMappedByAnotherMap() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(64)
+                .minSegments(2)
+                .entrySize(32)
+                .overflowTiers(64)
+                .create(file, String.class, String.class);
+        // opened before any overflow tiers are in use.
+        SharedHashMap<String, String> map2 = new SharedHashMapBuilder()
+                .entries(64)
+                .minSegments(2)
+                .entrySize(32)
+                .create(file, String.class, String.class);
+        assertEquals(64, map2.builder().overflowTiers());
+
+        int entries = 2000;
+        for (int i = 0; i < entries; i++)
+            map.put("key" + i, "value" + i);
+        assertEquals(entries, map.size());
+        assertEquals(entries, map2.size());
+        for (int i = 0; i < entries; i++)
+            assertEquals("value" + i, map2.get("key" + i));
+
+        // values which grow are moved between tiers.
+        for (int i = 0; i < entries; i += 3)
+            map2.put("key" + i, "a longer value " + i);
+        int count = 0;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            int i = Integer.parseInt(entry.getKey().substring(3));
+            assertEquals(i % 3 == 0 ? "a longer value " + i : "value" + i, entry.getValue());
+            count++;
+        }
+        assertEquals(entries, count);
+
+        for (int i = 0; i < entries; i += 2)
+            assertNotNull(map.remove("key" + i));
+        assertEquals(entries / 2, map2.size());
+        assertFalse(map2.containsKey("key0"));
+        assertTrue(map2.containsKey("key1"));
+        map2.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get("key1"));
+
+        map2.close();
+        map.close();
+    }
+
+    @Test
+    public void testFullWithoutOverflowTiers() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(64)
+                .minSegments(2)
+                .entrySize(32)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        try {
+            for (int i = 0; i < 2000; i++)
+                map.put("key" + i, "value" + i);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals("Segment is full, no free entries found", expected.getMessage());
+        }
+        map.close();
+    }
+}
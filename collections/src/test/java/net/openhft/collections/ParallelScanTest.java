@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ParallelScanTest {
+    static final int ENTRIES = 5000;
+
+    static void putEntries(SharedHashMap<String, Long> map) {
+        for (long i = 0; i < ENTRIES; i++)
+            map.put("key" + i, i);
+    }
+
+    static void checkScans(final SharedHashMap<String, Long> map, ExecutorService executor) {
+        final Map<String, Long> seen = new ConcurrentHashMap<String, Long>();
+        map.forEach(new SharedHashMap.EntryConsumer<String, Long>() {
+            @Override
+            public void accept(String key, Long value) {
+                assertNull(seen.put(key, value));
+            }
+        }, executor);
+        assertEquals(new HashMap<String, Long>(map), seen);
+
+        long sum = map.reduce(0L, new SharedHashMap.EntryReducer<String, Long, Long>() {
+            @Override
+            public Long reduce(Long result, String key, Long value) {
+                return result + value;
+            }
+
+            @Override
+            public Long combine(Long result1, Long result2) {
+                return result1 + result2;
+            }
+        }, executor);
+        assertEquals((long) ENTRIES * (ENTRIES - 1) / 2, sum);
+
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong keyBytes = new AtomicLong();
+        map.forEachBytes(new SharedHashMap.BytesEntryConsumer() {
+            @Override
+            public void accept(Bytes key, Bytes value) {
+                String k = key.readInstance(String.class, null);
+                Long v = value.readInstance(Long.class, null);
+                assertEquals("key" + v, k);
+                assertEquals(0, key.remaining());
+                count.incrementAndGet();
+                keyBytes.addAndGet(key.limit());
+            }
+        }, executor);
+        assertEquals(ENTRIES, count.get());
+        assertTrue(keyBytes.get() > ENTRIES * 4);
+    }
+
+    @Test
+    public void testScans() throws IOException {
+        SharedHashMap<String, Long> map = new SharedHashMapBuilder()
+                .entries(ENTRIES * 2)
+                .minSegments(16)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, Long.class);
+        putEntries(map);
+        checkScans(map, null);
+        map.close();
+    }
+
+    @Test
+    public void testParallelScans() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            SharedHashMap<String, Long> map = new SharedHashMapBuilder()
+                    .entries(ENTRIES * 2)
+                    .minSegments(16)
+                    .create(SharedHashMapTest.getPersistenceFile(), String.class, Long.class);
+            putEntries(map);
+            checkScans(map, executor);
+            map.close();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSplittingIterator() throws IOException {
+        SharedHashMap<String, Long> map = new SharedHashMapBuilder()
+                .entries(ENTRIES * 2)
+                .minSegments(16)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, Long.class);
+        putEntries(map);
+        List<SharedHashMap.SplittableIterator<Map.Entry<String, Long>>> iterators =
+                new ArrayList<SharedHashMap.SplittableIterator<Map.Entry<String, Long>>>();
+        iterators.add(map.entryIterator());
+        for (int i = 0; i < iterators.size(); i++) {
+            SharedHashMap.SplittableIterator<Map.Entry<String, Long>> split;
+            while ((split = iterators.get(i).trySplit()) != null)
+                iterators.add(split);
+        }
+        assertTrue(iterators.size() > 8);
+
+        Set<String> keys = new HashSet<String>();
+        for (Iterator<Map.Entry<String, Long>> iterator : iterators)
+            while (iterator.hasNext()) {
+                Map.Entry<String, Long> entry = iterator.next();
+                assertTrue(keys.add(entry.getKey()));
+                assertEquals("key" + entry.getValue(), entry.getKey());
+            }
+        assertEquals(ENTRIES, keys.size());
+
+        // the iterators are exhausted, including those not starting at segment 0.
+        for (SharedHashMap.SplittableIterator<Map.Entry<String, Long>> iterator : iterators)
+            assertNull(iterator.trySplit());
+        map.close();
+    }
+
+    @Test
+    public void testSplitOneSegment() throws IOException {
+        SharedHashMap<String, Long> map = new SharedHashMapBuilder()
+                .entries(100)
+                .minSegments(1)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, Long.class);
+        for (long i = 0; i < 10; i++)
+            map.put("key" + i, i);
+        SharedHashMap.SplittableIterator<Map.Entry<String, Long>> iterator = map.entryIterator();
+        assertNull(iterator.trySplit());
+        int count = 0;
+        for (; iterator.hasNext(); iterator.next())
+            count++;
+        assertEquals(10, count);
+        assertNull(iterator.trySplit());
+        map.close();
+    }
+}
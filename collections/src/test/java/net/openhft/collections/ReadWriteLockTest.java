@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ReadWriteLockTest {
+
+    @Test
+    public void testReadWriteLocksRecordedInFile() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .readWriteLocks(true)
+                .create(file, String.class, String.class);
+        map.put("key1", "one");
+
+        // the file decides the kind of lock, not the builder.
+        SharedHashMap<String, String> map2 = new SharedHashMapBuilder()
+                .entries(1000)
+                .create(file, String.class, String.class);
+        assertTrue(map2.builder().readWriteLocks());
+        assertEquals("one", map2.get("key1"));
+        assertTrue(map2.containsKey("key1"));
+        assertFalse(map2.containsKey("key2"));
+        assertNull(map2.get("key2"));
+        assertEquals("one", map2.replace("key1", "uno"));
+        assertEquals("uno", map.get("key1"));
+        assertEquals("uno", map.remove("key1"));
+        assertEquals(0, map2.size());
+        map2.close();
+        map.close();
+    }
+
+    @Test
+    public void testListenerCanUseTheMap() throws IOException {
+        final AtomicReference<String> found = new AtomicReference<String>();
+        final AtomicReference<Integer> entries = new AtomicReference<Integer>();
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(1)
+                .readWriteLocks(true)
+                .lockTimeOutMS(1000)
+                .errorListener(new SharedMapErrorListener() {
+                    @Override
+                    public void onLockTimeout(long threadId) throws IllegalStateException {
+                        error.compareAndSet(null, new IllegalStateException("Lock timed out"));
+                    }
+
+                    @Override
+                    public void errorOnUnlock(IllegalMonitorStateException e) {
+                        error.compareAndSet(null, e);
+                    }
+                })
+                .eventListener(new SharedMapEventListener<String, String>() {
+                    @Override
+                    public String onGetMissing(SharedHashMap<String, String> map, Bytes keyBytes, String key,
+                                               String usingValue) {
+                        return null;
+                    }
+
+                    @Override
+                    public void onGetFound(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes,
+                                           String key, String value) {
+                    }
+
+                    @Override
+                    public void onPut(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes,
+                                      boolean added, String key, String value) {
+                        // the segment's lock is taken again for these, as there is only one segment.
+                        if (key.equals("key1")) {
+                            found.set(map.get("key0"));
+                            map.put("key2", "two");
+                            // shares the lock with other readers, but is held by the writer.
+                            entries.set(map.segmentStats().get(0).entries());
+                        }
+                    }
+
+                    @Override
+                    public void onRemove(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes,
+                                         String key, String value) {
+                    }
+                })
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        map.put("key0", "zero");
+        map.put("key1", "one");
+        assertEquals("zero", found.get());
+        assertEquals("two", map.get("key2"));
+        assertEquals(3, (int) entries.get());
+        assertEquals(3, map.size());
+
+        // the lock was released by the outermost put, so another thread can take it.
+        final AtomicReference<String> other = new AtomicReference<String>();
+        final SharedHashMap<String, String> map2 = map;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                map2.put("key3", "three");
+                other.set(map2.get("key3"));
+            }
+        });
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        assertEquals("three", other.get());
+        assertNull(error.get());
+        map.close();
+    }
+
+    @Test
+    public void testConcurrentReadersAndWriter() throws Exception {
+        final SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(1)
+                .readWriteLocks(true)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        final int keys = 100;
+        for (int i = 0; i < keys; i++)
+            map.put("key" + i, "value" + i + "/0");
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> error = new AtomicReference<String>();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; running.get() && error.get() == null; n++) {
+                        int i = n % keys;
+                        String value = map.get("key" + i);
+                        if (value == null || !value.startsWith("value" + i + "/"))
+                            error.set("key" + i + " => " + value);
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        try {
+            for (int j = 1; j < 500; j++)
+                for (int i = 0; i < keys; i++)
+                    map.put("key" + i, "value" + i + "/" + j);
+        } finally {
+            running.set(false);
+            for (Thread reader : readers)
+                reader.join();
+        }
+        assertNull(error.get());
+        map.close();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class ReplicaChangesTest {
+
+    /**
+     * @return the changes drained, with null values for removals.
+     */
+    static Map<String, String> drain(SharedHashMap<String, String> map, int replica) {
+        final Map<String, String> changes = new TreeMap<String, String>();
+        final int[] count = {0};
+        assertEquals(map.drainChanges(replica, new SharedHashMap.BytesEntryConsumer() {
+            @Override
+            public void accept(Bytes key, Bytes value) {
+                String k = key.readInstance(String.class, null);
+                // only a key removed more than once can be passed again.
+                assertTrue(!changes.containsKey(k) || value == null && changes.get(k) == null);
+                changes.put(k, value == null ? null : value.readInstance(String.class, null));
+                count[0]++;
+            }
+        }), count[0]);
+        return changes;
+    }
+
+    @Test
+    public void testDrainsChangesPerReplica() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(256)
+                .minSegments(4)
+                .entrySize(32)
+                .replicas(2)
+                .create(file, String.class, String.class);
+        map.put("a", "1");
+        map.put("b", "2");
+        map.put("c", "3");
+        assertEquals("{a=1, b=2, c=3}", drain(map, 0).toString());
+        assertEquals("{}", drain(map, 0).toString());
+
+        map.put("a", "a longer value than fits in its blocks");
+        map.remove("b");
+        map.put("d", "4");
+        map.remove("d");
+        assertEquals("{a=a longer value than fits in its blocks, b=null, d=null}", drain(map, 0).toString());
+
+        // replica 1 still has every change, recorded in the file.
+        SharedHashMap<String, String> map2 = new SharedHashMapBuilder()
+                .entries(256)
+                .minSegments(4)
+                .entrySize(32)
+                .create(file, String.class, String.class);
+        assertEquals(2, map2.builder().replicas());
+        assertEquals("{a=a longer value than fits in its blocks, b=null, c=3, d=null}",
+                drain(map2, 1).toString());
+        assertEquals("{}", drain(map2, 1).toString());
+        map2.close();
+
+        // a key removed and put again is only passed as put.
+        map.remove("c");
+        map.put("c", "5");
+        map.clear();
+        map.put("e", "6");
+        assertEquals("{a=null, c=null, e=6}", drain(map, 0).toString());
+        assertEquals("{a=null, c=null, e=6}", drain(map, 1).toString());
+        map.close();
+    }
+
+    @Test
+    public void testRemovedEntriesAreFreedOnceDrained() throws IOException {
+        // removals drained are freed straight away rather than kept for a retention period.
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(256)
+                .minSegments(4)
+                .entrySize(32)
+                .replicas(1)
+                .tombstoneRetentionMS(0)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        long blocks = map.builder().actualEntriesPerSegment() * (long) map.builder().actualSegments();
+        // many times more entries than fit are put and removed.
+        for (int i = 0; i < blocks * 4; i++) {
+            map.put("key" + i, "value" + i);
+            map.remove("key" + i);
+            if (i % 64 == 63)
+                assertEquals(64, drain(map, 0).size());
+        }
+        assertEquals(0, map.size());
+        for (SegmentStats stats : map.segmentStats())
+            assertEquals(0, stats.usedBlocks());
+        map.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoSuchReplica() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(256)
+                .minSegments(4)
+                .entrySize(32)
+                .replicas(1)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        try {
+            map.drainChanges(1, null);
+        } finally {
+            map.close();
+        }
+    }
+}
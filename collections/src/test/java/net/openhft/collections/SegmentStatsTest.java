@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SegmentStatsTest {
+
+    @Test
+    public void testStats() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(4)
+                .entrySize(32)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        int entriesPerSegment = map.builder().actualEntriesPerSegment();
+        List<SegmentStats> empty = map.segmentStats();
+        assertEquals(map.builder().actualSegments(), empty.size());
+        for (SegmentStats stats : empty) {
+            assertEquals(0, stats.entries());
+            assertEquals(0, stats.usedBlocks());
+            assertEquals(1, stats.freeRuns());
+            assertEquals(entriesPerSegment, stats.largestFreeRun());
+            assertEquals(0.0, stats.averageProbeLength(), 0.0);
+        }
+
+        for (int i = 0; i < 800; i++)
+            map.put("key" + i, "value" + i);
+        // free every other entry to fragment the free lists.
+        for (int i = 0; i < 800; i += 2)
+            map.remove("key" + i);
+        int entries = 0;
+        for (SegmentStats stats : map.segmentStats()) {
+            assertEquals(1, stats.tiers());
+            entries += stats.entries();
+            // every entry fits in one block.
+            assertEquals(stats.entries(), stats.usedBlocks());
+            assertEquals(stats.usedBlocks() / (double) entriesPerSegment, stats.fillRatio(), 1e-9);
+            assertTrue(stats.averageProbeLength() >= 1);
+            assertTrue(stats.maxProbeLength() >= stats.averageProbeLength());
+            assertTrue(stats.freeRuns() > 10);
+            assertTrue(stats.largestFreeRun() < entriesPerSegment);
+            assertTrue(stats.hashLookupLoad() < 1);
+        }
+        assertEquals(400, entries);
+        map.close();
+    }
+
+    @Test
+    public void testHashCollisions() throws IOException {
+        SharedHashMap<String, String> map = HashLookupTypeTest.collidingMap(SharedHashMapTest.getPersistenceFile(), false);
+        SharedHashMap<String, String> wide = HashLookupTypeTest.collidingMap(SharedHashMapTest.getPersistenceFile(), true);
+        for (int i = 0; i < 200; i++) {
+            map.put("key" + i, "value" + i);
+            wide.put("key" + i, "value" + i);
+        }
+        SegmentStats stats = map.segmentStats().get(0);
+        assertEquals(200, stats.hashCollisions());
+        assertEquals(200, stats.maxProbeLength());
+        // the wide hash lookup has 16 more bits to tell them apart.
+        assertTrue(wide.segmentStats().get(0).hashCollisions() < 10);
+        wide.close();
+        map.close();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SharedHashMapReplicatorTest {
+
+    static SharedHashMap<String, String> createSource(File file) throws IOException {
+        return new SharedHashMapBuilder()
+                .entries(1024)
+                .minSegments(8)
+                .entrySize(32)
+                .replicas(1)
+                .create(file, String.class, String.class);
+    }
+
+    static SharedHashMap<String, String> createTarget(File file) throws IOException {
+        return new SharedHashMapBuilder()
+                .entries(2048)
+                .minSegments(2)
+                .entrySize(64)
+                .putReturnsNull(true)
+                .removeReturnsNull(true)
+                .create(file, String.class, String.class);
+    }
+
+    @Test
+    public void testCopiesOnlyChanges() throws IOException {
+        SharedHashMap<String, String> source = createSource(SharedHashMapTest.getPersistenceFile());
+        SharedHashMap<String, String> target = createTarget(SharedHashMapTest.getPersistenceFile());
+        SharedHashMapReplicator replicator = new SharedHashMapReplicator(source, 0, target, 100);
+        for (int i = 0; i < 500; i++)
+            source.put("key" + i, "value" + i);
+        assertEquals(500, replicator.replicate());
+        assertEquals(new HashMap<String, String>(source), new HashMap<String, String>(target));
+
+        source.put("key1", "changed");
+        source.remove("key2");
+        source.remove("key3");
+        source.put("key3", "put again");
+        assertEquals(3, replicator.replicate());
+        assertEquals(0, replicator.replicate());
+        assertEquals(new HashMap<String, String>(source), new HashMap<String, String>(target));
+        assertEquals(503, replicator.changes());
+        assertEquals(1, replicator.removals());
+        assertEquals(0, replicator.failures());
+        assertEquals(3, replicator.passes());
+        assertTrue(replicator.bytes() > 500 * 12);
+        assertTrue(replicator.lagMS() < 1000);
+
+        replicator.close();
+        target.close();
+        source.close();
+    }
+
+    @Test
+    public void testReplicatesWithinLagTarget() throws IOException, InterruptedException {
+        SharedHashMap<String, String> source = createSource(SharedHashMapTest.getPersistenceFile());
+        SharedHashMap<String, String> target = createTarget(SharedHashMapTest.getPersistenceFile());
+        SharedHashMapReplicator replicator = new SharedHashMapReplicator(source, 0, target, 20);
+        replicator.start();
+        for (int i = 0; i < 100; i++) {
+            source.put("key" + i, "value" + i);
+            if (i % 10 == 0)
+                source.remove("key" + (i / 2));
+        }
+        waitForCopy(source, target, 2000);
+        replicator.close();
+        assertTrue(replicator.passes() > 0);
+        assertEquals(0, replicator.failures());
+        target.close();
+        source.close();
+    }
+
+    static void waitForCopy(Map<String, String> source, Map<String, String> target, long timeoutMS)
+            throws InterruptedException {
+        Map<String, String> expected = new HashMap<String, String>(source);
+        long end = System.currentTimeMillis() + timeoutMS;
+        while (!expected.equals(new HashMap<String, String>(target))) {
+            if (System.currentTimeMillis() > end)
+                fail("Not copied in " + timeoutMS + " ms");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testReplicatesFromAnotherProcess() throws IOException, InterruptedException {
+        File sourceFile = SharedHashMapTest.getPersistenceFile();
+        File targetFile = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> source = createSource(sourceFile);
+        SharedHashMap<String, String> target = createTarget(targetFile);
+        Process process = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                SharedHashMapReplicatorTest.class.getName(),
+                sourceFile.getPath(), targetFile.getPath())
+                .redirectErrorStream(true)
+                .start();
+        try {
+            for (int i = 0; i < 200; i++)
+                source.put("key" + i, "value" + i);
+            source.remove("key7");
+            waitForCopy(source, target, 10000);
+            source.put("stop", "");
+            assertEquals(0, process.waitFor());
+        } finally {
+            process.destroy();
+        }
+        target.close();
+        source.close();
+    }
+
+    /**
+     * Copies the changes to one map file to another until the key "stop" is put.
+     */
+    public static void main(String... args) throws IOException, InterruptedException {
+        SharedHashMap<String, String> source = createSource(new File(args[0]));
+        SharedHashMap<String, String> target = createTarget(new File(args[1]));
+        SharedHashMapReplicator replicator = new SharedHashMapReplicator(source, 0, target, 10);
+        replicator.start();
+        while (!target.containsKey("stop"))
+            Thread.sleep(5);
+        replicator.close();
+        System.out.println(replicator);
+        target.close();
+        source.close();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class SharedHashMapSnapshotTest {
+
+    static SharedHashMapBuilder builder(int segments) {
+        return new SharedHashMapBuilder()
+                .entries(20000)
+                .minSegments(segments)
+                .entrySize(32);
+    }
+
+    /**
+     * Puts the entries, then removes every third so there are removed entries not to write.
+     */
+    static void putEntries(SharedHashMap<String, String> map, int entries) {
+        for (int i = 0; i < entries; i++)
+            map.put("key" + i, "value" + i);
+        for (int i = 0; i < entries; i += 3)
+            map.remove("key" + i);
+    }
+
+    @Test
+    public void testRestoresSegmentsInParallel() throws IOException {
+        SharedHashMap<String, String> map = builder(16).create(SharedHashMapTest.getPersistenceFile(),
+                String.class, String.class);
+        putEntries(map, 5000);
+        File snapshot = SharedHashMapTest.getPersistenceFile();
+        assertEquals(map.size(), SharedHashMapSnapshot.write(map, snapshot));
+        // only the live entries are written.
+        assertTrue(snapshot.length() + " vs " + map.file().length(), snapshot.length() * 10 < map.file().length());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            SharedHashMap<String, String> restored = SharedHashMapSnapshot.restore(snapshot, builder(16),
+                    SharedHashMapTest.getPersistenceFile(), String.class, String.class, executor);
+            assertEquals(map, restored);
+            assertEquals("value1", restored.get("key1"));
+            assertNull(restored.get("key0"));
+            restored.put("key0", "again");
+            assertEquals(map.size() + 1, restored.size());
+            restored.close();
+        } finally {
+            executor.shutdown();
+        }
+        map.close();
+    }
+
+    @Test
+    public void testRestoresToOtherSegments() throws IOException {
+        SharedHashMap<String, String> map = builder(16).create(SharedHashMapTest.getPersistenceFile(),
+                String.class, String.class);
+        putEntries(map, 2000);
+        File snapshot = SharedHashMapTest.getPersistenceFile();
+        SharedHashMapSnapshot.write(map, snapshot);
+        SharedHashMap<String, String> restored = SharedHashMapSnapshot.restore(snapshot, builder(4),
+                SharedHashMapTest.getPersistenceFile(), String.class, String.class, null);
+        assertEquals(4, restored.builder().actualSegments());
+        assertEquals(map, restored);
+        restored.close();
+        map.close();
+    }
+
+    @Test
+    public void testEmptyMap() throws IOException {
+        SharedHashMap<String, String> map = builder(16).create(SharedHashMapTest.getPersistenceFile(),
+                String.class, String.class);
+        putEntries(map, 0);
+        File snapshot = SharedHashMapTest.getPersistenceFile();
+        assertEquals(0, SharedHashMapSnapshot.write(map, snapshot));
+        SharedHashMap<String, String> restored = SharedHashMapSnapshot.restore(snapshot, builder(16),
+                SharedHashMapTest.getPersistenceFile(), String.class, String.class, null);
+        assertTrue(restored.isEmpty());
+        restored.close();
+        map.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testDoesNotRestoreOverAMap() throws IOException {
+        SharedHashMap<String, String> map = builder(16).create(SharedHashMapTest.getPersistenceFile(),
+                String.class, String.class);
+        putEntries(map, 10);
+        File snapshot = SharedHashMapTest.getPersistenceFile();
+        SharedHashMapSnapshot.write(map, snapshot);
+        try {
+            SharedHashMapSnapshot.restore(snapshot, builder(16), map.file(), String.class, String.class, null);
+        } finally {
+            map.close();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import static net.openhft.collections.BytesKeyTest.bytes;
+import static org.junit.Assert.*;
+
+public class SharedHashMapTcpReplicatorTest {
+
+    /**
+     * Applies the changes to one map drained by its replica 0 to another as its replica 0.
+     */
+    static int exchange(SharedHashMap<String, String> from, SharedHashMap<String, String> to) {
+        SharedHashMap.ChangeBatch batch = to.changeBatch(0);
+        for (int i = 0; i < from.builder().actualSegments(); i++)
+            from.drainChanges(0, i, batch);
+        return batch.flush();
+    }
+
+    @Test
+    public void testConcurrentChangesConverge() throws Exception {
+        SharedHashMap<String, String> a = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(4)
+                .replicas(1)
+                .identifier((byte) 1)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        SharedHashMap<String, String> b = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(4)
+                .replicas(1)
+                .identifier((byte) 2)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        for (int i = 0; i < 100; i++)
+            a.put("key" + i, "a" + i);
+        b.put("only-b", "b");
+        assertEquals(100, exchange(a, b));
+        assertEquals(1, exchange(b, a));
+        // changes applied are not passed back.
+        assertEquals(0, exchange(b, a));
+        assertEquals(0, exchange(a, b));
+        assertEquals(101, a.size());
+        assertEquals(a, b);
+
+        // the later change wins whichever order they are exchanged in.
+        a.put("key1", "a1 again");
+        b.remove("key2");
+        Thread.sleep(2);
+        b.put("key1", "b1");
+        a.put("key2", "a2 again");
+        a.remove("key3");
+        Thread.sleep(2);
+        b.put("key3", "b3");
+        exchange(b, a);
+        exchange(a, b);
+        assertEquals("b1", a.get("key1"));
+        assertEquals("a2 again", b.get("key2"));
+        assertEquals("b3", a.get("key3"));
+        assertEquals(a, b);
+
+        a.remove("key4");
+        exchange(a, b);
+        assertFalse(b.containsKey("key4"));
+        assertEquals(a, b);
+
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void testSameTimestampOrderedByIdentifier() throws IOException {
+        SharedHashMap<String, String> a = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(4)
+                .replicas(1)
+                .identifier((byte) 1)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        SharedHashMap<String, String> b = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(4)
+                .replicas(1)
+                .identifier((byte) 2)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        long now = System.currentTimeMillis();
+        assertTrue(a.applyChange(-1, bytes("key"), bytes("from 1"), now, (byte) 1));
+        assertTrue(a.applyChange(-1, bytes("key"), bytes("from 2"), now, (byte) 2));
+        assertTrue(b.applyChange(-1, bytes("key"), bytes("from 2"), now, (byte) 2));
+        assertFalse(b.applyChange(-1, bytes("key"), bytes("from 1"), now, (byte) 1));
+        assertEquals("from 2", a.get("key"));
+        assertEquals("from 2", b.get("key"));
+
+        // a removal is kept until drained so an earlier put doesn't bring the key back.
+        assertTrue(a.applyChange(-1, bytes("key"), null, now + 1, (byte) 1));
+        assertFalse(a.applyChange(-1, bytes("key"), bytes("late"), now, (byte) 2));
+        assertNull(a.get("key"));
+        assertEquals(0, a.size());
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void testReplicatesOverLoopback() throws Exception {
+        SharedHashMap<String, String> a = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(4)
+                .replicas(1)
+                .identifier((byte) 1)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        SharedHashMap<String, String> b = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(4)
+                .replicas(1)
+                .identifier((byte) 2)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        SharedHashMapTcpReplicator server = SharedHashMapTcpReplicator.listen(a, 0,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 20);
+        SharedHashMapTcpReplicator client = SharedHashMapTcpReplicator.connect(b, 0, server.address(), 20);
+        server.start();
+        client.start();
+        try {
+            int entries = 500;
+            for (int i = 0; i < entries; i++) {
+                a.put("a" + i, "value" + i);
+                b.put("b" + i, "value" + i);
+            }
+            for (int i = 0; i < entries; i += 2)
+                b.remove("b" + i);
+            waitForSize(a, entries * 3 / 2);
+            waitForSize(b, entries * 3 / 2);
+            assertEquals(a, b);
+            assertFalse(a.containsKey("b0"));
+            assertEquals("value1", a.get("b1"));
+            // many changes are sent per write.
+            assertTrue(server.toString(), server.writes() < server.changesSent());
+            assertEquals(entries, client.changesReceived());
+            assertEquals(entries, client.changesApplied());
+            assertTrue(server.isConnected());
+        } finally {
+            client.close();
+            server.close();
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    public void testConvergesAfterConnectionDrops() throws Exception {
+        SharedHashMapBuilder builder = new SharedHashMapBuilder()
+                .entries(20000)
+                .minSegments(16)
+                .replicas(1);
+        SharedHashMap<String, String> a = builder.identifier((byte) 1)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        SharedHashMap<String, String> b = builder.identifier((byte) 2)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        SharedHashMapTcpReplicator server = SharedHashMapTcpReplicator.listen(a, 0,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 20);
+        SharedHashMapTcpReplicator client = SharedHashMapTcpReplicator.connect(b, 0, server.address(), 20);
+        server.start();
+        client.start();
+        try {
+            int entries = 5000;
+            for (int i = 0; i < entries; i++) {
+                a.put("a" + i, "value" + i);
+                b.put("b" + i, "value" + i);
+            }
+            // dropped while the changes are streaming.
+            server.close();
+            for (int i = 0; i < entries; i += 2) {
+                a.remove("a" + i);
+                b.put("b" + i, "changed" + i);
+            }
+            server = SharedHashMapTcpReplicator.listen(a, 0, server.address(), 20);
+            server.start();
+            waitForSize(a, entries * 3 / 2);
+            waitForSize(b, entries * 3 / 2);
+            for (int i = 0; i < 500 && !a.equals(b); i++)
+                Thread.sleep(10);
+            assertEquals(a, b);
+            assertEquals("changed0", a.get("b0"));
+            assertFalse(b.containsKey("a0"));
+            assertTrue(client.connections() >= 2);
+        } finally {
+            client.close();
+            server.close();
+            a.close();
+            b.close();
+        }
+    }
+
+    static void waitForSize(SharedHashMap<String, String> map, int size) throws InterruptedException {
+        for (int i = 0; i < 500 && map.size() != size; i++)
+            Thread.sleep(10);
+        assertEquals(size, map.size());
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SharedIntIntMapTest {
+
+    @Test
+    public void testPutGetRemove() throws IOException {
+        SharedIntIntMap map = new SharedHashMapBuilder()
+                .entries(10000)
+                .createIntIntMap(SharedHashMapTest.getPersistenceFile());
+        for (int i = -5000; i < 5000; i++)
+            assertEquals(Integer.MIN_VALUE, map.put(i, i * 3, Integer.MIN_VALUE));
+        assertEquals(10000, map.longSize());
+        for (int i = -5000; i < 5000; i += 2)
+            assertEquals(i * 3, map.remove(i, Integer.MIN_VALUE));
+        for (int i = -5000; i < 5000; i++) {
+            boolean present = (i & 1) != 0;
+            assertEquals(present, map.containsKey(i));
+            assertEquals(present ? i * 3 : -1, map.get(i, -1));
+        }
+        assertEquals(5, map.addAndGet(0, 5));
+        assertEquals(-3, map.addAndGet(1, -6));
+        assertEquals(5001, map.longSize());
+        map.close();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SharedLongLongMapTest {
+
+    @Test
+    public void testMatchesHashMap() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedLongLongMap map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(2)
+                .createLongLongMap(file);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random rand = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            // a small range of keys, including 0, so keys are often removed and added again.
+            long key = rand.nextInt(1000) - 10;
+            long value = rand.nextLong();
+            switch (rand.nextInt(4)) {
+                case 0:
+                case 1:
+                    Long prev = expected.put(key, value);
+                    assertEquals(prev == null ? -1 : prev, map.put(key, value, -1));
+                    break;
+                case 2:
+                    Long removed = expected.remove(key);
+                    assertEquals(removed == null ? -1 : removed, map.remove(key, -1));
+                    break;
+                case 3:
+                    Long got = expected.get(key);
+                    assertEquals(got == null ? -1 : got, map.get(key, -1));
+                    assertEquals(got != null, map.containsKey(key));
+                    break;
+            }
+        }
+        assertEquals(expected.size(), map.longSize());
+        map.close();
+
+        // the keys are still there when the file is mapped again.
+        SharedLongLongMap map2 = new SharedHashMapBuilder().createLongLongMap(file);
+        for (Map.Entry<Long, Long> entry : expected.entrySet())
+            assertEquals((long) entry.getValue(), map2.get(entry.getKey(), -1));
+        map2.clear();
+        assertEquals(0, map2.longSize());
+        assertFalse(map2.containsKey(0));
+        map2.close();
+    }
+
+    @Test
+    public void testAddAndGetConcurrently() throws Exception {
+        final SharedLongLongMap map = new SharedHashMapBuilder()
+                .entries(1000)
+                .createLongLongMap(SharedHashMapTest.getPersistenceFile());
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++)
+                        map.addAndGet(i % 100, 1);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        for (int i = 0; i < 100; i++)
+            assertEquals(4 * 1000, map.get(i, -1));
+        map.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotASharedHashMap() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        new SharedHashMapBuilder().createLongLongMap(file).close();
+        new SharedHashMapBuilder().create(file, Long.class, Long.class);
+    }
+}
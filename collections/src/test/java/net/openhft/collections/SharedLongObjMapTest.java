@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SharedLongObjMapTest {
+
+    @Test
+    public void testPutGetRemove() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedLongObjMap<String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .entrySize(32)
+                .createLongObjMap(file, String.class);
+        for (long i = 0; i < 1000; i++)
+            assertNull(map.put(i * 1000000007L, "value" + i));
+        assertEquals("value7", map.get(7 * 1000000007L));
+        assertEquals("value7", map.put(7 * 1000000007L, "seven"));
+        assertEquals("seven", map.getUsing(7 * 1000000007L, null));
+        assertEquals("value0", map.remove(0));
+        assertNull(map.get(0));
+        assertFalse(map.containsKey(0));
+        assertTrue(map.containsKey(1000000007L));
+        assertEquals(999, map.longSize());
+        map.close();
+
+        SharedLongObjMap<String> map2 = new SharedHashMapBuilder()
+                .createLongObjMap(file, String.class);
+        assertEquals(32, map2.builder().entrySize());
+        assertEquals("seven", map2.get(7 * 1000000007L));
+        map2.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValueTooLarge() throws IOException {
+        SharedLongObjMap<String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .entrySize(16)
+                .createLongObjMap(SharedHashMapTest.getPersistenceFile(), String.class);
+        try {
+            map.put(1, "twenty characters..");
+        } finally {
+            map.close();
+        }
+    }
+}
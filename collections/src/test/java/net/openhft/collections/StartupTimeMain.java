@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reports how long it takes to open an existing map as the file grows, with and without warming up its segments.
+ */
+public class StartupTimeMain {
+    public static final int MAX_ENTRIES = Integer.getInteger("entries", 10 * 1000 * 1000);
+    public static final int WARM_UP_THREADS = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+
+    public static void main(String... ignored) throws IOException {
+        for (int entries = 10 * 1000; entries <= MAX_ENTRIES; entries *= 10) {
+            File file = new File(System.getProperty("java.io.tmpdir"), "startup-time-" + System.nanoTime());
+            file.deleteOnExit();
+            SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                    .entries(entries)
+                    .create(file, String.class, String.class);
+            for (int i = 0; i < entries; i += 10)
+                map.put("key" + i, "value" + i);
+            map.close();
+
+            for (int threads : new int[]{0, 1, WARM_UP_THREADS}) {
+                long start0 = System.nanoTime();
+                map = new SharedHashMapBuilder()
+                        .entries(entries)
+                        .warmUpThreads(threads)
+                        .create(file, String.class, String.class);
+                long time = System.nanoTime() - start0;
+                map.get("key0");
+                long firstGet = System.nanoTime() - start0 - time;
+                System.out.println("File of " + file.length() / (1024 * 1024) + " MB opened with " + threads
+                        + " warm up threads in " + time / 10000 / 100.0 + " ms, first get took "
+                        + firstGet / 1000 / 1000.0 + " ms");
+                map.close();
+            }
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reports how long sync() takes and how many bytes it writes as more segments are changed between syncs.
+ */
+public class SyncLatencyMain {
+    public static final int ENTRIES = Integer.getInteger("entries", 1000 * 1000);
+    public static final int RUNS = Integer.getInteger("runs", 20);
+
+    public static void main(String... ignored) throws IOException {
+        File file = new File(System.getProperty("java.io.tmpdir"), "sync-latency-" + System.nanoTime());
+        file.deleteOnExit();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(ENTRIES)
+                .durability(Durability.ON_DEMAND)
+                .create(file, String.class, String.class);
+        int segments = map.builder().actualSegments();
+        for (int changes = 1; changes <= ENTRIES; changes *= 10) {
+            long maxTime = 0, bytes = 0;
+            for (int j = 0; j < RUNS; j++) {
+                for (int i = 0; i < changes; i++)
+                    map.put("key" + (i * 7919 + j) % ENTRIES, "value" + j);
+                long start0 = System.nanoTime();
+                bytes += map.sync();
+                long time = System.nanoTime() - start0;
+                if (time > maxTime) maxTime = time;
+            }
+            System.out.println(changes + " changes over " + segments + " segments synced an average of "
+                    + bytes / RUNS / 1024 + " KB, longest sync was " + maxTime / 10000 / 100.0 + " ms");
+        }
+        System.out.println(map.syncStats());
+        map.close();
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import static org.junit.Assert.*;
+
+public class TransactionTest {
+
+    @Test
+    public void testCommitsPutsAndRemoves() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(8)
+                .entrySize(32)
+                .maxEntryOversizeFactor(4)
+                .transactional(true)
+                .create(file, String.class, String.class);
+        for (int i = 0; i < 10; i++)
+            map.put("key" + i, "value" + i);
+
+        SharedHashMap.Transaction<String, String> transaction = map.transaction();
+        for (int i = 0; i < 100; i += 2)
+            transaction.put("key" + i, "new" + i);
+        transaction.remove("key1").remove("key3").remove("absent");
+        transaction.put("key1", "readded").remove("key0");
+        // nothing is changed until it is committed.
+        assertEquals("value2", map.get("key2"));
+        transaction.commit();
+
+        assertNull(map.get("key0"));
+        assertEquals("readded", map.get("key1"));
+        assertNull(map.get("key3"));
+        assertEquals("new2", map.get("key2"));
+        assertEquals("value5", map.get("key5"));
+        assertEquals(49 + 1 + 3, map.size());
+        try {
+            transaction.commit();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        map.close();
+
+        // transactional is read from the file.
+        SharedHashMap<String, String> map2 = new SharedHashMapBuilder().create(file, String.class, String.class);
+        assertTrue(map2.builder().transactional());
+        map2.transaction().put("key3", "again").commit();
+        assertEquals("again", map2.get("key3"));
+        map2.close();
+    }
+
+    @Test
+    public void testUndoesChangesWhenOneFails() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(8)
+                .entrySize(32)
+                .maxEntryOversizeFactor(4)
+                .transactional(true)
+                .redoLog(true)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        map.put("a", "old a");
+        map.put("b", "old b");
+        SharedHashMap.Transaction<String, String> transaction = map.transaction()
+                .put("a", "new a")
+                .remove("b")
+                .put("c", "new c")
+                .put("a", "newer a")
+                // too large an entry.
+                .put("dddddd", MultiBlockEntryTest.value(120, 'x'));
+        try {
+            transaction.commit();
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals("old a", map.get("a"));
+        assertEquals("old b", map.get("b"));
+        assertNull(map.get("c"));
+        assertNull(map.get("dddddd"));
+        assertEquals(2, map.size());
+        // the segments were unlocked.
+        map.put("c", "c");
+        assertEquals(3, map.size());
+        map.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNeedsTransactionalMap() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        try {
+            map.transaction();
+        } finally {
+            map.close();
+        }
+    }
+
+    @Test
+    public void testRedoesTransactionOfDeadProcess() throws IOException, InterruptedException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(8)
+                .entrySize(32)
+                .maxEntryOversizeFactor(4)
+                .transactional(true)
+                .create(file, String.class, String.class);
+        for (int i = 0; i < 10; i++)
+            map.put("key" + i, "value" + i);
+        map.close();
+
+        Process process = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                TransactionTest.class.getName(), file.getPath())
+                .redirectErrorStream(true)
+                .start();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line;
+            while ((line = reader.readLine()) != null && !line.equals("committing"))
+                System.out.println(line);
+            assertEquals("committing", line);
+        } finally {
+            process.destroy();
+        }
+        process.waitFor();
+        assertEquals(1, RedoLog.pids(file).size());
+
+        map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(8)
+                .entrySize(32)
+                .maxEntryOversizeFactor(4)
+                .transactional(true)
+                .create(file, String.class, String.class);
+        assertEquals(0, RedoLog.pids(file).size());
+        for (int i = 0; i < 10; i++)
+            assertEquals(i % 3 == 0 ? null : "new" + i, map.get("key" + i));
+        assertEquals(6, map.size());
+        map.close();
+    }
+
+    /**
+     * Commits a transaction with a redo log, blocking part way through until the process is killed.
+     */
+    public static void main(String... args) throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(8)
+                .entrySize(32)
+                .maxEntryOversizeFactor(4)
+                .transactional(true)
+                .redoLog(true)
+                .eventListener(new SharedMapEventListener<String, String>() {
+                    @Override
+                    public String onGetMissing(SharedHashMap<String, String> map, Bytes keyBytes, String key,
+                                               String usingValue) {
+                        return null;
+                    }
+
+                    @Override
+                    public void onGetFound(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes,
+                                           String key, String value) {
+                    }
+
+                    @Override
+                    public void onPut(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes,
+                                      boolean added, String key, String value) {
+                        if (!key.equals("key4"))
+                            return;
+                        System.out.println("committing");
+                        System.out.flush();
+                        while (true) {
+                            try {
+                                Thread.sleep(1000);
+                            } catch (InterruptedException ignored) {
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onRemove(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes,
+                                         String key, String value) {
+                    }
+                })
+                .create(new File(args[0]), String.class, String.class);
+        SharedHashMap.Transaction<String, String> transaction = map.transaction();
+        for (int i = 0; i < 10; i++)
+            if (i % 3 == 0)
+                transaction.remove("key" + i);
+            else
+                transaction.put("key" + i, "new" + i);
+        transaction.commit();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class WarmUpTest {
+
+    @Test
+    public void testOpensWithAndWithoutWarmUp() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(10000)
+                .minSegments(16)
+                .create(file, String.class, String.class);
+        for (int i = 0; i < 1000; i++)
+            map.put("key" + i, "value" + i);
+        map.close();
+
+        for (int threads : new int[]{0, 1, 4, 32}) {
+            SharedHashMap<String, String> map2 = new SharedHashMapBuilder()
+                    .entries(10000)
+                    .minSegments(16)
+                    .warmUpThreads(threads)
+                    .create(file, String.class, String.class);
+            assertEquals(threads, map2.builder().warmUpThreads());
+            assertEquals(1000, map2.size());
+            for (int i = 0; i < 1000; i++)
+                assertEquals("value" + i, map2.get("key" + i));
+            map2.close();
+        }
+    }
+
+    @Test
+    public void testSegmentsSetUpByConcurrentFirstAccess() throws Exception {
+        File file = SharedHashMapTest.getPersistenceFile();
+        final SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(10000)
+                .minSegments(16)
+                .create(file, String.class, String.class);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = first; i < 4000; i += 4)
+                        map.put("key" + i, "value" + i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(4000, map.size());
+        map.close();
+    }
+}